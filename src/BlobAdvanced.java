@@ -16,6 +16,7 @@
 import com.azure.core.util.Context;
 import com.azure.storage.blob.BlobClient;
 import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobContainerClientBuilder;
 import com.azure.storage.blob.BlobServiceClient;
 import com.azure.storage.blob.models.BlobAccessPolicy;
 import com.azure.storage.blob.models.BlobAnalyticsLogging;
@@ -24,6 +25,7 @@ import com.azure.storage.blob.models.BlobContainerProperties;
 import com.azure.storage.blob.models.BlobCorsRule;
 import com.azure.storage.blob.models.BlobErrorCode;
 import com.azure.storage.blob.models.BlobHttpHeaders;
+import com.azure.storage.blob.models.BlobItem;
 import com.azure.storage.blob.models.BlobMetrics;
 import com.azure.storage.blob.models.BlobProperties;
 import com.azure.storage.blob.models.BlobRetentionPolicy;
@@ -31,26 +33,47 @@ import com.azure.storage.blob.models.BlobServiceProperties;
 import com.azure.storage.blob.models.BlobServiceStatistics;
 import com.azure.storage.blob.models.BlobStorageException;
 import com.azure.storage.blob.models.ListBlobContainersOptions;
+import com.azure.storage.blob.models.ListBlobsOptions;
 import com.azure.storage.blob.models.PublicAccessType;
-import com.azure.storage.blob.options.BlobUploadFromFileOptions;
 import com.azure.storage.common.implementation.Constants;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /**
  * This sample illustrates advanced usage of the Azure blob storage service.
  */
 class BlobAdvanced {
 
+    /**
+     * How long the samples wait for changes that the service applies asynchronously to become visible.
+     */
+    private static final Duration PROPAGATION_DEADLINE = Duration.ofSeconds(30);
+
+    private static final Duration POLL_INTERVAL = Duration.ofMillis(500);
+
     /**
      * Executes the samples.
      */
@@ -63,37 +86,9 @@ class BlobAdvanced {
             // Create a blob service client
             BlobServiceClient blobServiceClient = BlobClientProvider.getBlobServiceClient();
 
-            System.out.println("List containers sample");
-            listContainers(blobServiceClient);
-            System.out.println();
-
-            System.out.println("Service properties sample");
-            serviceProperties(blobServiceClient);
-            System.out.println();
-
-            System.out.println("CORS rules sample");
-            corsRules(blobServiceClient);
-            System.out.println();
-
-            System.out.println("Container properties sample");
-            containerProperties(blobServiceClient);
-            System.out.println();
-
-            System.out.println("Container metadata sample");
-            containerMetadata(blobServiceClient);
-            System.out.println();
-
-            System.out.println("Container Acl sample");
-            containerAcl(blobServiceClient);
-            System.out.println();
-
-            System.out.println("Blob properties sample");
-            blobProperties(blobServiceClient);
-            System.out.println();
-
-            System.out.println("Blob metadata sample");
-            blobMetadata(blobServiceClient);
-            System.out.println();
+            ScenarioRunner runner = new ScenarioRunner(blobServiceClient, "blobadvancedcontainer");
+            addScenarios(runner, blobServiceClient);
+            ScenarioRunner.printReport(runner.run(Runtime.getRuntime().availableProcessors()));
 
             // This will fail unless the account is RA-GRS enabled.
 //            System.out.println("Service stats sample");
@@ -106,6 +101,32 @@ class BlobAdvanced {
         PrintHelper.printSampleCompleteInfo("Blob Advanced");
     }
 
+    /**
+     * Adds the samples to a scenario runner.
+     * The container samples run concurrently in their own containers. The samples changing the service properties
+     * restore the original properties when done, so they run one after another.
+     *
+     * @param runner            The runner to add the samples to.
+     * @param blobServiceClient Azure Storage Blob Service
+     */
+    void addScenarios(ScenarioRunner runner, final BlobServiceClient blobServiceClient) {
+        runner.addSerial("list containers", "List containers sample", container -> listContainers(blobServiceClient));
+        runner.addSerial("service properties", "Service properties sample", container -> serviceProperties(blobServiceClient));
+        runner.addSerial("service properties", "CORS rules sample", container -> corsRules(blobServiceClient));
+        runner.add("Container properties sample", this::containerProperties);
+        runner.add("Container metadata sample", this::containerMetadata);
+        runner.add("Container Acl sample", this::containerAcl);
+        runner.add("Blob properties sample", this::blobProperties);
+        runner.add("Blob metadata sample", this::blobMetadata);
+        runner.add("Blob index tags sample", container -> blobIndexTags(blobServiceClient, container));
+        runner.add("Sharded accounts sample", this::shardedAccounts);
+        runner.add("Synthetic dataset sample", this::syntheticDataset);
+        runner.add("Object pack sample", this::objectPack);
+        runner.add("Download cache sample", this::downloadCache);
+        runner.add("Seekable channel sample", this::seekableChannel);
+        runner.addSerial("transfer scheduler", "Transfer scheduler rate cap check", container -> transferSchedulerRateCap());
+    }
+
     /**
      * List containers sample.
      *
@@ -118,8 +139,16 @@ class BlobAdvanced {
             String prefix = UUID.randomUUID().toString();
             for (int i = 0; i < 5; i++) {
                 containerList.add(prefix + i);
-                blobServiceClient.createBlobContainer(prefix + i);
             }
+            containerList.parallelStream().forEach(containerName -> {
+                try {
+                    blobServiceClient.createBlobContainer(containerName);
+                } catch (BlobStorageException ex) {
+                    if (!BlobErrorCode.CONTAINER_ALREADY_EXISTS.equals(ex.getErrorCode())) {
+                        throw ex;
+                    }
+                }
+            });
 
             System.out.println("List containers");
             for (final BlobContainerItem blobContainerItem : blobServiceClient.listBlobContainers(new ListBlobContainersOptions().setPrefix(prefix), (Duration) null)) {
@@ -127,16 +156,15 @@ class BlobAdvanced {
             }
         } finally {
             System.out.println("Delete containers");
-            for (final String containerName : containerList) {
+            containerList.parallelStream().forEach(containerName -> {
                 try {
                     blobServiceClient.getBlobContainerClient(containerName).delete();
-                } catch (Exception ex) {
-                    if (!(ex instanceof BlobStorageException)
-                            || !BlobErrorCode.CONTAINER_NOT_FOUND.equals(((BlobStorageException)ex).getErrorCode())) {
+                } catch (BlobStorageException ex) {
+                    if (!BlobErrorCode.CONTAINER_NOT_FOUND.equals(ex.getErrorCode())) {
                         throw ex;
                     }
                 }
-            }
+            });
         }
     }
 
@@ -236,228 +264,434 @@ class BlobAdvanced {
     /**
      * Manage container properties
      *
-     * @param blobServiceClient Azure Storage Blob Service
+     * @param containerClient The container provisioned for the sample.
      */
-    private void containerProperties(BlobServiceClient blobServiceClient) {
-        // Get a reference to a container
-        // The container name must be lower case
-        BlobContainerClient containerClient = blobServiceClient.getBlobContainerClient("blobadvancedcontainer"
-                + UUID.randomUUID().toString().replace("-", ""));
-        try {
-            System.out.println("Create container");
-            // Create the container if it does not exist
-            try {
-                containerClient.create();
-            } catch (Exception ex) {
-                if (!(ex instanceof BlobStorageException)
-                        || !BlobErrorCode.CONTAINER_ALREADY_EXISTS.equals(((BlobStorageException)ex).getErrorCode())) {
-                    throw ex;
-                }
-            }
-
-            System.out.println("Get container properties");
-            BlobContainerProperties properties = containerClient.getProperties();
-            System.out.printf("Etag: %s%n", properties.getETag());
-            System.out.printf("Last modified: %s%n", properties.getLastModified());
-            System.out.printf("Lease state: %s%n", properties.getLeaseState());
-            System.out.printf("Lease status: %s%n", properties.getLeaseStatus());
-        } finally {
-            containerClient.delete();
-            System.out.println(String.format("Successfully deleted the container: %s", containerClient.getBlobContainerName()));
-        }
+    private void containerProperties(BlobContainerClient containerClient) {
+        System.out.println("Get container properties");
+        BlobContainerProperties properties = containerClient.getProperties();
+        System.out.printf("Etag: %s%n", properties.getETag());
+        System.out.printf("Last modified: %s%n", properties.getLastModified());
+        System.out.printf("Lease state: %s%n", properties.getLeaseState());
+        System.out.printf("Lease status: %s%n", properties.getLeaseStatus());
     }
 
     /**
      * Manage container metadata
      *
-     * @param blobServiceClient Azure Storage Blob Service
+     * @param containerClient The container provisioned for the sample.
+     */
+    private void containerMetadata(BlobContainerClient containerClient) {
+        System.out.println("Set container metadata");
+        // The container was just created, so there is no metadata to merge with and no need to read it first.
+        // Set Container Metadata accepts no If-Match condition, so a read-modify-write could not be made safe anyway.
+        Map<String, String> metadataMap = new HashMap<>();
+        metadataMap.put("key1", "value1");
+        metadataMap.put("foo", "bar");
+        containerClient.setMetadata(metadataMap);
+        System.out.println("Get container metadata:");
+        containerClient.getProperties().getMetadata().entrySet().forEach(pair -> {
+            System.out.printf(" %s = %s%n", pair.getKey(), pair.getValue());
+        });
+    }
+
+    /**
+     * Manage container access properties
+     *
+     * @param containerClient The container provisioned for the sample.
      */
-    private void containerMetadata(BlobServiceClient blobServiceClient) {
-        // Get a reference to a container
-        // The container name must be lower case
-        String containerName = "blobadvancedcontainer" + UUID.randomUUID().toString().replace("-", "");
-        BlobContainerClient containerClient = blobServiceClient.getBlobContainerClient(containerName);
+    private void containerAcl(BlobContainerClient containerClient) throws InterruptedException {
+        System.out.println("Set container permissions");
+        OffsetDateTime startOn = OffsetDateTime.now(ZoneOffset.UTC);
+        OffsetDateTime expiresOn = startOn.plusMinutes(30);
+        containerClient.getAccessPolicy().getIdentifiers().forEach(blobSignedIdentifier -> {
+            blobSignedIdentifier.setAccessPolicy(new BlobAccessPolicy().setStartsOn(startOn).setExpiresOn(expiresOn).setPermissions("lc"));
+        });
+        containerClient.setAccessPolicy(PublicAccessType.CONTAINER, containerClient.getAccessPolicy().getIdentifiers());
+
+        System.out.println("Wait for the container permissions to take effect");
+        // Reading the policy back returns what was just set, only an anonymous request shows the public access applied.
+        // Poll instead of waiting a fixed time, the permissions usually apply well within the 30 second limit
+        BlobContainerClient anonymousClient = new BlobContainerClientBuilder()
+                .endpoint(containerClient.getBlobContainerUrl()).buildClient();
+        boolean applied = ScenarioRunner.waitUntil(() -> canListAnonymously(anonymousClient),
+                PROPAGATION_DEADLINE, POLL_INTERVAL);
+        if (!applied) {
+            // Accounts that disallow public access never allow the anonymous listing
+            System.out.println(String.format("The container could not be listed anonymously after %d seconds",
+                    PROPAGATION_DEADLINE.getSeconds()));
+        }
+
+        System.out.println("Get container permissions");
+        // Get container permissions
+        System.out.printf(" Public access: %s%n", containerClient.getAccessPolicy().getBlobAccessType());
+        containerClient.getAccessPolicy().getIdentifiers().forEach(blobSignedIdentifier -> {
+            System.out.printf("  Permissions: %s%n", blobSignedIdentifier.getAccessPolicy().getPermissions());
+            System.out.printf("  Start: %s%n", blobSignedIdentifier.getAccessPolicy().getStartsOn());
+            System.out.printf("  Expiry: %s%n", blobSignedIdentifier.getAccessPolicy().getExpiresOn());
+            // Clear permissions
+            blobSignedIdentifier.setAccessPolicy(new BlobAccessPolicy());
+        });
+        System.out.println("Clear container permissions");
+        containerClient.setAccessPolicy(PublicAccessType.CONTAINER, containerClient.getAccessPolicy().getIdentifiers());
+    }
+
+    private static boolean canListAnonymously(BlobContainerClient anonymousClient) {
         try {
-            System.out.println("Create container");
-            // Create the container if it does not exist
-            try {
-                containerClient.create();
-            } catch (Exception ex) {
-                if (!(ex instanceof BlobStorageException)
-                        || !BlobErrorCode.CONTAINER_ALREADY_EXISTS.equals(((BlobStorageException)ex).getErrorCode())) {
-                    throw ex;
-                }
-            }
-            System.out.println("Set container metadata");
-            Map<String, String> metadataMap = containerClient.getProperties().getMetadata();
-            metadataMap = metadataMap != null ? metadataMap : new HashMap();
-            metadataMap.put("key1", "value1");
-            metadataMap.put("foo", "bar");
-            containerClient.setMetadata(metadataMap);
-            System.out.println("Get container metadata:");
-            containerClient.getProperties().getMetadata().entrySet().forEach(pair -> {
-                System.out.printf(" %s = %s%n", pair.getKey(), pair.getValue());
-            });
-        } finally {
-            containerClient.delete();
-            System.out.println(String.format("Successfully deleted the container: %s", containerClient.getBlobContainerName()));
+            anonymousClient.listBlobs(new ListBlobsOptions().setMaxResultsPerPage(1), null).iterator().hasNext();
+            return true;
+        } catch (BlobStorageException ex) {
+            return false;
         }
     }
 
     /**
-     * Manage container access properties
+     * Mangage blob properties
+     *
+     * @param containerClient The container provisioned for the sample.
+     */
+    private void blobProperties(BlobContainerClient containerClient) throws IOException {
+        Random random = new Random();
+        File tempFile = DataGenerator.createTempLocalFile("blockblob-", ".tmp", (128 * 1024) + random.nextInt(128 * 1024));
+        System.out.println(String.format("Successfully created the file \"%s\"", tempFile.getAbsolutePath()));
+
+        System.out.println("Use a sample file as a block blob");
+        BlobClient blob = containerClient.getBlobClient("blockblob1.tmp");
+
+        // Set blob properties
+        System.out.println("Set blob properties");
+        BlobHttpHeaders blobHeaders = new BlobHttpHeaders().setContentLanguage("en").setContentEncoding("UTF8").setContentType("text/plain");
+        // Upload the block blob
+        BlobTransfer.uploadFile(blob.getBlockBlobClient(), tempFile.getAbsolutePath(), TransferProfile.current(), blobHeaders, null);
+        System.out.println("Successfully uploaded the blob");
+
+        System.out.println("Get blob properties");
+        BlobProperties properties = blob.getProperties();
+        System.out.printf("Blob type: %s%n", properties.getBlobType());
+        System.out.printf("Cache control: %s%n", properties.getCacheControl());
+        System.out.printf("Content disposition: %s%n", properties.getContentDisposition());
+        System.out.printf("Content encoding: %s%n", properties.getContentEncoding());
+        System.out.printf("Content language: %s%n", properties.getContentLanguage());
+        System.out.printf("Content type: %s%n", properties.getContentType());
+        System.out.printf("Content MD5: %s%n", Base64.getEncoder().encodeToString(properties.getContentMd5()));
+        System.out.printf("Last modified: %s%n", properties.getLastModified());
+        System.out.printf("Lease state: %s%n", properties.getLeaseState());
+        System.out.printf("Lease status: %s%n", properties.getLeaseStatus());
+    }
+
+    /**
+     * Manage the blob metadata
+     *
+     * @param containerClient The container provisioned for the sample.
+     */
+    private void blobMetadata(BlobContainerClient containerClient) throws IOException, InterruptedException {
+        Random random = new Random();
+        File tempFile = DataGenerator.createTempLocalFile("blockblob-", ".tmp", (128 * 1024) + random.nextInt(128 * 1024));
+        System.out.println(String.format("Successfully created the file \"%s\"", tempFile.getAbsolutePath()));
+
+        // Use a sample file as a block blob
+        System.out.println("Upload a sample file as a block blob");
+        BlobClient blob = containerClient.getBlobClient("blockblob1.tmp");
+
+        // Upload the block blob with its metadata in the same request
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("key1", "value1");
+        BlobTransfer.uploadFile(blob.getBlockBlobClient(), tempFile.getAbsolutePath(), TransferProfile.current(), null, metadata);
+        System.out.println("Successfully uploaded the blob");
+
+        System.out.println("Set blob metadata");
+        // Change the metadata alone, on condition that the blob did not change since it was read
+        BlobBulkUpdater.Result result = new BlobBulkUpdater(containerClient, 4, 3).updateMetadata("blockblob", (name, current) -> {
+            current.put("foo", "bar");
+            return true;
+        });
+        System.out.printf("Updated %d blob(s) after %d retries%n", result.getUpdated(), result.getRetried());
+
+        System.out.println("Get blob metadata:");
+        blob.getProperties().getMetadata().entrySet()
+                .forEach(pair -> System.out.printf(" %s = %s%n", pair.getKey(), pair.getValue()));
+    }
+
+    /**
+     * Find blobs by their metadata through blob index tags
      *
      * @param blobServiceClient Azure Storage Blob Service
+     * @param containerClient   The container provisioned for the sample.
      */
-    private void containerAcl(BlobServiceClient blobServiceClient) throws InterruptedException {
-        // Get a reference to a container
-        // The container name must be lower case
-        String containerName = "blobadvancedcontainer" + UUID.randomUUID().toString().replace("-", "");
-        BlobContainerClient containerClient = blobServiceClient.getBlobContainerClient(containerName);
+    private void blobIndexTags(BlobServiceClient blobServiceClient, BlobContainerClient containerClient) throws InterruptedException {
+        BlobTagIndex index = new BlobTagIndex(blobServiceClient, containerClient, Collections.singletonList("category"));
+
+        System.out.println("Upload blobs with indexed metadata");
+        String[] categories = {"red", "green", "blue"};
+        for (int i = 0; i < 9; i++) {
+            Map<String, String> metadata = new HashMap<>();
+            metadata.put("category", categories[i % categories.length]);
+            index.uploadBytes(String.format("tagged%d.txt", i), String.format("blob %d", i).getBytes(), metadata);
+        }
+
+        System.out.println("Change the category of a blob");
+        BlobClient blob = containerClient.getBlobClient("tagged0.txt");
+        index.setMetadata(blob, Collections.singletonMap("category", "green"));
+
+        System.out.println("Find the green blobs:");
+        String query = index.equalityQuery(Collections.singletonMap("category", "green"));
+        // The tag index is updated asynchronously, wait until it reflects all four green blobs
+        final List<String> names = new ArrayList<>();
+        boolean indexed = ScenarioRunner.waitUntil(() -> {
+            names.clear();
+            index.find(query).forEach(item -> names.add(item.getName()));
+            return names.size() == 4;
+        }, PROPAGATION_DEADLINE, POLL_INTERVAL);
+        names.forEach(name -> System.out.printf(" %s%n", name));
+        if (!indexed) {
+            throw new IllegalStateException(String.format("The tag index returned %d of the 4 green blobs after %d seconds.",
+                    names.size(), PROPAGATION_DEADLINE.getSeconds()));
+        }
+    }
 
+    /**
+     * Spread a container over the accounts of the numbered connection strings, then download and copy it with
+     * listings merged across the accounts. Without numbered connection strings the single account is the only shard.
+     *
+     * @param containerClient The container provisioned for the sample, which the sharded container is copied to.
+     */
+    private void shardedAccounts(BlobContainerClient containerClient) throws IOException, InterruptedException {
+        ShardedBlobServiceClient accounts = BlobClientProvider.getShardedBlobServiceClient();
+        String containerName = DataGenerator.createRandomName("shardedcontainer");
+        System.out.printf("Create container %s on %d accounts%n", containerName, accounts.getShards().size());
+        accounts.createContainerOnAllShards(containerName);
+        Path downloadDirectory = Files.createTempDirectory("sharded");
         try {
-            System.out.println("Create container");
-            // Create the container if it does not exist
-            try {
-                containerClient.create();
-            } catch (Exception ex) {
-                if (!(ex instanceof BlobStorageException)
-                        || !BlobErrorCode.CONTAINER_ALREADY_EXISTS.equals(((BlobStorageException)ex).getErrorCode())) {
-                    throw ex;
-                }
+            System.out.println("Upload blobs, each to the account its name hashes to");
+            for (int i = 0; i < 8; i++) {
+                byte[] content = String.format("sharded blob %d", i).getBytes();
+                BlobTransfer.uploadBytes(accounts.getBlobClient(containerName, String.format("docs/sharded%d.txt", i))
+                        .getBlockBlobClient(), content, content.length, null, null, null);
             }
 
-            System.out.println("Set container permissions");
-            OffsetDateTime startOn = OffsetDateTime.now(ZoneOffset.UTC);
-            OffsetDateTime expiresOn = startOn.plusMinutes(30);
-            containerClient.getAccessPolicy().getIdentifiers().forEach(blobSignedIdentifier -> {
-                blobSignedIdentifier.setAccessPolicy(new BlobAccessPolicy().setStartsOn(startOn).setExpiresOn(expiresOn).setPermissions("lc"));
-            });
-            containerClient.setAccessPolicy(PublicAccessType.CONTAINER, containerClient.getAccessPolicy().getIdentifiers());
-
-            System.out.println("Wait 30 seconds for the container permissions to take effect");
-            Thread.sleep(30000);
-
-            System.out.println("Get container permissions");
-            // Get container permissions
-            System.out.printf(" Public access: %s%n", containerClient.getAccessPolicy().getBlobAccessType());
-            containerClient.getAccessPolicy().getIdentifiers().forEach(blobSignedIdentifier -> {
-                System.out.printf("  Permissions: %s%n", blobSignedIdentifier.getAccessPolicy().getPermissions());
-                System.out.printf("  Start: %s%n", blobSignedIdentifier.getAccessPolicy().getStartsOn());
-                System.out.printf("  Expiry: %s%n", blobSignedIdentifier.getAccessPolicy().getExpiresOn());
-                // Clear permissions
-                blobSignedIdentifier.setAccessPolicy(new BlobAccessPolicy());
-            });
-            System.out.println("Clear container permissions");
-            containerClient.setAccessPolicy(PublicAccessType.CONTAINER, containerClient.getAccessPolicy().getIdentifiers());
+            try (BlobReplicator replicator = new BlobReplicator(BlobTransfer.MAX_RANGE_MD5_SIZE, 4, 4)) {
+                // Adding an account remaps some names to it, their blobs have to be moved before they can be read
+                System.out.println("Move the blobs that are not on the account they are routed to");
+                ShardedBlobServiceClient.RebalanceResult rebalanced = accounts.rebalance(containerName, replicator, 4);
+                System.out.printf(" Moved %d blobs, discarded %d stale copies, kept %d blobs with snapshots%n",
+                        rebalanced.getMoved(), rebalanced.getDiscarded(), rebalanced.getKept());
+
+                System.out.println("Download the blobs from every account");
+                BlobBulkDownload.DownloadResult downloaded = BlobBulkDownload.download(accounts, containerName, "docs/",
+                        downloadDirectory, new BlobBulkDownload.DownloadOptions());
+                System.out.printf(" %s%n", downloaded);
+
+                System.out.println("Copy the blobs from every account to a single container");
+                BlobReplicator.Result copied = replicator.replicate(accounts, containerName, "docs/", containerClient);
+                System.out.printf(" Copied %d blobs, %d bytes%n", copied.getBlobs(), copied.getBytes());
+            }
         } finally {
-            containerClient.delete();
-            System.out.println(String.format("Successfully deleted the container: %s", containerClient.getBlobContainerName()));
+            accounts.deleteContainerOnAllShards(containerName);
+            try (Stream<Path> files = Files.walk(downloadDirectory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
         }
     }
 
     /**
-     * Mangage blob properties
+     * Generate a small dataset of objects with log-normal sizes under two levels of prefixes and upload it straight into
+     * the container. The same seed always produces the same names, sizes and content.
      *
-     * @param blobServiceClient Azure Storage Blob Service
+     * @param containerClient The container provisioned for the sample.
      */
-    private void blobProperties(BlobServiceClient blobServiceClient) throws IOException {
-        // Get a reference to a container
-        // The container name must be lower case
-        String containerName = "blobadvancedcontainer" + UUID.randomUUID().toString().replace("-", "");
-        BlobContainerClient containerClient = blobServiceClient.getBlobContainerClient(containerName);
+    private void syntheticDataset(BlobContainerClient containerClient) throws IOException {
+        SyntheticDataset dataset = new SyntheticDataset(42, 100, SyntheticDataset.logNormal(4 * 1024, 1.0), 256 * 1024, 2, 4);
+        System.out.printf("Upload %d synthetic objects%n", dataset.getObjectCount());
+        dataset.upload(containerClient, 8);
+
+        System.out.println("List the objects and compare their sizes with the dataset");
+        Map<String, Integer> sizes = new HashMap<>();
+        for (long index = 0; index < dataset.getObjectCount(); index++) {
+            SyntheticDataset.SyntheticObject object = dataset.get(index);
+            sizes.put(object.getName(), object.getSize());
+        }
+        long listed = 0;
+        for (BlobItem item : containerClient.listBlobs()) {
+            Integer size = sizes.get(item.getName());
+            if (size == null || size.longValue() != item.getProperties().getContentLength()) {
+                throw new IllegalStateException(String.format("The blob \"%s\" does not match the dataset.", item.getName()));
+            }
+            listed++;
+        }
+        if (listed != dataset.getObjectCount()) {
+            throw new IllegalStateException(String.format("Listed %d of the %d objects.", listed, dataset.getObjectCount()));
+        }
+        System.out.printf(" All %d objects match%n", listed);
+    }
 
-        try {
-            System.out.println("Create container");
-            // Create the container if it does not exist
-            try {
-                containerClient.create();
-            } catch (Exception ex) {
-                if (!(ex instanceof BlobStorageException)
-                        || !BlobErrorCode.CONTAINER_ALREADY_EXISTS.equals(((BlobStorageException)ex).getErrorCode())) {
-                    throw ex;
-                }
+    /**
+     * Pack many small objects into one blob with an index, then read some of them back with ranged reads.
+     *
+     * @param containerClient The container provisioned for the sample.
+     */
+    private void objectPack(BlobContainerClient containerClient) throws IOException {
+        Random random = new Random();
+        Map<String, byte[]> objects = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            byte[] content = new byte[100 + random.nextInt(4 * 1024)];
+            random.nextBytes(content);
+            objects.put(String.format("object%03d", i), content);
+        }
+
+        System.out.printf("Pack %d small objects into one blob%n", objects.size());
+        BlobClient packBlob = containerClient.getBlobClient("objects.pack");
+        try (BlobPack.Writer writer = new BlobPack.Writer(packBlob.getBlockBlobClient(), 64 * 1024)) {
+            for (Map.Entry<String, byte[]> object : objects.entrySet()) {
+                writer.add(object.getKey(), object.getValue());
             }
+        }
 
-            Random random = new Random();
-            File tempFile = DataGenerator.createTempLocalFile("blockblob-", ".tmp", (128 * 1024) + random.nextInt(128 * 1024));
-            System.out.println(String.format("Successfully created the file \"%s\"", tempFile.getAbsolutePath()));
-
-            System.out.println("Use a sample file as a block blob");
-            BlobClient blob = containerClient.getBlobClient("blockblob1.tmp");
-
-            // Set blob properties
-            System.out.println("Set blob properties");
-            BlobHttpHeaders blobHeaders = new BlobHttpHeaders().setContentLanguage("en").setContentEncoding("UTF8").setContentType("text/plain");
-            // Upload the block blob
-            blob.uploadFromFileWithResponse(new BlobUploadFromFileOptions(tempFile.getAbsolutePath()).setHeaders(blobHeaders), Duration.ofSeconds(30), Context.NONE);
-            System.out.println("Successfully uploaded the blob");
-
-            System.out.println("Get blob properties");
-            BlobProperties properties = blob.getProperties();
-            System.out.printf("Blob type: %s%n", properties.getBlobType());
-            System.out.printf("Cache control: %s%n", properties.getCacheControl());
-            System.out.printf("Content disposition: %s%n", properties.getContentDisposition());
-            System.out.printf("Content encoding: %s%n", properties.getContentEncoding());
-            System.out.printf("Content language: %s%n", properties.getContentLanguage());
-            System.out.printf("Content type: %s%n", properties.getContentType());
-            System.out.printf("Last modified: %s%n", properties.getLastModified());
-            System.out.printf("Lease state: %s%n", properties.getLeaseState());
-            System.out.printf("Lease status: %s%n", properties.getLeaseStatus());
-        } finally {
-            containerClient.delete();
-            System.out.println(String.format("Successfully deleted the container: %s", containerClient.getBlobContainerName()));
+        System.out.println("Read objects back from the pack");
+        BlobPack.Reader reader = new BlobPack.Reader(packBlob);
+        List<String> names = new ArrayList<>(reader.names()).subList(0, 10);
+        Map<String, byte[]> read = new HashMap<>(reader.readAll(names));
+        read.put("object007", reader.read("object007"));
+        for (Map.Entry<String, byte[]> object : read.entrySet()) {
+            if (!Arrays.equals(object.getValue(), objects.get(object.getKey()))) {
+                throw new IllegalStateException(String.format("The object \"%s\" read from the pack differs.", object.getKey()));
+            }
         }
+        System.out.printf(" Read %d objects from a pack of %d%n", read.size(), reader.names().size());
     }
 
     /**
-     * Manage the blob metadata
+     * Download a blob through a local disk cache that revalidates on every access, so a second download is served from
+     * disk and a download after the blob changed fetches the new content.
      *
-     * @param blobServiceClient Azure Storage Blob Service
+     * @param containerClient The container provisioned for the sample.
      */
-    private void blobMetadata(BlobServiceClient blobServiceClient) throws IOException {
-        // Get a reference to a container
-        // The container name must be lower case
-        BlobContainerClient containerClient = blobServiceClient.getBlobContainerClient("blobadvancedcontainer"
-                + UUID.randomUUID().toString().replace("-", ""));
+    private void downloadCache(BlobContainerClient containerClient) throws IOException {
+        BlobClient blob = containerClient.getBlobClient("cached.txt");
+        byte[] first = "first version".getBytes();
+        BlobTransfer.uploadBytes(blob.getBlockBlobClient(), first, first.length, null, null, null);
 
+        Path cacheDirectory = Files.createTempDirectory("blobcache");
+        Path downloaded = cacheDirectory.resolveSibling(cacheDirectory.getFileName() + ".txt");
         try {
-            System.out.println("Create container");
-            // Create the container if it does not exist
-            try {
-                containerClient.create();
-            } catch (Exception ex) {
-                if (!(ex instanceof BlobStorageException)
-                        || !BlobErrorCode.CONTAINER_ALREADY_EXISTS.equals(((BlobStorageException)ex).getErrorCode())) {
-                    throw ex;
-                }
+            BlobDownloadCache cache = new BlobDownloadCache(cacheDirectory, 1024 * 1024, Duration.ZERO);
+            System.out.println("Download the blob twice, the second time from the cache");
+            cache.downloadToFile(blob, downloaded.toString());
+            cache.downloadToFile(blob, downloaded.toString());
+            checkContent(downloaded, first);
+            System.out.printf(" Cached %d bytes%n", cache.getTotalBytes());
+
+            System.out.println("Overwrite the blob and download it again");
+            byte[] second = "second version".getBytes();
+            BlobTransfer.uploadBytes(blob.getBlockBlobClient(), second, second.length, null, null, null);
+            cache.downloadToFile(blob, downloaded.toString());
+            checkContent(downloaded, second);
+            System.out.printf(" Downloaded \"%s\"%n", new String(Files.readAllBytes(downloaded)));
+        } finally {
+            Files.deleteIfExists(downloaded);
+            try (Stream<Path> files = Files.walk(cacheDirectory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
             }
+        }
+    }
 
-            Random random = new Random();
-            File tempFile = DataGenerator.createTempLocalFile("blockblob-", ".tmp", (128 * 1024) + random.nextInt(128 * 1024));
-            System.out.println(String.format("Successfully created the file \"%s\"", tempFile.getAbsolutePath()));
+    /**
+     * Read a blob through a seekable channel, first at a few random positions and then sequentially so the channel reads
+     * ahead, and check the bytes against the uploaded content.
+     *
+     * @param containerClient The container provisioned for the sample.
+     */
+    private void seekableChannel(BlobContainerClient containerClient) throws IOException {
+        BlobClient blob = containerClient.getBlobClient("seekable.bin");
+        byte[] content = new byte[1024 * 1024];
+        Random random = new Random();
+        random.nextBytes(content);
+        BlobTransfer.uploadBytes(blob.getBlockBlobClient(), content, content.length, null, null, null);
+
+        try (BlobSeekableByteChannel channel = new BlobSeekableByteChannel(blob, 64 * 1024, 8, 2)) {
+            System.out.println("Read the blob at random positions");
+            ByteBuffer buffer = ByteBuffer.allocate(1000);
+            for (int i = 0; i < 5; i++) {
+                int offset = random.nextInt(content.length - buffer.capacity());
+                buffer.clear();
+                channel.position(offset);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IllegalStateException(String.format("The blob ended before offset %d.", channel.position()));
+                    }
+                }
+                checkRange(buffer.array(), content, offset);
+                System.out.printf(" Read %d bytes at offset %d%n", buffer.capacity(), offset);
+            }
 
-            // Use a sample file as a block blob
-            System.out.println("Upload a sample file as a block blob");
-            BlobClient blob = containerClient.getBlobClient("blockblob1.tmp");
+            System.out.println("Read the blob from start to end");
+            buffer = ByteBuffer.allocate(48 * 1024);
+            channel.position(0);
+            long position = 0;
+            int read;
+            while ((read = channel.read(buffer)) >= 0) {
+                checkRange(Arrays.copyOf(buffer.array(), read), content, position);
+                position += read;
+                buffer.clear();
+            }
+            if (position != channel.size()) {
+                throw new IllegalStateException(String.format("Read %d of %d bytes.", position, channel.size()));
+            }
+            System.out.printf(" Read %d bytes%n", position);
+        }
+    }
 
-            System.out.println("Set blob metadata");
-            Map<String, String> metadata = blob.exists() ? blob.getProperties().getMetadata() : new HashMap();
-            metadata = metadata != null ? metadata : new HashMap();
-            metadata.put("key1", "value1");
-            metadata.put("foo", "bar");
+    private static void checkRange(byte[] actual, byte[] content, long offset) {
+        byte[] expected = Arrays.copyOfRange(content, (int) offset, (int) offset + actual.length);
+        if (!Arrays.equals(actual, expected)) {
+            throw new IllegalStateException(String.format("The bytes read at offset %d do not match the blob.", offset));
+        }
+    }
 
-            // Upload the block blob
-            blob.uploadFromFileWithResponse(new BlobUploadFromFileOptions(tempFile.getAbsolutePath()).setMetadata(metadata), Duration.ofSeconds(30), Context.NONE);
-            System.out.println("Successfully uploaded the blob");
+    private static void checkContent(Path file, byte[] expected) throws IOException {
+        if (!Arrays.equals(Files.readAllBytes(file), expected)) {
+            throw new IllegalStateException(String.format("The file \"%s\" does not hold the expected content.", file));
+        }
+    }
 
-            System.out.println("Get blob metadata:");
-            blob.getProperties().getMetadata().entrySet()
-                    .forEach(pair -> System.out.printf(" %s = %s%n", pair.getKey(), pair.getValue()));
+    /**
+     * Check that requests of a class held back by its bytes per second cap are served once the cap allows them, even
+     * when they arrived while the class was at its concurrency limit. Runs locally, no request reaches the service.
+     */
+    private void transferSchedulerRateCap() throws InterruptedException {
+        Map<TransferScheduler.Priority, TransferScheduler.ClassLimits> limits = new EnumMap<>(TransferScheduler.Priority.class);
+        limits.put(TransferScheduler.Priority.BACKGROUND,
+                new TransferScheduler.ClassLimits().setBytesPerSecond(1000).setMaxConcurrent(1));
+        TransferScheduler scheduler = new TransferScheduler(4, limits);
+
+        System.out.println("Run three 800 byte background requests capped at 1000 bytes per second");
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < 3; i++) {
+                executor.execute(() -> {
+                    try {
+                        // Hold the slot for a while so the other requests arrive while the class is at its limit
+                        scheduler.run(TransferScheduler.Priority.BACKGROUND, "check", 800, () -> {
+                            try {
+                                Thread.sleep(100);
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                            }
+                            return null;
+                        });
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            }
+            executor.shutdown();
+            // The cap lets the three requests through in about 1.4 seconds
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("The capped requests were still waiting after 10 seconds.");
+            }
         } finally {
-            containerClient.delete();
-            System.out.println(String.format("Successfully deleted the container: %s", containerClient.getBlobContainerName()));
+            executor.shutdownNow();
         }
+        System.out.printf(" Served in %d ms%n", (System.nanoTime() - start) / 1000000);
     }
 
     /**
@@ -32,6 +32,7 @@ import com.azure.storage.blob.specialized.AppendBlobClient;
 import com.azure.storage.blob.specialized.BlobClientBase;
 import com.azure.storage.blob.specialized.BlobLeaseClient;
 import com.azure.storage.blob.specialized.BlobLeaseClientBuilder;
+import com.azure.storage.blob.specialized.BlobOutputStream;
 import com.azure.storage.blob.specialized.BlockBlobClient;
 import com.azure.storage.blob.specialized.PageBlobClient;
 
@@ -39,10 +40,14 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Random;
 
@@ -55,8 +60,10 @@ public class BlobBasics {
 
     /**
      * Azure Storage Blob Sample
+     *
+     * @throws Exception when a sample failed, after the containers have been deleted
      */
-    public static void runSamples() {
+    public static void runSamples() throws Exception {
 
         System.out.println("Azure Storage Blob basic sample - Starting.");
 
@@ -97,13 +104,16 @@ public class BlobBasics {
                 });
             });
 
-            // Acquire a lease on a container so that another client cannot write to it or delete it
+            // Acquire a finite lease on a container so that another client cannot write to it or delete it.
+            // The lease manager keeps renewing it in the background until it is released.
             System.out.println("\nAcquiring a lease on a container to prevent writes and deletes.");
-            BlobLeaseClient blockLeaseBlob = new BlobLeaseClientBuilder().containerClient(container1).buildClient();
-            blockLeaseBlob.acquireLease(-1);
-            System.out.println(String.format("\tSuccessfully acquired a lease on container %s. Lease state: %s.", container1.getBlobContainerName(), container1.getProperties().getLeaseStatus().toString()));
-            blockLeaseBlob.breakLease();
-            System.out.println(String.format("\tSuccessfully broke the lease on container %s. Lease state: %s.", container1.getBlobContainerName(), container1.getProperties().getLeaseStatus().toString()));
+            try (BlobLeaseManager leaseManager = new BlobLeaseManager(4)) {
+                BlobLeaseManager.HeldLease containerLease = leaseManager.acquire(container1, BlobLeaseManager.MAX_LEASE_DURATION,
+                        (lease, cause) -> System.out.println(String.format("\tLost the lease on %s.", lease.getResourceUrl())));
+                System.out.println(String.format("\tSuccessfully acquired a lease on container %s. Lease state: %s.", container1.getBlobContainerName(), container1.getProperties().getLeaseStatus().toString()));
+                leaseManager.release(containerLease);
+                System.out.println(String.format("\tSuccessfully released the lease on container %s. Lease state: %s.", container1.getBlobContainerName(), container1.getProperties().getLeaseStatus().toString()));
+            }
 
             // To view the uploaded blobs in a browser, you have two options.
             //   - The first option is to use a Shared Access Signature (SAS) token to delegate access to the resource.
@@ -113,8 +123,6 @@ public class BlobBasics {
             container1.setAccessPolicy(PublicAccessType.CONTAINER, container1.getAccessPolicy().getIdentifiers());
             container2.setAccessPolicy(PublicAccessType.CONTAINER, container2.getAccessPolicy().getIdentifiers());
 
-        } catch (Exception ex) {
-            PrintHelper.printException(ex);
         } finally {
             // Delete the containers (If you do not want to delete the container comment out the block of code below)
             System.out.print("\nDelete the containers.");
@@ -172,7 +180,8 @@ public class BlobBasics {
         // Upload a sample file as a block blob
         System.out.println("\n\tUpload a sample file as a block blob.");
         BlobClient blobClient = container.getBlobClient("blockblob1.tmp");
-        blobClient.uploadFromFile(tempFile1.getAbsolutePath());
+        // Small blocks so the refresh of the snapshot copy below has blocks to reuse
+        BlobTransfer.uploadFile(blobClient.getBlockBlobClient(), tempFile1.getAbsolutePath(), 32 * 1024, null, null);
         System.out.println("\t\tSuccessfully uploaded the blob.");
 
         // Create a read-only snapshot of the blob
@@ -182,7 +191,7 @@ public class BlobBasics {
 
         // Modify the blob by overwriting it
         System.out.println("\n\tOverwrite the blob by uploading the second sample file.");
-        blobClient.uploadFromFile(tempFile2.getAbsolutePath(), true);
+        BlobTransfer.uploadFile(blobClient.getBlockBlobClient(), tempFile2.getAbsolutePath(), TransferProfile.current(), null, null);
         System.out.println("\t\tSuccessfully overwrote the blob.");
 
         // Acquire a lease on the blob so that another client cannot write to it or delete it
@@ -213,13 +222,13 @@ public class BlobBasics {
         // Upload a sample file as a block blob
         System.out.println("\n\tUpload the sample file as a block blob.");
         BlobClient blobClient2 = container.getBlobClient("blockblob3.tmp");
-        blobClient2.uploadFromFile(tempFile4.getAbsolutePath());
+        BlobTransfer.uploadFile(blobClient2.getBlockBlobClient(), tempFile4.getAbsolutePath(), TransferProfile.current(), null, null);
         System.out.println("\t\tSuccessfully uploaded the blob.");
 
         // Copy the blob
         System.out.println(String.format("\n\tCopying blob \"%s\".", blobClient2.getBlobUrl()));
         BlockBlobClient blockBlob3Copy = container.getBlobClient(blobClient2.getBlobName() + ".copy").getBlockBlobClient();
-        blockBlob3Copy.beginCopy(new BlobBeginCopyOptions(blobClient2.getBlobUrl()));
+        TransferScheduler.shared().run(0, () -> blockBlob3Copy.beginCopy(new BlobBeginCopyOptions(blobClient2.getBlobUrl())));
         waitForCopyToComplete(blockBlob3Copy);
         System.out.println("\t\tSuccessfully copied the blob.");
 
@@ -227,7 +236,7 @@ public class BlobBasics {
         System.out.println(String.format("\n\tAborting while copying blob \"%s\".", blobClient2.getBlobUrl()));
         BlockBlobClient blockBlob3CopyAborted = container.getBlobClient(blobClient2.getBlobName() + ".copyaborted").getBlockBlobClient();
         boolean copyAborted = true;
-        String copyId = blockBlob3CopyAborted.beginCopy(new BlobBeginCopyOptions(blobClient2.getBlobUrl())).poll().getValue().getCopyId();
+        String copyId = TransferScheduler.shared().run(0, () -> blockBlob3CopyAborted.beginCopy(new BlobBeginCopyOptions(blobClient2.getBlobUrl()))).poll().getValue().getCopyId();
         try {
             blockBlob3CopyAborted.abortCopyFromUrl(copyId);
         } catch (Exception ex) {
@@ -248,19 +257,34 @@ public class BlobBasics {
 
         String downloadedBlobPath = String.format("%ssnapshotof-%s", System.getProperty("java.io.tmpdir"), blockBlob1Snapshot.getBlobName());
         System.out.println(String.format("\t\tDownload the blob snapshot from \"%s\" to \"%s\".", blockBlob1Snapshot.getBlobUrl(), downloadedBlobPath));
-        blockBlob1Snapshot.downloadToFile(downloadedBlobPath);
+        BlobTransfer.downloadToFileVerified(blockBlob1Snapshot, downloadedBlobPath);
         new File(downloadedBlobPath).deleteOnExit();
-        System.out.println("\t\t\tSuccessfully downloaded the blob snapshot.");
+        System.out.println("\t\t\tSuccessfully downloaded and verified the blob snapshot.");
+
+        // Upload a new version of the blob that keeps the snapshot's content and appends the second sample file
+        System.out.println("\t\tUpload a new version of the blob: the first sample file followed by the second.");
+        File tempFile12 = File.createTempFile("blockblob-", ".tmp");
+        tempFile12.deleteOnExit();
+        Files.write(tempFile12.toPath(), Files.readAllBytes(tempFile1.toPath()));
+        Files.write(tempFile12.toPath(), Files.readAllBytes(tempFile2.toPath()), StandardOpenOption.APPEND);
+        BlobTransfer.uploadFile(blobClient.getBlockBlobClient(), tempFile12.getAbsolutePath(), 32 * 1024, null, null);
+
+        // Bring the downloaded snapshot up to date with the blob, reading only the blocks that changed
+        System.out.println(String.format("\t\tRefresh \"%s\" to the current blob by diffing the block lists.", downloadedBlobPath));
+        BlobDeltaDownload.Result refreshed = BlobDeltaDownload.refresh(blobClient, Paths.get(downloadedBlobPath),
+                blockBlob1Snapshot.getSnapshotId(), TransferProfile.current().getDownloadConcurrency());
+        System.out.println(String.format("\t\t\tSuccessfully refreshed the copy to snapshot %s, %d bytes downloaded%s and %d bytes reused.",
+                refreshed.getSnapshot(), refreshed.getDownloadedBytes(), refreshed.isFullDownload() ? " in full" : "", refreshed.getReusedBytes()));
 
         downloadedBlobPath = String.format("%scopyof-%s", System.getProperty("java.io.tmpdir"), blobClient.getBlobName());
         System.out.println(String.format("\t\tDownload the blob from \"%s\" to \"%s\".", blobClient.getBlobUrl(), downloadedBlobPath));
-        blobClient.downloadToFile(downloadedBlobPath);
+        BlobTransfer.downloadToFileVerified(blobClient, downloadedBlobPath);
         new File(downloadedBlobPath).deleteOnExit();
         System.out.println("\t\t\tSuccessfully downloaded the blob.");
 
         downloadedBlobPath = String.format("%scopyof-%s", System.getProperty("java.io.tmpdir"), blockBlobClient1.getBlobName());
         System.out.println(String.format("\t\tDownload the blob from \"%s\" to \"%s\".", blockBlobClient1.getBlobUrl(), downloadedBlobPath));
-        blockBlobClient1.downloadToFile(downloadedBlobPath);
+        BlobTransfer.downloadToFileVerified(blockBlobClient1, downloadedBlobPath);
         new File(downloadedBlobPath).deleteOnExit();
         System.out.println("\t\t\tSuccessfully downloaded the blob.");
 
@@ -295,9 +319,9 @@ public class BlobBasics {
         try {
             tempFileInputStream = new FileInputStream(tempFile);
             System.out.println("\t\t\tUploading range start: 0, length: 1024.");
-            pageBlob.uploadPages(new PageRange().setStart(0).setEnd(1024), tempFileInputStream);
+            uploadPages(pageBlob, new PageRange().setStart(0).setEnd(1024), tempFileInputStream);
             System.out.println("\t\t\tUploading range start: 4096, length: 1536.");
-            pageBlob.uploadPages(new PageRange().setStart(4096).setEnd(4096 + 1536), tempFileInputStream);
+            uploadPages(pageBlob, new PageRange().setStart(4096).setEnd(4096 + 1536), tempFileInputStream);
         } finally {
             if (tempFileInputStream != null) {
                 tempFileInputStream.close();
@@ -317,7 +341,7 @@ public class BlobBasics {
             tempFileInputStream = new FileInputStream(tempFile);
             System.out.println("\t\t\tUploading range start: 8192, length: 4096.");
             tempFileInputStream.getChannel().position(8192);
-            pageBlob.uploadPages(new PageRange().setStart(8192).setEnd(8192 + 4096), tempFileInputStream);
+            uploadPages(pageBlob, new PageRange().setStart(8192).setEnd(8192 + 4096), tempFileInputStream);
             System.out.println("\t\t\tClearing range start: 4608, length: 512.");
             pageBlob.clearPages(new PageRange().setStart(4608).setEnd(4608 + 512));
         } finally {
@@ -339,18 +363,30 @@ public class BlobBasics {
             System.out.println(String.format("\t\tRange start offset: %d, end offset: %d", pageRange.getStart(), pageRange.getEnd()));
         }
 
+        // Write many small records through a write-back page cache, which merges them into a few Put Page requests
+        System.out.println("\n\tWrite small records through a write-back page cache.");
+        try (PageBlobDevice device = new PageBlobDevice(pageBlob, 256, 16, null)) {
+            byte[] record = new byte[100];
+            for (int i = 0; i < 400; i++) {
+                Arrays.fill(record, (byte) i);
+                device.write(16384 + (long) i * record.length, record, 0, record.length);
+            }
+            device.flush();
+            System.out.println(String.format("\t\tWrote 400 records of %d bytes with %d uploads and %d downloads.", record.length, device.getUploads(), device.getDownloads()));
+        }
+
         // Download the blob and its snapshot
         System.out.println("\n\tDownload the blob and its snapshot.");
 
         String downloadedPageBlobSnapshotPath = String.format("%ssnapshotof-%s", System.getProperty("java.io.tmpdir"), pageBlobSnapshot.getBlobName());
         System.out.println(String.format("\t\tDownload the blob snapshot from \"%s\" to \"%s\".", pageBlobSnapshot.getBlobUrl(), downloadedPageBlobSnapshotPath));
-        pageBlobSnapshot.downloadToFile(downloadedPageBlobSnapshotPath);
+        TransferScheduler.shared().run(tempFile.length(), () -> pageBlobSnapshot.downloadToFile(downloadedPageBlobSnapshotPath));
         new File(downloadedPageBlobSnapshotPath).deleteOnExit();
         System.out.println("\t\t\tSuccessfully downloaded the blob snapshot.");
 
         String downloadedPageBlobPath = String.format("%scopyof-%s", System.getProperty("java.io.tmpdir"), pageBlob.getBlobName());
         System.out.println(String.format("\t\tDownload the blob from \"%s\" to \"%s\".", pageBlob.getBlobUrl(), downloadedPageBlobPath));
-        pageBlob.downloadToFile(downloadedPageBlobPath);
+        TransferScheduler.shared().run(tempFile.length(), () -> pageBlob.downloadToFile(downloadedPageBlobPath));
         new File(downloadedPageBlobPath).deleteOnExit();
         System.out.println("\t\t\tSuccessfully downloaded the blob.");
     }
@@ -380,14 +416,14 @@ public class BlobBasics {
         ByteBuffer fileByteBuffer = ByteBuffer.allocate(Long.valueOf(fileChannel.size()).intValue());
         fileChannel.read(fileByteBuffer);
         fileChannel.close();
-        appendBlob.getBlobOutputStream().write(fileByteBuffer.array());
+        appendThroughStream(appendBlob, fileByteBuffer.array());
         fileByteBuffer.clear();
 
         fileChannel = FileChannel.open(tempFile2.toPath());
         fileByteBuffer = ByteBuffer.allocate(Long.valueOf(fileChannel.size()).intValue());
         fileChannel.read(fileByteBuffer);
         fileChannel.close();
-        appendBlob.getBlobOutputStream().write(fileByteBuffer.array());
+        appendThroughStream(appendBlob, fileByteBuffer.array());
         fileByteBuffer.clear();
         System.out.println("\t\tSuccessfully created the append blob and appended data to it.");
 
@@ -395,7 +431,7 @@ public class BlobBasics {
         byte[] randomBytes = new byte[4096];
         for (int i = 0; i < 8; i++) {
             random.nextBytes(randomBytes);
-            appendBlob.appendBlock(new ByteArrayInputStream(randomBytes), 4096);
+            TransferScheduler.shared().run(randomBytes.length, () -> appendBlob.appendBlock(new ByteArrayInputStream(randomBytes), 4096));
         }
 
         // Download the blob
@@ -403,14 +439,16 @@ public class BlobBasics {
             System.out.println("\n\tDownload the blob.");
             String downloadedAppendBlobPath = String.format("%scopyof-%s", System.getProperty("java.io.tmpdir"), appendBlob.getBlobName());
             System.out.println(String.format("\t\tDownload the blob from \"%s\" to \"%s\".", appendBlob.getBlobUrl(), downloadedAppendBlobPath));
-            appendBlob.downloadToFile(downloadedAppendBlobPath);
+            long appendBlobSize = appendBlob.getProperties().getBlobSize();
+            TransferScheduler.shared().run(appendBlobSize, () -> appendBlob.downloadToFile(downloadedAppendBlobPath));
             new File(downloadedAppendBlobPath).deleteOnExit();
             System.out.println("\t\t\tSuccessfully downloaded the blob.");
         }
     }
 
     /**
-     * Creates and returns a temporary local file for use by the sample.
+     * Uploads a file as a block blob using a block list. Every block is staged with its MD5 and the MD5 of the
+     * whole file, computed in the same pass, is committed as the blob's Content-MD5.
      *
      * @param blockBlob CloudBlockBlob object.
      * @param filePath  The path to the file to be uploaded.
@@ -418,47 +456,31 @@ public class BlobBasics {
      */
     private static void uploadFileBlocksAsBlockBlob(BlockBlobClient blockBlob, String filePath) throws IOException {
 
-        FileInputStream fileInputStream = null;
-        ByteArrayInputStream byteInputStream = null;
-        byte[] bytes = null;
-        try {
-            // Open the file
-            fileInputStream = new FileInputStream(filePath);
-            // Split the file into 32K blocks (block size deliberately kept small for the demo) and upload all the blocks
-            int blockNum = 0;
-            String blockId = null;
-            String blockIdEncoded = null;
-            ArrayList<String> blockList = new ArrayList<String>();
-            while (fileInputStream.available() > (32 * 1024)) {
-                bytes = new byte[32 * 1024];
-                fileInputStream.read(bytes);
-                byteInputStream = new ByteArrayInputStream(bytes);
-                blockId = String.format("%05d", blockNum);
-                blockIdEncoded = Base64.getEncoder().encodeToString(blockId.getBytes());
-                blockBlob.stageBlock(blockIdEncoded, byteInputStream, 32 * 1024);
-                blockList.add(blockIdEncoded);
-                blockNum++;
-                System.out.println(bytes.length);
-            }
-            blockId = String.format("%05d", blockNum);
-            blockIdEncoded = Base64.getEncoder().encodeToString(blockId.getBytes());
-            bytes = new byte[fileInputStream.available()];
-            fileInputStream.read(bytes);
-            byteInputStream = new ByteArrayInputStream(bytes);
-            blockBlob.upload(byteInputStream, bytes.length, true);
-            blockList.add(blockIdEncoded);
-
-            // Commit the blocks
-            blockBlob.commitBlockList(blockList);
-        } finally {
-            // Close the file output stream writer
-            if (fileInputStream != null) {
-                fileInputStream.close();
-            }
-            if (byteInputStream != null) {
-                byteInputStream.close();
+        // Split the file into 32K blocks (block size deliberately kept small for the demo) and upload all the blocks
+        byte[] contentMd5 = BlobTransfer.uploadFile(blockBlob, filePath, 32 * 1024, null, null);
+        System.out.println(String.format("\t\tCommitted the block list with Content-MD5 %s.", Base64.getEncoder().encodeToString(contentMd5)));
+    }
+
+    /**
+     * Uploads pages from a stream once the transfer scheduler grants a slot.
+     *
+     * @param pageBlob    The page blob to write.
+     * @param pageRange   The pages to write.
+     * @param inputStream The stream to read the pages from.
+     * @throws IOException
+     */
+    private static void uploadPages(PageBlobClient pageBlob, PageRange pageRange, InputStream inputStream) throws IOException {
+        TransferScheduler.shared().run(pageRange.getEnd() - pageRange.getStart(), () -> pageBlob.uploadPages(pageRange, inputStream));
+    }
+
+    private static void appendThroughStream(AppendBlobClient appendBlob, byte[] data) throws IOException {
+        // The stream appends what it buffered when it is closed
+        TransferScheduler.shared().run(data.length, () -> {
+            try (BlobOutputStream blobOutputStream = appendBlob.getBlobOutputStream()) {
+                blobOutputStream.write(data);
             }
-        }
+            return null;
+        });
     }
 
     /**
@@ -0,0 +1,461 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.models.BlobDownloadResponse;
+import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.BlobItemProperties;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.ListBlobsOptions;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Downloads every blob under a container prefix to a local directory.
+ * The listing is streamed and every blob is scheduled as it is listed on one pool, whose size caps the requests in
+ * flight across all blobs. Blobs up to the range size are read with a single request; larger blobs are split into
+ * ranges read in parallel and written in place at their offsets, so a single large blob uses the whole pool. Every
+ * request is pinned to the listed ETag and checked against the service MD5, of the whole blob or of each range.
+ * Directories are created by the downloads that need them, in parallel. A file already present with the size and
+ * ETag of its blob is skipped; the ETag is kept in a user defined file attribute, or where the file system has none,
+ * the blob modification time is kept as the file modification time and compared instead. Files are written under a
+ * temporary name and renamed when complete, so an interrupted download never leaves a file that looks complete.
+ * Only the blobs in flight are held in memory.
+ */
+class BlobBulkDownload {
+
+    /**
+     * Name of the file attribute holding the ETag of the blob a file was downloaded from.
+     */
+    static final String ETAG_ATTRIBUTE = "blob.etag";
+
+    private static final String PARTIAL_SUFFIX = ".download";
+
+    /**
+     * Options of a download.
+     */
+    static final class DownloadOptions {
+        private int concurrency = TransferProfile.current().getDownloadConcurrency();
+        private int rangeSize = Math.min(TransferProfile.current().getDownloadRangeSize(), BlobTransfer.MAX_RANGE_MD5_SIZE);
+
+        int getConcurrency() {
+            return concurrency;
+        }
+
+        /**
+         * Sets the number of requests in flight across all blobs.
+         */
+        DownloadOptions setConcurrency(int concurrency) {
+            this.concurrency = Math.max(1, concurrency);
+            return this;
+        }
+
+        int getRangeSize() {
+            return rangeSize;
+        }
+
+        /**
+         * Sets the size of the ranges large blobs are split into, at most 4MB so the service hashes them. Blobs up to
+         * this size are read whole.
+         */
+        DownloadOptions setRangeSize(int rangeSize) {
+            if (rangeSize <= 0 || rangeSize > BlobTransfer.MAX_RANGE_MD5_SIZE) {
+                throw new IllegalArgumentException(String.format("The range size must be between 1 and %d bytes.",
+                        BlobTransfer.MAX_RANGE_MD5_SIZE));
+            }
+            this.rangeSize = rangeSize;
+            return this;
+        }
+    }
+
+    /**
+     * Counts of what a download did.
+     */
+    static final class DownloadResult {
+        private final AtomicLong downloaded = new AtomicLong();
+        private final AtomicLong downloadedBytes = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+
+        long getDownloaded() {
+            return downloaded.get();
+        }
+
+        long getDownloadedBytes() {
+            return downloadedBytes.get();
+        }
+
+        long getSkipped() {
+            return skipped.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("downloaded: %d (%d bytes), skipped: %d",
+                    getDownloaded(), getDownloadedBytes(), getSkipped());
+        }
+    }
+
+    private final String containerName;
+    private final Iterable<BlobItem> listing;
+    private final Function<String, BlobClient> blobClients;
+    private final String prefix;
+    private final Path root;
+    private final DownloadOptions options;
+    private final DownloadResult result = new DownloadResult();
+    private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    // Bounds the blobs in flight, and with them the memory used, while the listing runs ahead
+    private final Semaphore blobsInFlight;
+    private final ExecutorService requests;
+    private final Set<Path> createdDirectories = ConcurrentHashMap.newKeySet();
+    private boolean useETagAttribute;
+
+    private BlobBulkDownload(String containerName, Iterable<BlobItem> listing, Function<String, BlobClient> blobClients,
+                             String prefix, Path root, DownloadOptions options) {
+        this.containerName = containerName;
+        this.listing = listing;
+        this.blobClients = blobClients;
+        this.prefix = prefix;
+        this.root = root.toAbsolutePath().normalize();
+        this.options = options;
+        this.blobsInFlight = new Semaphore(options.getConcurrency() * 2);
+        this.requests = Executors.newFixedThreadPool(options.getConcurrency());
+    }
+
+    /**
+     * Downloads every blob under a prefix, keeping the blob names below the prefix as relative paths. A prefix
+     * naming a single blob downloads it into the directory under its own name.
+     *
+     * @param container The container to download from.
+     * @param prefix    The prefix of the blobs to download, empty for the whole container.
+     * @param root      The local directory to download to.
+     * @param options   The download options.
+     * @return What the download did
+     * @throws IOException
+     */
+    static DownloadResult download(BlobContainerClient container, String prefix, Path root, DownloadOptions options)
+            throws IOException {
+        return new BlobBulkDownload(container.getBlobContainerName(),
+                container.listBlobs(new ListBlobsOptions().setPrefix(prefix), null), container::getBlobClient,
+                prefix, root, options).run();
+    }
+
+    /**
+     * Downloads every blob under a prefix of a container spread over several accounts. The listings of all accounts
+     * are merged in name order and every blob is read from the account holding it.
+     *
+     * @param accounts      The accounts the container is spread over.
+     * @param containerName The name of the container to download from.
+     * @param prefix        The prefix of the blobs to download, empty for the whole container.
+     * @param root          The local directory to download to.
+     * @param options       The download options.
+     * @return What the download did
+     * @throws IOException
+     */
+    static DownloadResult download(ShardedBlobServiceClient accounts, String containerName, String prefix, Path root,
+                                   DownloadOptions options) throws IOException {
+        return new BlobBulkDownload(containerName,
+                accounts.listBlobs(containerName, new ListBlobsOptions().setPrefix(prefix)),
+                name -> accounts.getBlobClient(containerName, name), prefix, root, options).run();
+    }
+
+    private DownloadResult run() throws IOException {
+        // A bulk download is background work, it yields the slots to the other transfers
+        TransferScheduler.Scope scope = TransferScheduler.withPriority(TransferScheduler.Priority.BACKGROUND,
+                containerName);
+        try {
+            return runTagged();
+        } finally {
+            scope.close();
+        }
+    }
+
+    private DownloadResult runTagged() throws IOException {
+        try {
+            Files.createDirectories(root);
+            useETagAttribute = Files.getFileStore(root).supportsFileAttributeView(UserDefinedFileAttributeView.class);
+            for (BlobItem item : listing) {
+                if (failure.get() != null) {
+                    break;
+                }
+                // Skip directory markers, they have no content
+                if (item.getName().endsWith("/")) {
+                    continue;
+                }
+                final BlobItem blob = item;
+                blobsInFlight.acquire();
+                requests.execute(TransferScheduler.propagate(() -> {
+                    boolean scheduled = false;
+                    try {
+                        scheduled = startBlob(blob);
+                    } catch (Exception ex) {
+                        failure.compareAndSet(null, ex);
+                    } finally {
+                        if (!scheduled) {
+                            blobsInFlight.release();
+                        }
+                    }
+                }));
+            }
+            // Every blob in flight holds a permit until its last range is written
+            blobsInFlight.acquire(options.getConcurrency() * 2);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading.", ex);
+        } finally {
+            requests.shutdownNow();
+        }
+
+        Exception ex = failure.get();
+        if (ex instanceof IOException) {
+            throw (IOException) ex;
+        } else if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        }
+        return result;
+    }
+
+    /**
+     * Downloads a small blob, or schedules the ranges of a large one.
+     *
+     * @return true if ranges were scheduled, which then own the blob's permit
+     */
+    private boolean startBlob(BlobItem item) throws IOException {
+        BlobItemProperties properties = item.getProperties();
+        Path path = root.resolve(relativeName(item.getName())).normalize();
+        if (path.equals(root) || !path.startsWith(root)) {
+            EventLog.console().warn("Skipped blob \"%s\", its name leads outside %s.", item.getName(), root);
+            return false;
+        }
+        if (isCurrent(path, properties)) {
+            result.skipped.incrementAndGet();
+            return false;
+        }
+        Path parent = path.getParent();
+        if (!createdDirectories.contains(parent)) {
+            Files.createDirectories(parent);
+            createdDirectories.add(parent);
+        }
+
+        BlobClient blob = blobClients.apply(item.getName());
+        BlobRequestConditions requestConditions = new BlobRequestConditions().setIfMatch(properties.getETag());
+        Path partial = path.resolveSibling(path.getFileName() + PARTIAL_SUFFIX);
+        long size = properties.getContentLength();
+        if (size <= options.getRangeSize()) {
+            try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                MessageDigest digest = BlobTransfer.newMd5();
+                TransferScheduler.shared().run(size, () -> blob.downloadWithResponse(
+                        new ChannelOutputStream(channel, 0, digest), null, null, requestConditions, false, null,
+                        Context.NONE));
+                BlobTransfer.verifyMd5(properties.getContentMd5(), digest.digest(),
+                        String.format("blob \"%s\"", blob.getBlobUrl()));
+            } catch (IOException | RuntimeException ex) {
+                Files.deleteIfExists(partial);
+                throw ex;
+            }
+            complete(partial, path, properties);
+            return false;
+        }
+
+        final FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        final LargeBlob largeBlob = new LargeBlob(blob, requestConditions, properties, channel, partial, path,
+                (int) ((size + options.getRangeSize() - 1) / options.getRangeSize()));
+        // Each runner reads ranges until none are left, so a blob queues at most one runner per pool thread
+        int runners = Math.min(largeBlob.rangeCount, options.getConcurrency());
+        for (int i = 0; i < runners; i++) {
+            requests.execute(TransferScheduler.propagate(() -> runRanges(largeBlob)));
+        }
+        return true;
+    }
+
+    /**
+     * Returns the path of a blob below the root: its name after the prefix, without the separator that follows a
+     * prefix not ending in "/". A blob named exactly the prefix keeps its last name segment.
+     */
+    private String relativeName(String name) {
+        String relative = name.substring(prefix.length()).replaceFirst("^/+", "");
+        return relative.isEmpty() ? name.substring(name.lastIndexOf('/') + 1) : relative;
+    }
+
+    /**
+     * Reads ranges of a large blob until every range is claimed. The runner finishing the last range completes the
+     * blob and releases its permit.
+     */
+    private void runRanges(LargeBlob blob) {
+        int range;
+        while ((range = blob.nextRange.getAndIncrement()) < blob.rangeCount) {
+            try {
+                if (blob.failed.get() || failure.get() != null) {
+                    throw new IOException(String.format("Download of blob \"%s\" abandoned.", blob.client.getBlobUrl()));
+                }
+                long offset = (long) range * options.getRangeSize();
+                long count = Math.min(options.getRangeSize(), blob.properties.getContentLength() - offset);
+                MessageDigest digest = BlobTransfer.newMd5();
+                BlobDownloadResponse response = TransferScheduler.shared().run(count, () -> blob.client.downloadWithResponse(
+                        new ChannelOutputStream(blob.channel, offset, digest), new BlobRange(offset, count), null,
+                        blob.requestConditions, true, null, Context.NONE));
+                BlobTransfer.verifyMd5(response.getDeserializedHeaders().getContentMd5(), digest.digest(),
+                        String.format("range %d-%d of blob \"%s\"", offset, offset + count - 1, blob.client.getBlobUrl()));
+            } catch (Exception ex) {
+                if (blob.failed.compareAndSet(false, true)) {
+                    failure.compareAndSet(null, ex);
+                }
+            }
+            if (blob.doneRanges.incrementAndGet() == blob.rangeCount) {
+                finishLargeBlob(blob);
+            }
+        }
+    }
+
+    private void finishLargeBlob(LargeBlob blob) {
+        try {
+            blob.channel.close();
+            if (blob.failed.get()) {
+                Files.deleteIfExists(blob.partial);
+            } else {
+                complete(blob.partial, blob.path, blob.properties);
+            }
+        } catch (IOException | RuntimeException ex) {
+            failure.compareAndSet(null, ex);
+        } finally {
+            blobsInFlight.release();
+        }
+    }
+
+    /**
+     * Records the blob's ETag and time on the downloaded file and moves it into place.
+     */
+    private void complete(Path partial, Path path, BlobItemProperties properties) throws IOException {
+        if (useETagAttribute) {
+            Files.getFileAttributeView(partial, UserDefinedFileAttributeView.class)
+                    .write(ETAG_ATTRIBUTE, ByteBuffer.wrap(properties.getETag().getBytes(StandardCharsets.UTF_8)));
+        }
+        Files.setLastModifiedTime(partial, FileTime.from(properties.getLastModified().toInstant()));
+        Files.move(partial, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        result.downloaded.incrementAndGet();
+        result.downloadedBytes.addAndGet(properties.getContentLength());
+    }
+
+    /**
+     * Returns whether the file exists with the size and ETag, or modification time, of the blob.
+     */
+    private boolean isCurrent(Path path, BlobItemProperties properties) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException ex) {
+            return false;
+        }
+        if (!attributes.isRegularFile() || attributes.size() != properties.getContentLength()) {
+            return false;
+        }
+        if (!useETagAttribute) {
+            // The service keeps modification times to the second
+            return attributes.lastModifiedTime().to(TimeUnit.SECONDS) == properties.getLastModified().toEpochSecond();
+        }
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+        if (!view.list().contains(ETAG_ATTRIBUTE)) {
+            return false;
+        }
+        ByteBuffer eTag = ByteBuffer.allocate(view.size(ETAG_ATTRIBUTE));
+        view.read(ETAG_ATTRIBUTE, eTag);
+        return properties.getETag().equals(new String(eTag.array(), 0, eTag.position(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The state of a large blob whose ranges are read in parallel.
+     */
+    private static final class LargeBlob {
+        private final BlobClient client;
+        private final BlobRequestConditions requestConditions;
+        private final BlobItemProperties properties;
+        private final FileChannel channel;
+        private final Path partial;
+        private final Path path;
+        private final int rangeCount;
+        private final AtomicInteger nextRange = new AtomicInteger();
+        private final AtomicInteger doneRanges = new AtomicInteger();
+        private final AtomicBoolean failed = new AtomicBoolean();
+
+        private LargeBlob(BlobClient client, BlobRequestConditions requestConditions, BlobItemProperties properties,
+                          FileChannel channel, Path partial, Path path, int rangeCount) {
+            this.client = client;
+            this.requestConditions = requestConditions;
+            this.properties = properties;
+            this.channel = channel;
+            this.partial = partial;
+            this.path = path;
+            this.rangeCount = rangeCount;
+        }
+    }
+
+    /**
+     * Writes a response body to a file at an offset, hashing it on the way. Several streams may write disjoint ranges
+     * of one channel at the same time.
+     */
+    static final class ChannelOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private long position;
+
+        ChannelOutputStream(FileChannel channel, long position, MessageDigest digest) {
+            this.channel = channel;
+            this.position = position;
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            digest.update(b, off, len);
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+}
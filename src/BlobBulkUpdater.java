@@ -0,0 +1,318 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.models.BlobErrorCode;
+import com.azure.storage.blob.models.BlobHttpHeaders;
+import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.BlobItemProperties;
+import com.azure.storage.blob.models.BlobListDetails;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.models.ListBlobsOptions;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Changes the metadata or HTTP headers of many blobs without touching their content.
+ * Every change is a single Set Blob Metadata or Set Blob Properties request conditioned on the ETag the change was
+ * computed from, so a concurrent writer is never overwritten: when the blob changed in between, its current state is
+ * read again and the change recomputed. When blobs come from a listing, the listing supplies the first state, so an
+ * unchanged blob costs no request and a changed one a single request.
+ */
+class BlobBulkUpdater {
+
+    /**
+     * Changes the metadata of a blob.
+     */
+    interface MetadataUpdate {
+        /**
+         * Changes the metadata in place. May be called again for the same blob after a conflict.
+         *
+         * @param blobName The name of the blob.
+         * @param metadata The current metadata of the blob, to modify.
+         * @return true if the metadata changed and must be written
+         */
+        boolean apply(String blobName, Map<String, String> metadata);
+    }
+
+    /**
+     * Changes the HTTP headers of a blob.
+     */
+    interface HeadersUpdate {
+        /**
+         * Changes the headers in place. May be called again for the same blob after a conflict.
+         * Set Blob Properties replaces every header, so headers left as they are keep their current value.
+         *
+         * @param blobName The name of the blob.
+         * @param headers  The current headers of the blob, to modify.
+         * @return true if the headers changed and must be written
+         */
+        boolean apply(String blobName, BlobHttpHeaders headers);
+    }
+
+    /**
+     * Counts of what an update did.
+     */
+    static final class Result {
+        private final AtomicLong updated = new AtomicLong();
+        private final AtomicLong unchanged = new AtomicLong();
+        private final AtomicLong retried = new AtomicLong();
+        private final AtomicLong conflicted = new AtomicLong();
+
+        /**
+         * Returns the number of blobs written.
+         */
+        long getUpdated() {
+            return updated.get();
+        }
+
+        /**
+         * Returns the number of blobs the update left as they were, or that were deleted meanwhile.
+         */
+        long getUnchanged() {
+            return unchanged.get();
+        }
+
+        /**
+         * Returns the number of writes rejected because the blob changed, and retried.
+         */
+        long getRetried() {
+            return retried.get();
+        }
+
+        /**
+         * Returns the number of blobs given up on because they kept changing.
+         */
+        long getConflicted() {
+            return conflicted.get();
+        }
+    }
+
+    /**
+     * The state of a blob a change is computed from.
+     */
+    private static final class BlobState {
+        private final String eTag;
+        private final Map<String, String> metadata;
+        private final BlobHttpHeaders headers;
+
+        private BlobState(String eTag, Map<String, String> metadata, BlobHttpHeaders headers) {
+            this.eTag = eTag;
+            this.metadata = metadata != null ? new HashMap<String, String>(metadata) : new HashMap<String, String>();
+            this.headers = headers;
+        }
+    }
+
+    private interface Change {
+        /**
+         * Applies the change to the state and writes it on condition of the state's ETag.
+         *
+         * @return true if the blob was written
+         */
+        boolean write(BlobClient blob, BlobState state);
+    }
+
+    private final BlobContainerClient container;
+    private final int concurrency;
+    private final int maxAttempts;
+
+    /**
+     * Creates an updater.
+     *
+     * @param container   The container holding the blobs.
+     * @param concurrency The number of requests in flight.
+     * @param maxAttempts The number of times a blob is written before giving up when it keeps changing.
+     */
+    BlobBulkUpdater(BlobContainerClient container, int concurrency, int maxAttempts) {
+        this.container = container;
+        this.concurrency = concurrency;
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * Changes the metadata of every blob under a prefix.
+     *
+     * @param prefix The prefix of the blobs, empty for the whole container.
+     * @param update The change to make.
+     * @return The numbers of blobs updated, unchanged and in conflict
+     * @throws InterruptedException
+     */
+    Result updateMetadata(String prefix, MetadataUpdate update) throws InterruptedException {
+        return updateListed(prefix, metadataChange(update));
+    }
+
+    /**
+     * Changes the metadata of the named blobs. The current state of every blob is read first.
+     *
+     * @param blobNames The names of the blobs.
+     * @param update    The change to make.
+     * @return The numbers of blobs updated, unchanged and in conflict
+     * @throws InterruptedException
+     */
+    Result updateMetadata(Iterable<String> blobNames, MetadataUpdate update) throws InterruptedException {
+        return updateNamed(blobNames, metadataChange(update));
+    }
+
+    /**
+     * Changes the HTTP headers of every blob under a prefix.
+     *
+     * @param prefix The prefix of the blobs, empty for the whole container.
+     * @param update The change to make.
+     * @return The numbers of blobs updated, unchanged and in conflict
+     * @throws InterruptedException
+     */
+    Result updateHeaders(String prefix, HeadersUpdate update) throws InterruptedException {
+        return updateListed(prefix, headersChange(update));
+    }
+
+    /**
+     * Changes the HTTP headers of the named blobs. The current state of every blob is read first.
+     *
+     * @param blobNames The names of the blobs.
+     * @param update    The change to make.
+     * @return The numbers of blobs updated, unchanged and in conflict
+     * @throws InterruptedException
+     */
+    Result updateHeaders(Iterable<String> blobNames, HeadersUpdate update) throws InterruptedException {
+        return updateNamed(blobNames, headersChange(update));
+    }
+
+    private static Change metadataChange(final MetadataUpdate update) {
+        return (blob, state) -> {
+            if (!update.apply(blob.getBlobName(), state.metadata)) {
+                return false;
+            }
+            blob.setMetadataWithResponse(state.metadata, new BlobRequestConditions().setIfMatch(state.eTag), null,
+                    Context.NONE);
+            return true;
+        };
+    }
+
+    private static Change headersChange(final HeadersUpdate update) {
+        return (blob, state) -> {
+            if (!update.apply(blob.getBlobName(), state.headers)) {
+                return false;
+            }
+            blob.setHttpHeadersWithResponse(state.headers, new BlobRequestConditions().setIfMatch(state.eTag), null,
+                    Context.NONE);
+            return true;
+        };
+    }
+
+    private Result updateListed(String prefix, final Change change) throws InterruptedException {
+        final Result result = new Result();
+        ListBlobsOptions options = new ListBlobsOptions()
+                .setPrefix(prefix)
+                .setDetails(new BlobListDetails().setRetrieveMetadata(true));
+        BoundedCalls calls = new BoundedCalls(concurrency);
+        try {
+            for (BlobItem item : container.listBlobs(options, null)) {
+                if (calls.isFailed()) {
+                    // The update cannot complete, stop listing
+                    break;
+                }
+                final String name = item.getName();
+                final BlobState listed = fromListing(item);
+                calls.submit(() -> update(name, listed, change, result));
+            }
+        } catch (Throwable ex) {
+            calls.finish(ex);
+            throw ex;
+        }
+        calls.finish();
+        return result;
+    }
+
+    private Result updateNamed(Iterable<String> blobNames, final Change change) throws InterruptedException {
+        final Result result = new Result();
+        BoundedCalls calls = new BoundedCalls(concurrency);
+        try {
+            for (final String name : blobNames) {
+                if (calls.isFailed()) {
+                    // The update cannot complete, stop listing
+                    break;
+                }
+                calls.submit(() -> update(name, null, change, result));
+            }
+        } catch (Throwable ex) {
+            calls.finish(ex);
+            throw ex;
+        }
+        calls.finish();
+        return result;
+    }
+
+    /**
+     * Writes a change, rereading the blob and recomputing the change each time the write finds the blob changed.
+     */
+    private void update(String name, BlobState state, Change change, Result result) {
+        BlobClient blob = container.getBlobClient(name);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (state == null) {
+                    state = fromProperties(blob.getProperties());
+                }
+                if (change.write(blob, state)) {
+                    result.updated.incrementAndGet();
+                } else {
+                    result.unchanged.incrementAndGet();
+                }
+                return;
+            } catch (BlobStorageException ex) {
+                if (BlobErrorCode.BLOB_NOT_FOUND.equals(ex.getErrorCode())) {
+                    // Deleted since it was listed, nothing left to update
+                    result.unchanged.incrementAndGet();
+                    return;
+                }
+                if (!BlobErrorCode.CONDITION_NOT_MET.equals(ex.getErrorCode())) {
+                    throw ex;
+                }
+                if (attempt >= maxAttempts) {
+                    result.conflicted.incrementAndGet();
+                    return;
+                }
+                result.retried.incrementAndGet();
+                state = null;
+            }
+        }
+    }
+
+    private static BlobState fromListing(BlobItem item) {
+        BlobItemProperties properties = item.getProperties();
+        return new BlobState(properties.getETag(), item.getMetadata(), new BlobHttpHeaders()
+                .setContentType(properties.getContentType())
+                .setContentEncoding(properties.getContentEncoding())
+                .setContentLanguage(properties.getContentLanguage())
+                .setContentDisposition(properties.getContentDisposition())
+                .setCacheControl(properties.getCacheControl())
+                .setContentMd5(properties.getContentMd5()));
+    }
+
+    private static BlobState fromProperties(BlobProperties properties) {
+        return new BlobState(properties.getETag(), properties.getMetadata(), new BlobHttpHeaders()
+                .setContentType(properties.getContentType())
+                .setContentEncoding(properties.getContentEncoding())
+                .setContentLanguage(properties.getContentLanguage())
+                .setContentDisposition(properties.getContentDisposition())
+                .setCacheControl(properties.getCacheControl())
+                .setContentMd5(properties.getContentMd5()));
+    }
+}
@@ -3,6 +3,8 @@ import com.azure.storage.blob.BlobServiceClientBuilder;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -21,6 +23,47 @@ public class BlobClientProvider {
     public static BlobServiceClient getBlobServiceClient() throws IOException {
 
         // Retrieve the connection string
+        Properties prop = loadProperties();
+
+        return new BlobServiceClientBuilder().connectionString(prop.getProperty("StorageConnectionString")).buildClient();
+    }
+
+    /**
+     * Returns a client spreading containers and blobs over the accounts of the numbered connection strings
+     * StorageConnectionString.1, StorageConnectionString.2 and so on. Without numbered connection strings, the single
+     * StorageConnectionString account is the only shard.
+     *
+     * @return The newly created sharded client
+     *
+     * @throws IOException
+     */
+    static ShardedBlobServiceClient getShardedBlobServiceClient() throws IOException {
+        Properties prop = loadProperties();
+
+        List<BlobServiceClient> shards = new ArrayList<BlobServiceClient>();
+        for (int i = 1; prop.getProperty("StorageConnectionString." + i) != null; i++) {
+            shards.add(new BlobServiceClientBuilder().connectionString(prop.getProperty("StorageConnectionString." + i))
+                    .buildClient());
+        }
+        if (shards.isEmpty()) {
+            shards.add(new BlobServiceClientBuilder().connectionString(prop.getProperty("StorageConnectionString"))
+                    .buildClient());
+        }
+        return new ShardedBlobServiceClient(shards, ShardedBlobServiceClient.DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Returns the transfer scheduler with the class limits of the Transfer.* keys in config.properties.
+     *
+     * @return The newly created scheduler
+     *
+     * @throws IOException
+     */
+    static TransferScheduler getTransferScheduler() throws IOException {
+        return TransferScheduler.fromProperties(loadProperties());
+    }
+
+    private static Properties loadProperties() throws IOException {
         Properties prop = new Properties();
         try {
             InputStream propertyStream = BlobBasics.class.getClassLoader().getResourceAsStream("config.properties");
@@ -29,8 +72,7 @@ public class BlobClientProvider {
             System.out.println("\nFailed to load config.properties file.");
             throw ex;
         }
-
-        return new BlobServiceClientBuilder().connectionString(prop.getProperty("StorageConnectionString")).buildClient();
+        return prop;
     }
 
 }
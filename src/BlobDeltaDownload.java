@@ -0,0 +1,343 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.models.BlobDownloadResponse;
+import com.azure.storage.blob.models.BlobErrorCode;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.models.Block;
+import com.azure.storage.blob.models.BlockListType;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Brings a local copy of a block blob up to date by moving only the blocks that changed, the way page blobs are
+ * refreshed with a page range diff. The local copy is tied to a snapshot of the blob. A refresh snapshots the blob
+ * again and compares the committed block lists of both snapshots: a block with the same id and size in both is taken
+ * to hold the same bytes and is moved to its new offset within the file, and only the other blocks are read, in
+ * parallel. The file is rebuilt in place. Blocks are matched in blob order, so kept blocks never overtake each other
+ * and can be moved without overwriting one another; a block that was moved before others is read again instead.
+ * This relies on writers giving new content new block ids, as the content derived ids of
+ * {@link BlobTransfer#encodeBlockId(byte[], int)} do. The diff is only used when the blob stores a Content-MD5: the
+ * rebuilt file is checked against it and downloaded in full on a mismatch, so a writer reusing ids costs a download
+ * but never leaves a wrong copy.
+ */
+class BlobDeltaDownload {
+
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The outcome of a refresh.
+     */
+    static final class Result {
+        private final String snapshot;
+        private final AtomicLong downloadedBytes = new AtomicLong();
+        private final AtomicLong reusedBytes = new AtomicLong();
+        private final AtomicLong ranges = new AtomicLong();
+        private boolean fullDownload;
+
+        private Result(String snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * Returns the snapshot the file now matches, the base of the next refresh.
+         */
+        String getSnapshot() {
+            return snapshot;
+        }
+
+        long getDownloadedBytes() {
+            return downloadedBytes.get();
+        }
+
+        long getReusedBytes() {
+            return reusedBytes.get();
+        }
+
+        long getRanges() {
+            return ranges.get();
+        }
+
+        /**
+         * Returns whether the whole blob was downloaded because no block list diff was possible.
+         */
+        boolean isFullDownload() {
+            return fullDownload;
+        }
+    }
+
+    /**
+     * A run of bytes kept from the local copy.
+     */
+    private static final class Move {
+        private final long source;
+        private final long target;
+        private final long length;
+
+        private Move(long source, long target, long length) {
+            this.source = source;
+            this.target = target;
+            this.length = length;
+        }
+    }
+
+    private BlobDeltaDownload() {
+    }
+
+    /**
+     * Snapshots a block blob and brings a local copy of an earlier snapshot up to date with it. Without a base
+     * snapshot or local file, when either snapshot has no usable block list, or when the blob has no Content-MD5, the
+     * blob is downloaded in full. The caller keeps the returned snapshot as the base of the next refresh and may delete
+     * the previous one; if the refresh fails the new snapshot is deleted.
+     *
+     * @param blob         The block blob.
+     * @param file         The local copy of the base snapshot.
+     * @param baseSnapshot The snapshot the local copy matches, or null if there is none.
+     * @param concurrency  The number of ranges read at the same time.
+     * @return The snapshot the file now matches and the bytes moved
+     * @throws IOException
+     */
+    static Result refresh(BlobClient blob, Path file, String baseSnapshot, int concurrency) throws IOException {
+        BlockBlobClient snapshot = blob.getSnapshotClient(blob.createSnapshot().getSnapshotId()).getBlockBlobClient();
+        try {
+            return refresh(blob, snapshot, file, baseSnapshot, concurrency);
+        } catch (IOException | RuntimeException ex) {
+            try {
+                snapshot.delete();
+            } catch (RuntimeException deleteEx) {
+                ex.addSuppressed(deleteEx);
+            }
+            throw ex;
+        }
+    }
+
+    private static Result refresh(BlobClient blob, BlockBlobClient snapshot, Path file, String baseSnapshot,
+                                  int concurrency) throws IOException {
+        BlobProperties properties = snapshot.getProperties();
+        Result result = new Result(snapshot.getSnapshotId());
+
+        List<Block> blocks = committedBlocks(snapshot);
+        List<Block> baseBlocks = baseSnapshot != null && Files.exists(file)
+                ? committedBlocks(blob.getSnapshotClient(baseSnapshot).getBlockBlobClient()) : null;
+        if (properties.getContentMd5() == null || blocks == null || baseBlocks == null
+                || totalSize(blocks) != properties.getBlobSize() || totalSize(baseBlocks) != Files.size(file)) {
+            downloadFull(snapshot, file, properties, result);
+            return result;
+        }
+
+        // Offsets of the base blocks by id and size, in blob order
+        Map<String, ArrayDeque<long[]>> baseOffsets = new HashMap<String, ArrayDeque<long[]>>();
+        long offset = 0;
+        for (int i = 0; i < baseBlocks.size(); i++) {
+            Block block = baseBlocks.get(i);
+            String key = block.getName() + "/" + block.getSizeLong();
+            ArrayDeque<long[]> offsets = baseOffsets.get(key);
+            if (offsets == null) {
+                offsets = new ArrayDeque<long[]>();
+                baseOffsets.put(key, offsets);
+            }
+            offsets.add(new long[] {i, offset});
+            offset += block.getSizeLong();
+        }
+
+        List<Move> moves = new ArrayList<Move>();
+        List<long[]> changed = new ArrayList<long[]>();
+        long lastBaseIndex = -1;
+        offset = 0;
+        for (Block block : blocks) {
+            long size = block.getSizeLong();
+            ArrayDeque<long[]> offsets = baseOffsets.get(block.getName() + "/" + size);
+            while (offsets != null && !offsets.isEmpty() && offsets.peek()[0] <= lastBaseIndex) {
+                offsets.poll();
+            }
+            if (offsets != null && !offsets.isEmpty()) {
+                long[] base = offsets.poll();
+                lastBaseIndex = base[0];
+                result.reusedBytes.addAndGet(size);
+                if (base[1] != offset) {
+                    moves.add(new Move(base[1], offset, size));
+                }
+            } else if (!changed.isEmpty() && changed.get(changed.size() - 1)[1] == offset) {
+                changed.get(changed.size() - 1)[1] = offset + size;
+            } else {
+                changed.add(new long[] {offset, offset + size});
+            }
+            offset += size;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            move(channel, moves);
+            fetch(snapshot, channel, changed, concurrency, result);
+            channel.truncate(properties.getBlobSize());
+        }
+
+        if (!MessageDigest.isEqual(properties.getContentMd5(), fileMd5(file))) {
+            EventLog.console().warn("The rebuilt copy %s of blob \"%s\" does not match its Content-MD5, "
+                    + "downloading it in full.", file, blob.getBlobUrl());
+            result.reusedBytes.set(0);
+            downloadFull(snapshot, file, properties, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the committed blocks of a snapshot, or null if the snapshot no longer exists.
+     */
+    private static List<Block> committedBlocks(BlockBlobClient snapshot) {
+        try {
+            return snapshot.listBlocks(BlockListType.COMMITTED).getCommittedBlocks();
+        } catch (BlobStorageException ex) {
+            if (BlobErrorCode.BLOB_NOT_FOUND.equals(ex.getErrorCode())) {
+                return null;
+            }
+            throw ex;
+        }
+    }
+
+    private static long totalSize(List<Block> blocks) {
+        long size = 0;
+        for (Block block : blocks) {
+            size += block.getSizeLong();
+        }
+        return size;
+    }
+
+    private static void downloadFull(BlockBlobClient snapshot, Path file, BlobProperties properties, Result result)
+            throws IOException {
+        BlobTransfer.downloadToFileVerified(snapshot, file.toString());
+        result.downloadedBytes.addAndGet(properties.getBlobSize());
+        result.fullDownload = true;
+    }
+
+    /**
+     * Moves kept blocks to their new offsets. The blocks keep their order, so a block moving towards the start only
+     * overwrites bytes of blocks already moved, and one moving towards the end only bytes of blocks moved after it:
+     * the first kind is moved front to back, then the second back to front.
+     */
+    private static void move(FileChannel channel, List<Move> moves) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        for (Move move : moves) {
+            if (move.target < move.source) {
+                copy(channel, move, buffer);
+            }
+        }
+        for (int i = moves.size() - 1; i >= 0; i--) {
+            if (moves.get(i).target > moves.get(i).source) {
+                copy(channel, moves.get(i), buffer);
+            }
+        }
+    }
+
+    /**
+     * Copies a run within the file in chunks, starting from the end the run moves away from so an overlap of the
+     * source and target is never read after it was written.
+     */
+    private static void copy(FileChannel channel, Move move, ByteBuffer buffer) throws IOException {
+        boolean backwards = move.target > move.source;
+        long done = 0;
+        while (done < move.length) {
+            int count = (int) Math.min(buffer.capacity(), move.length - done);
+            long chunk = backwards ? move.length - done - count : done;
+            buffer.clear().limit(count);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, move.source + chunk + buffer.position()) < 0) {
+                    throw new IOException("The local copy is shorter than its block list.");
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, move.target + chunk + buffer.position());
+            }
+            done += count;
+        }
+    }
+
+    /**
+     * Reads the changed ranges of the snapshot into the file in parallel, each checked against its MD5.
+     */
+    private static void fetch(final BlockBlobClient snapshot, final FileChannel channel, List<long[]> changed,
+                              int concurrency, final Result result) throws IOException {
+        BoundedCalls calls = new BoundedCalls(concurrency);
+        try {
+            try {
+                for (long[] range : changed) {
+                    for (long start = range[0]; start < range[1]; start += BlobTransfer.MAX_RANGE_MD5_SIZE) {
+                        final long offset = start;
+                        final long count = Math.min(BlobTransfer.MAX_RANGE_MD5_SIZE, range[1] - start);
+                        calls.submit(() -> {
+                            try {
+                                fetchRange(snapshot, channel, offset, count);
+                            } catch (IOException ex) {
+                                throw new UncheckedIOException(ex);
+                            }
+                            result.downloadedBytes.addAndGet(count);
+                            result.ranges.incrementAndGet();
+                        });
+                    }
+                }
+            } catch (Throwable ex) {
+                calls.finish(ex);
+                throw ex;
+            }
+            calls.finish();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading changed blocks.", ex);
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private static void fetchRange(BlockBlobClient snapshot, FileChannel channel, long offset, long count)
+            throws IOException {
+        MessageDigest digest = BlobTransfer.newMd5();
+        BlobDownloadResponse response = TransferScheduler.shared().run(count, () -> snapshot.downloadWithResponse(
+                new BlobBulkDownload.ChannelOutputStream(channel, offset, digest), new BlobRange(offset, count), null,
+                null, true, null, Context.NONE));
+        BlobTransfer.verifyMd5(response.getDeserializedHeaders().getContentMd5(), digest.digest(),
+                String.format("range %d-%d of blob \"%s\"", offset, offset + count - 1, snapshot.getBlobUrl()));
+    }
+
+    private static byte[] fileMd5(Path file) throws IOException {
+        MessageDigest digest = BlobTransfer.newMd5();
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
+}
@@ -0,0 +1,476 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.core.http.rest.Response;
+import com.azure.core.util.Context;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.options.BlobDownloadToFileOptions;
+import com.azure.storage.blob.specialized.BlobClientBase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A read-through cache of downloaded blobs in a local directory.
+ * Entries are keyed by blob URL and snapshot and revalidated with a conditional request on the cached ETag, so an
+ * unchanged blob costs a 304 response instead of a transfer. The cache is bounded by the total size of its files and
+ * evicts the least recently used entries. Concurrent misses on the same blob share one download.
+ * Each download of a blob gets its own file, and a file still read through a {@link Lease} is deleted when the lease
+ * is closed instead of when its entry is replaced or evicted. Files left behind by a crash are removed on open.
+ */
+class BlobDownloadCache {
+
+    private static final String DATA_SUFFIX = ".blob";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long revalidateAfterNanos;
+    // Access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> loads = new ConcurrentHashMap<String, CompletableFuture<Entry>>();
+    private long totalBytes;
+
+    /**
+     * A cached blob.
+     */
+    private static final class Entry {
+        private final String key;
+        private final Path file;
+        private final String eTag;
+        private final long size;
+        private volatile long validatedAt;
+        // Guarded by the cache
+        private int readers;
+        private boolean removed;
+        private boolean deleted;
+
+        private Entry(String key, Path file, String eTag, long size, long validatedAt) {
+            this.key = key;
+            this.file = file;
+            this.eTag = eTag;
+            this.size = size;
+            this.validatedAt = validatedAt;
+        }
+    }
+
+    /**
+     * A cached file held in place until closed.
+     */
+    final class Lease implements AutoCloseable {
+        private final Entry entry;
+        private boolean closed;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * Returns the cached file, which must not be modified.
+         *
+         * @return The file
+         */
+        Path getFile() {
+            return entry.file;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(entry);
+            }
+        }
+    }
+
+    /**
+     * Opens a cache directory, picking up the entries already in it.
+     *
+     * @param directory       The directory the cached files are kept in.
+     * @param maxBytes        The total size of cached files above which entries are evicted.
+     * @param revalidateAfter How long an entry is served without asking the service whether it changed.
+     *                        Zero revalidates on every access.
+     * @throws IOException
+     */
+    BlobDownloadCache(Path directory, long maxBytes, Duration revalidateAfter) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.revalidateAfterNanos = revalidateAfter.toNanos();
+        Files.createDirectories(directory);
+        sweep();
+        loadEntries();
+    }
+
+    /**
+     * Returns the local file holding the current content of a blob, downloading it on a miss or when it changed.
+     * The file stays in place until the lease is closed, even if the blob is downloaded again or evicted meanwhile.
+     *
+     * @param blob The blob, or a snapshot of it.
+     * @return The lease on the cached file
+     * @throws IOException
+     */
+    Lease open(BlobClientBase blob) throws IOException {
+        return new Lease(get(blob));
+    }
+
+    /**
+     * Maps the cached content of a blob into memory, downloading it on a miss or when it changed. Where a mapped file
+     * cannot be deleted, an evicted one is removed when the cache is next opened.
+     *
+     * @param blob The blob, or a snapshot of it.
+     * @return A read-only buffer over the content
+     * @throws IOException
+     */
+    ByteBuffer map(BlobClientBase blob) throws IOException {
+        try (Lease lease = open(blob);
+             FileChannel channel = FileChannel.open(lease.getFile(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Downloads a blob to a file through the cache. Only misses and changed blobs are transferred.
+     *
+     * @param blob     The blob, or a snapshot of it.
+     * @param filePath The path of the file to write.
+     * @throws IOException
+     */
+    void downloadToFile(BlobClientBase blob, String filePath) throws IOException {
+        try (Lease lease = open(blob)) {
+            Files.copy(lease.getFile(), Paths.get(filePath), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Drops a blob from the cache.
+     *
+     * @param blob The blob, or a snapshot of it.
+     * @throws IOException
+     */
+    void invalidate(BlobClientBase blob) {
+        boolean delete = false;
+        Entry entry;
+        synchronized (this) {
+            entry = entries.remove(key(blob));
+            if (entry != null) {
+                totalBytes -= entry.size;
+                delete = remove(entry);
+            }
+        }
+        if (delete) {
+            deleteEntryFiles(entry);
+        }
+    }
+
+    /**
+     * Returns the total size of the cached files.
+     *
+     * @return The size in bytes
+     */
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Returns the entry of a blob, held for the caller until released.
+     */
+    private Entry get(BlobClientBase blob) throws IOException {
+        String key = key(blob);
+        while (true) {
+            CompletableFuture<Entry> load = new CompletableFuture<Entry>();
+            CompletableFuture<Entry> existing = loads.putIfAbsent(key, load);
+            if (existing == null) {
+                try {
+                    Entry entry = load(blob, key);
+                    load.complete(entry);
+                    return entry;
+                } catch (IOException | RuntimeException ex) {
+                    load.completeExceptionally(ex);
+                    throw ex;
+                } finally {
+                    loads.remove(key, load);
+                }
+            }
+
+            // Another thread is already fetching this blob, share its result
+            Entry entry;
+            try {
+                entry = existing.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a download.", ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            }
+            if (acquire(entry)) {
+                return entry;
+            }
+            // Evicted and deleted before this thread could hold it, fetch it again
+        }
+    }
+
+    private Entry load(BlobClientBase blob, String key) throws IOException {
+        long now = System.nanoTime();
+        Entry cached;
+        synchronized (this) {
+            cached = entries.get(key);
+            if (cached != null && now - cached.validatedAt < revalidateAfterNanos) {
+                cached.readers++;
+                return cached;
+            }
+        }
+
+        // Every download gets its own file, so readers of the previous one are not disturbed
+        String fileName = hash(key) + "." + UUID.randomUUID();
+        Path temp = directory.resolve(fileName + TEMP_SUFFIX);
+        // A caller is waiting on the file
+        TransferScheduler.Scope scope = TransferScheduler.withPriority(TransferScheduler.Priority.INTERACTIVE,
+                blob.getContainerName());
+        try {
+            BlobRequestConditions requestConditions = cached != null
+                    ? new BlobRequestConditions().setIfNoneMatch(cached.eTag) : null;
+            Response<BlobProperties> response = TransferScheduler.shared().run(0, () -> blob.downloadToFileWithResponse(
+                    new BlobDownloadToFileOptions(temp.toString()).setRequestConditions(requestConditions), null,
+                    Context.NONE));
+            // The size of the blob is only known once it is downloaded
+            TransferScheduler.shared().charge(Files.size(temp));
+
+            Entry entry = new Entry(key, directory.resolve(fileName + DATA_SUFFIX), response.getValue().getETag(),
+                    Files.size(temp), now);
+            Files.move(temp, entry.file, StandardCopyOption.ATOMIC_MOVE);
+            writeMeta(entry);
+            put(entry, true);
+            return entry;
+        } catch (BlobStorageException ex) {
+            if (cached != null && ex.getStatusCode() == 304) {
+                if (acquire(cached)) {
+                    // Not modified, the cached copy is still current
+                    cached.validatedAt = now;
+                    return cached;
+                }
+                // Deleted while it was revalidated, download it again
+                return load(blob, key);
+            }
+            throw ex;
+        } finally {
+            scope.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Adds an entry, replacing the previous one of its blob, and evicts entries over the size limit.
+     *
+     * @param acquire Whether to hold the entry for the caller.
+     */
+    private void put(Entry entry, boolean acquire) {
+        List<Entry> deleted = new ArrayList<Entry>();
+        synchronized (this) {
+            if (acquire) {
+                entry.readers++;
+            }
+            Entry previous = entries.put(entry.key, entry);
+            if (previous != null) {
+                totalBytes -= previous.size;
+                if (remove(previous)) {
+                    deleted.add(previous);
+                }
+            }
+            totalBytes += entry.size;
+
+            Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+            while (totalBytes > maxBytes && leastRecentlyUsed.hasNext()) {
+                Entry candidate = leastRecentlyUsed.next();
+                if (candidate == entry) {
+                    // Keep the entry being returned even when it alone exceeds the limit
+                    continue;
+                }
+                leastRecentlyUsed.remove();
+                totalBytes -= candidate.size;
+                if (remove(candidate)) {
+                    deleted.add(candidate);
+                }
+            }
+        }
+        for (Entry candidate : deleted) {
+            deleteEntryFiles(candidate);
+        }
+    }
+
+    /**
+     * Holds an entry whose files still exist.
+     *
+     * @return false if the files were deleted
+     */
+    private synchronized boolean acquire(Entry entry) {
+        if (entry.deleted) {
+            return false;
+        }
+        entry.readers++;
+        return true;
+    }
+
+    private void release(Entry entry) {
+        boolean delete;
+        synchronized (this) {
+            entry.readers--;
+            delete = entry.removed && entry.readers == 0 && !entry.deleted;
+            if (delete) {
+                entry.deleted = true;
+            }
+        }
+        if (delete) {
+            deleteEntryFiles(entry);
+        }
+    }
+
+    /**
+     * Marks an entry that left the map as removed. Called with the cache locked.
+     *
+     * @return true if nothing holds the entry and its files are to be deleted now
+     */
+    private boolean remove(Entry entry) {
+        entry.removed = true;
+        if (entry.readers == 0) {
+            entry.deleted = true;
+        }
+        return entry.deleted;
+    }
+
+    /**
+     * Deletes the temporary files of interrupted downloads and the data files whose meta file is missing, which are
+     * left by a crash between moving a download in place and writing its meta file, or by a failed delete.
+     */
+    private void sweep() throws IOException {
+        List<Path> orphans = new ArrayList<Path>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    orphans.add(file);
+                } else if (name.endsWith(DATA_SUFFIX) && !Files.exists(directory.resolve(
+                        name.substring(0, name.length() - DATA_SUFFIX.length()) + META_SUFFIX))) {
+                    orphans.add(file);
+                }
+            }
+        }
+        for (Path orphan : orphans) {
+            Files.deleteIfExists(orphan);
+        }
+    }
+
+    private void loadEntries() throws IOException {
+        List<Entry> found = new ArrayList<Entry>();
+        try (DirectoryStream<Path> metaFiles = Files.newDirectoryStream(directory, "*" + META_SUFFIX)) {
+            for (Path metaFile : metaFiles) {
+                String name = metaFile.getFileName().toString();
+                Path dataFile = directory.resolve(name.substring(0, name.length() - META_SUFFIX.length()) + DATA_SUFFIX);
+                if (!Files.exists(dataFile)) {
+                    Files.deleteIfExists(metaFile);
+                    continue;
+                }
+                Properties meta = new Properties();
+                try (InputStream inputStream = Files.newInputStream(metaFile)) {
+                    meta.load(inputStream);
+                }
+                // Entries from an earlier run are revalidated on first access
+                found.add(new Entry(meta.getProperty("key"), dataFile, meta.getProperty("etag"), Files.size(dataFile),
+                        System.nanoTime() - revalidateAfterNanos));
+            }
+        }
+        // Approximate the previous access order by download time
+        found.sort((a, b) -> {
+            try {
+                return Files.getLastModifiedTime(a.file).compareTo(Files.getLastModifiedTime(b.file));
+            } catch (IOException ex) {
+                return 0;
+            }
+        });
+        // An older download of the same blob left by a crash is replaced by the newer one
+        for (Entry entry : found) {
+            put(entry, false);
+        }
+    }
+
+    private void writeMeta(Entry entry) throws IOException {
+        Properties meta = new Properties();
+        meta.setProperty("key", entry.key);
+        meta.setProperty("etag", entry.eTag);
+        try (OutputStream outputStream = Files.newOutputStream(metaFile(entry))) {
+            meta.store(outputStream, null);
+        }
+    }
+
+    private Path metaFile(Entry entry) {
+        String name = entry.file.getFileName().toString();
+        return directory.resolve(name.substring(0, name.length() - DATA_SUFFIX.length()) + META_SUFFIX);
+    }
+
+    private void deleteEntryFiles(Entry entry) {
+        try {
+            // Without its meta file, a data file that fails to delete is removed by the next open
+            Files.deleteIfExists(metaFile(entry));
+            Files.deleteIfExists(entry.file);
+        } catch (IOException ex) {
+            EventLog.console().warn("Failed to delete the cached file \"%s\": %s", entry.file, ex.getMessage());
+        }
+    }
+
+    private static String key(BlobClientBase blob) {
+        return blob.getBlobUrl() + "|" + (blob.getSnapshotId() != null ? blob.getSnapshotId() : "");
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+}
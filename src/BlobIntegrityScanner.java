@@ -0,0 +1,506 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.core.http.rest.PagedIterable;
+import com.azure.core.http.rest.PagedResponse;
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.models.BlobErrorCode;
+import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.models.ListBlobsOptions;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks stored blobs against their recorded MD5 without writing them to disk.
+ * The blobs of a container or prefix are listed and downloaded in parallel, each one streamed straight into a digest
+ * and pinned to the ETag it was listed with. The top level virtual directories of the prefix are listed in parallel a
+ * bounded number ahead and handed to the downloads in listing order, with the top level blobs between them. The digest
+ * is compared with the MD5 of a local manifest when the blob is in it, or else with the Content-MD5 the listing returned. Every blob that does not match, has no hash to compare with,
+ * changed while it was read or failed is appended to a tab separated report, as is every manifest entry not found.
+ * Bandwidth is shared by all downloads through a token bucket. Progress is saved to a checkpoint file holding the last
+ * blob such that it and every blob listed before it are done, so an interrupted scan resumes after it; the checkpoint is
+ * deleted when a scan completes. Manifest entries not found are reported once a scan completes, including those of
+ * blobs before the checkpoint of a resumed scan.
+ */
+class BlobIntegrityScanner {
+
+    /**
+     * The kinds of problems reported.
+     */
+    enum Problem {
+        /** The content does not match the recorded MD5. */
+        MISMATCH,
+        /** Neither the manifest nor Content-MD5 recorded a hash. */
+        NO_HASH,
+        /** The blob was rewritten while it was read. */
+        CHANGED,
+        /** The blob could not be read. */
+        FAILED,
+        /** The manifest lists a blob the container does not hold. */
+        MISSING
+    }
+
+    /**
+     * Counts of what a scan did.
+     */
+    static final class Result {
+        private final AtomicLong verified = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong problems = new AtomicLong();
+
+        /**
+         * Returns the number of blobs that matched their recorded MD5.
+         */
+        long getVerified() {
+            return verified.get();
+        }
+
+        /**
+         * Returns the number of bytes read.
+         */
+        long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * Returns the number of blobs skipped because an earlier scan already checked them.
+         */
+        long getSkipped() {
+            return skipped.get();
+        }
+
+        /**
+         * Returns the number of problems reported.
+         */
+        long getProblems() {
+            return problems.get();
+        }
+    }
+
+    // How often the checkpoint is saved while the scan progresses
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 10000;
+
+    // How many listed blobs every shard holds ahead of the downloads
+    private static final int LISTING_AHEAD = 5000;
+
+    // Marks the end of the listing of a shard
+    private static final BlobItem END_OF_SHARD = new BlobItem();
+
+    /**
+     * A top level entry of the prefix: a virtual directory listed on its own, or a blob the top level listing returned.
+     */
+    private static final class Shard {
+        private final String prefix;
+        private final BlobItem blob;
+        private final BlockingQueue<BlobItem> items;
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+        private Shard(String prefix) {
+            this.prefix = prefix;
+            this.blob = null;
+            this.items = new ArrayBlockingQueue<BlobItem>(LISTING_AHEAD);
+        }
+
+        private Shard(BlobItem blob) {
+            this.prefix = null;
+            this.blob = blob;
+            this.items = null;
+        }
+    }
+
+    private interface ItemHandler {
+        /**
+         * @return false to stop the listing
+         */
+        boolean handle(BlobItem item) throws InterruptedException;
+    }
+
+    private final BlobContainerClient container;
+    private final int concurrency;
+    private final TokenBucket bandwidth;
+
+    // The progress of the scan in listing order, guarded by this
+    private final TreeSet<Long> doneAhead = new TreeSet<Long>();
+    private final Map<Long, String> names = new ConcurrentHashMap<Long, String>();
+    private long nextUndone;
+    private String watermark;
+    private long checkpointSaved;
+
+    /**
+     * Creates a scanner.
+     *
+     * @param container      The container to scan.
+     * @param concurrency    The number of blobs read at the same time.
+     * @param bytesPerSecond The bandwidth of all reads together, 0 for no limit.
+     */
+    BlobIntegrityScanner(BlobContainerClient container, int concurrency, long bytesPerSecond) {
+        this.container = container;
+        this.concurrency = concurrency;
+        // One second of bandwidth may be used in a burst
+        this.bandwidth = new TokenBucket(bytesPerSecond, Math.max(bytesPerSecond, 1));
+    }
+
+    /**
+     * Reads a manifest in the format written by md5sum: the hex MD5, two spaces and the blob name on every line.
+     *
+     * @param manifestPath The manifest file.
+     * @return The MD5 of every blob by name
+     * @throws IOException
+     */
+    static Map<String, byte[]> loadManifest(Path manifestPath) throws IOException {
+        Map<String, byte[]> manifest = new HashMap<String, byte[]>();
+        List<String> lines = Files.readAllLines(manifestPath, StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.isEmpty()) {
+                continue;
+            }
+            // md5sum marks files read in binary mode with a star instead of the second space
+            if (line.length() < 35 || line.charAt(32) != ' ' || (line.charAt(33) != ' ' && line.charAt(33) != '*')) {
+                throw new IOException(String.format("Line %d of manifest \"%s\" is not an MD5 and a name.",
+                        i + 1, manifestPath));
+            }
+            manifest.put(line.substring(34), fromHex(line.substring(0, 32)));
+        }
+        return manifest;
+    }
+
+    /**
+     * Scans every blob under a prefix, resuming after the checkpoint if one exists.
+     *
+     * @param prefix         The prefix of the blobs, empty for the whole container.
+     * @param manifest       The MD5 of blobs by name, or null to compare with Content-MD5 only.
+     * @param reportPath     The file problems are appended to.
+     * @param checkpointPath The file progress is saved to.
+     * @return The numbers of blobs verified, skipped and reported
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    Result scan(String prefix, Map<String, byte[]> manifest, Path reportPath, Path checkpointPath)
+            throws IOException, InterruptedException {
+        // A scan is background work, it yields the slots to the other transfers
+        TransferScheduler.Scope scope = TransferScheduler.withPriority(TransferScheduler.Priority.BACKGROUND,
+                container.getBlobContainerName());
+        try {
+            return scanTagged(prefix, manifest, reportPath, checkpointPath);
+        } finally {
+            scope.close();
+        }
+    }
+
+    private Result scanTagged(String prefix, Map<String, byte[]> manifest, Path reportPath, Path checkpointPath)
+            throws IOException, InterruptedException {
+        final Result result = new Result();
+        String resumeAfter = Files.exists(checkpointPath)
+                ? new String(Files.readAllBytes(checkpointPath), StandardCharsets.UTF_8) : null;
+        Map<String, byte[]> unseen = new HashMap<String, byte[]>(manifest != null ? manifest : new HashMap<String, byte[]>());
+        synchronized (this) {
+            doneAhead.clear();
+            names.clear();
+            nextUndone = 0;
+            watermark = resumeAfter;
+            checkpointSaved = System.currentTimeMillis();
+        }
+
+        try (final BufferedWriter report = Files.newBufferedWriter(reportPath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            BoundedCalls calls = new BoundedCalls(concurrency);
+            try {
+                final long[] sequence = new long[1];
+                listInOrder(prefix, item -> {
+                    if (calls.isFailed()) {
+                        // The scan cannot complete, stop listing
+                        return false;
+                    }
+                    final String name = item.getName();
+                    final byte[] manifestMd5 = unseen.remove(name);
+                    if (resumeAfter != null && name.compareTo(resumeAfter) <= 0) {
+                        result.skipped.incrementAndGet();
+                        return true;
+                    }
+                    final byte[] expected = manifestMd5 != null ? manifestMd5 : item.getProperties().getContentMd5();
+                    final String eTag = item.getProperties().getETag();
+                    final long size = item.getProperties().getContentLength();
+                    final long blobSequence = sequence[0]++;
+                    names.put(blobSequence, name);
+                    calls.submit(() -> {
+                        try {
+                            verify(name, eTag, size, expected, report, result);
+                            done(blobSequence, checkpointPath);
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    });
+                    return true;
+                });
+            } catch (Throwable ex) {
+                calls.finish(ex);
+                throw ex;
+            }
+            calls.finish();
+
+            // The whole prefix was listed, so every entry left was missing, also before the checkpoint of a resumed scan
+            for (Map.Entry<String, byte[]> entry : unseen.entrySet()) {
+                if (entry.getKey().startsWith(prefix)) {
+                    report(report, Problem.MISSING, entry.getKey(), entry.getValue(), null, result);
+                }
+            }
+        }
+        Files.deleteIfExists(checkpointPath);
+        return result;
+    }
+
+    /**
+     * Lists the blobs under a prefix in listing order. The top level blobs are handed over as the top level listing
+     * returns them, and the top level virtual directories are listed in parallel, up to one per thread ahead of the
+     * one being handed over and each a bounded number of blobs ahead. A virtual directory covers a contiguous range of
+     * names, so handing the entries over one after the other keeps the order the checkpoint relies on.
+     */
+    private void listInOrder(String prefix, ItemHandler handler) throws InterruptedException {
+        int listers = Math.max(1, concurrency);
+        ExecutorService listerPool = Executors.newFixedThreadPool(listers);
+        try {
+            Iterator<BlobItem> topLevel = sortedByPage(
+                    container.listBlobsByHierarchy("/", new ListBlobsOptions().setPrefix(prefix), null));
+            ArrayDeque<Shard> ahead = new ArrayDeque<Shard>();
+            int directoriesAhead = 0;
+            while (true) {
+                while (directoriesAhead < listers && ahead.size() < LISTING_AHEAD && topLevel.hasNext()) {
+                    BlobItem item = topLevel.next();
+                    if (Boolean.TRUE.equals(item.isPrefix())) {
+                        final Shard shard = new Shard(item.getName());
+                        listerPool.execute(TransferScheduler.propagate(() -> listShard(shard)));
+                        ahead.add(shard);
+                        directoriesAhead++;
+                    } else {
+                        ahead.add(new Shard(item));
+                    }
+                }
+                Shard shard = ahead.poll();
+                if (shard == null) {
+                    return;
+                }
+                if (shard.items == null) {
+                    if (!handler.handle(shard.blob)) {
+                        return;
+                    }
+                    continue;
+                }
+                directoriesAhead--;
+                BlobItem item;
+                while ((item = shard.items.take()) != END_OF_SHARD) {
+                    if (!handler.handle(item)) {
+                        return;
+                    }
+                }
+                if (shard.failure.get() != null) {
+                    throw shard.failure.get();
+                }
+            }
+        } finally {
+            listerPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the entries of a hierarchical listing in name order. The service returns the blobs of a page before its
+     * virtual directories, while every page covers a contiguous range of names, so sorting each page is enough.
+     */
+    private static Iterator<BlobItem> sortedByPage(PagedIterable<BlobItem> listing) {
+        final Iterator<PagedResponse<BlobItem>> pages = listing.iterableByPage().iterator();
+        return new Iterator<BlobItem>() {
+            private Iterator<BlobItem> page = Collections.<BlobItem>emptyList().iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext() && pages.hasNext()) {
+                    List<BlobItem> items = new ArrayList<BlobItem>(pages.next().getValue());
+                    items.sort(Comparator.comparing(BlobItem::getName));
+                    page = items.iterator();
+                }
+                return page.hasNext();
+            }
+
+            @Override
+            public BlobItem next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.next();
+            }
+        };
+    }
+
+    private void listShard(Shard shard) {
+        try {
+            for (BlobItem item : container.listBlobs(new ListBlobsOptions().setPrefix(shard.prefix), null)) {
+                shard.items.put(item);
+            }
+        } catch (RuntimeException ex) {
+            shard.failure.set(ex);
+        } catch (InterruptedException ex) {
+            // The scan stopped
+            return;
+        }
+        try {
+            shard.items.put(END_OF_SHARD);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads a blob through a digest and compares the result.
+     */
+    private void verify(String name, String eTag, long size, byte[] expected, BufferedWriter report, Result result)
+            throws IOException {
+        final MessageDigest digest = BlobTransfer.newMd5();
+        final AtomicLong length = new AtomicLong();
+        OutputStream digestStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    bandwidth.acquire(len);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for bandwidth.");
+                }
+                digest.update(b, off, len);
+                length.addAndGet(len);
+            }
+        };
+        try {
+            TransferScheduler.shared().run(size, () -> container.getBlobClient(name).downloadWithResponse(digestStream,
+                    null, null, new BlobRequestConditions().setIfMatch(eTag), false, null, Context.NONE));
+        } catch (BlobStorageException ex) {
+            if (BlobErrorCode.BLOB_NOT_FOUND.equals(ex.getErrorCode())) {
+                // Deleted since it was listed
+                return;
+            }
+            Problem problem = BlobErrorCode.CONDITION_NOT_MET.equals(ex.getErrorCode()) ? Problem.CHANGED : Problem.FAILED;
+            report(report, problem, name, expected, null, result);
+            if (problem == Problem.FAILED) {
+                EventLog.console().errorRateLimited("integrity scan", "Failed to read blob \"%s\".", ex, name);
+            }
+            return;
+        } catch (RuntimeException ex) {
+            if (Thread.currentThread().isInterrupted()) {
+                // The scan is stopping, not the blob failing
+                throw ex;
+            }
+            // Network errors that outlasted the retries fail this blob, not the scan
+            report(report, Problem.FAILED, name, expected, null, result);
+            EventLog.console().errorRateLimited("integrity scan", "Failed to read blob \"%s\".", ex, name);
+            return;
+        } finally {
+            result.bytes.addAndGet(length.get());
+        }
+
+        byte[] actual = digest.digest();
+        if (expected == null) {
+            report(report, Problem.NO_HASH, name, null, actual, result);
+        } else if (!Arrays.equals(expected, actual)) {
+            report(report, Problem.MISMATCH, name, expected, actual, result);
+        } else {
+            result.verified.incrementAndGet();
+        }
+    }
+
+    private static void report(BufferedWriter report, Problem problem, String name, byte[] expected, byte[] actual,
+                               Result result) throws IOException {
+        result.problems.incrementAndGet();
+        synchronized (report) {
+            report.write(String.format("%s\t%s\t%s\t%s%n", problem, name, toHex(expected), toHex(actual)));
+            // Keep the report complete up to the checkpoint if the scan is killed
+            report.flush();
+        }
+    }
+
+    /**
+     * Marks a blob done, advances the watermark past every blob done in listing order and saves it now and then.
+     */
+    private synchronized void done(long sequence, Path checkpointPath) throws IOException {
+        doneAhead.add(sequence);
+        while (!doneAhead.isEmpty() && doneAhead.first() == nextUndone) {
+            doneAhead.pollFirst();
+            watermark = names.remove(nextUndone);
+            nextUndone++;
+        }
+        long now = System.currentTimeMillis();
+        if (watermark != null && now - checkpointSaved >= CHECKPOINT_INTERVAL_MILLIS) {
+            // Replace the checkpoint in one step so a crash never leaves it half written
+            Path temporary = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+            Files.write(temporary, watermark.getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            checkpointSaved = now;
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        if (bytes == null) {
+            return "-";
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
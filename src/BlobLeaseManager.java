@@ -0,0 +1,267 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.specialized.BlobClientBase;
+import com.azure.storage.blob.specialized.BlobLeaseClient;
+import com.azure.storage.blob.specialized.BlobLeaseClientBuilder;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds many finite blob and container leases and renews them from a single scheduler.
+ * Every lease is renewed around half way through its duration, with jitter so that renewals of leases acquired
+ * together spread out, and renewals falling due in the same time slot are issued together on a small worker pool.
+ * A lease whose renewal is rejected, or that cannot be renewed before it expires, is reported as lost.
+ * Closing the manager releases every lease still held.
+ */
+class BlobLeaseManager implements Closeable {
+
+    /**
+     * Shortest finite lease duration the service accepts, in seconds.
+     */
+    static final int MIN_LEASE_DURATION = 15;
+
+    /**
+     * Longest finite lease duration the service accepts, in seconds.
+     */
+    static final int MAX_LEASE_DURATION = 60;
+
+    /**
+     * Granularity of the renewal schedule. Renewals due in the same slot are issued together.
+     */
+    private static final long SLOT_MILLIS = 1000;
+
+    /**
+     * Receives leases that could not be renewed.
+     */
+    interface LeaseLostListener {
+        /**
+         * Called once when a lease is lost. The work it protected must be considered unsafe.
+         *
+         * @param lease The lost lease.
+         * @param cause The error of the last renewal attempt.
+         */
+        void onLeaseLost(HeldLease lease, Exception cause);
+    }
+
+    /**
+     * A lease held by the manager.
+     */
+    static final class HeldLease {
+        private final BlobLeaseClient leaseClient;
+        private final String resourceUrl;
+        private final int durationSeconds;
+        private final LeaseLostListener listener;
+        private volatile long expiresAt;
+        private volatile boolean held = true;
+
+        private HeldLease(BlobLeaseClient leaseClient, String resourceUrl, int durationSeconds, LeaseLostListener listener) {
+            this.leaseClient = leaseClient;
+            this.resourceUrl = resourceUrl;
+            this.durationSeconds = durationSeconds;
+            this.listener = listener;
+        }
+
+        String getLeaseId() {
+            return leaseClient.getLeaseId();
+        }
+
+        String getResourceUrl() {
+            return resourceUrl;
+        }
+
+        boolean isHeld() {
+            return held;
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService renewers;
+    private final ConcurrentSkipListMap<Long, Set<HeldLease>> slots = new ConcurrentSkipListMap<Long, Set<HeldLease>>();
+    private final Set<HeldLease> leases = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a lease manager.
+     *
+     * @param renewalConcurrency The number of renewals issued concurrently within a slot.
+     */
+    BlobLeaseManager(int renewalConcurrency) {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "blob-lease-renewal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.renewers = Executors.newFixedThreadPool(Math.max(1, renewalConcurrency), runnable -> {
+            Thread thread = new Thread(runnable, "blob-lease-renewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::renewDueLeases, SLOT_MILLIS, SLOT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Acquires a lease on a blob and keeps it renewed until it is released.
+     *
+     * @param blob            The blob to lease.
+     * @param durationSeconds The lease duration, between 15 and 60 seconds.
+     * @param listener        Notified if the lease is lost, or null.
+     * @return The held lease
+     */
+    HeldLease acquire(BlobClientBase blob, int durationSeconds, LeaseLostListener listener) {
+        return acquire(new BlobLeaseClientBuilder().blobClient(blob).buildClient(), blob.getBlobUrl(), durationSeconds, listener);
+    }
+
+    /**
+     * Acquires a lease on a container and keeps it renewed until it is released.
+     *
+     * @param container       The container to lease.
+     * @param durationSeconds The lease duration, between 15 and 60 seconds.
+     * @param listener        Notified if the lease is lost, or null.
+     * @return The held lease
+     */
+    HeldLease acquire(BlobContainerClient container, int durationSeconds, LeaseLostListener listener) {
+        return acquire(new BlobLeaseClientBuilder().containerClient(container).buildClient(),
+                container.getBlobContainerUrl(), durationSeconds, listener);
+    }
+
+    /**
+     * Releases a lease and stops renewing it.
+     *
+     * @param lease The lease to release.
+     */
+    void release(HeldLease lease) {
+        if (!lease.held) {
+            return;
+        }
+        lease.held = false;
+        leases.remove(lease);
+        lease.leaseClient.releaseLease();
+    }
+
+    /**
+     * Returns the number of leases currently held.
+     *
+     * @return The number of leases
+     */
+    int getHeldCount() {
+        return leases.size();
+    }
+
+    /**
+     * Stops renewing and releases every lease still held.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        List<HeldLease> remaining = new ArrayList<HeldLease>(leases);
+        for (final HeldLease lease : remaining) {
+            renewers.execute(() -> {
+                try {
+                    release(lease);
+                } catch (RuntimeException ex) {
+                    // The lease expires on its own if it cannot be released
+                    EventLog.console().warn("Failed to release the lease on %s: %s", lease.resourceUrl, ex.getMessage());
+                }
+            });
+        }
+        renewers.shutdown();
+        try {
+            renewers.awaitTermination(MAX_LEASE_DURATION, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private HeldLease acquire(BlobLeaseClient leaseClient, String resourceUrl, int durationSeconds, LeaseLostListener listener) {
+        if (durationSeconds < MIN_LEASE_DURATION || durationSeconds > MAX_LEASE_DURATION) {
+            throw new IllegalArgumentException(String.format("The lease duration must be between %d and %d seconds.",
+                    MIN_LEASE_DURATION, MAX_LEASE_DURATION));
+        }
+        HeldLease lease = new HeldLease(leaseClient, resourceUrl, durationSeconds, listener);
+        long now = System.currentTimeMillis();
+        leaseClient.acquireLease(durationSeconds);
+        lease.expiresAt = now + TimeUnit.SECONDS.toMillis(durationSeconds);
+        leases.add(lease);
+        scheduleRenewal(lease, now);
+        return lease;
+    }
+
+    /**
+     * Places a lease in the slot of its next renewal, around half way through its duration.
+     */
+    private void scheduleRenewal(HeldLease lease, long renewedAt) {
+        double fraction = 0.5 + ThreadLocalRandom.current().nextDouble(-0.1, 0.1);
+        long due = renewedAt + (long) (TimeUnit.SECONDS.toMillis(lease.durationSeconds) * fraction);
+        addToSlot(lease, due / SLOT_MILLIS);
+    }
+
+    private void addToSlot(HeldLease lease, long slot) {
+        slots.computeIfAbsent(slot, key -> ConcurrentHashMap.<HeldLease>newKeySet()).add(lease);
+    }
+
+    private void renewDueLeases() {
+        long currentSlot = System.currentTimeMillis() / SLOT_MILLIS;
+        Map.Entry<Long, Set<HeldLease>> due;
+        while ((due = slots.firstEntry()) != null && due.getKey() <= currentSlot) {
+            slots.remove(due.getKey());
+            for (final HeldLease lease : due.getValue()) {
+                if (lease.held) {
+                    renewers.execute(() -> renew(lease));
+                }
+            }
+        }
+    }
+
+    private void renew(HeldLease lease) {
+        long now = System.currentTimeMillis();
+        try {
+            lease.leaseClient.renewLease();
+            lease.expiresAt = now + TimeUnit.SECONDS.toMillis(lease.durationSeconds);
+            if (lease.held) {
+                scheduleRenewal(lease, now);
+            }
+        } catch (RuntimeException ex) {
+            if (!lease.held) {
+                return;
+            }
+            // Conflicts and failed preconditions mean someone else owns the resource now, anything else is retried
+            // in the next slot while the lease has not yet expired
+            boolean rejected = ex instanceof BlobStorageException
+                    && (((BlobStorageException) ex).getStatusCode() == 409 || ((BlobStorageException) ex).getStatusCode() == 412);
+            if (rejected || now + SLOT_MILLIS >= lease.expiresAt) {
+                lease.held = false;
+                leases.remove(lease);
+                if (lease.listener != null) {
+                    lease.listener.onLeaseLost(lease, ex);
+                }
+            } else {
+                addToSlot(lease, now / SLOT_MILLIS + 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.core.util.Context;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.specialized.BlobClientBase;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A pack format that bundles many small objects into one block blob so that they cost one blob and a handful of
+ * requests instead of one request each.
+ *
+ * <p>A pack is laid out as the object contents back to back, followed by an index and a fixed size trailer:</p>
+ * <pre>
+ * [object 0][object 1]...[object n-1]
+ * [index: int count, then per object: UTF name, long length, int CRC32]
+ * [trailer: long index offset, int index length, int magic]
+ * </pre>
+ * Offsets are not stored since objects are contiguous in index order.
+ */
+class BlobPack {
+
+    /**
+     * Marks the end of a pack.
+     */
+    static final int MAGIC = 0x42504B31;
+
+    /**
+     * Size of the trailer at the end of every pack.
+     */
+    static final int TRAILER_SIZE = 16;
+
+    /**
+     * Number of bytes read from the end of a pack when opening it. A single read usually covers the whole index.
+     */
+    static final int TAIL_READ_SIZE = 64 * 1024;
+
+    /**
+     * Largest gap between two requested objects that is read through rather than split into two requests.
+     */
+    static final int MAX_COALESCE_GAP = 64 * 1024;
+
+    /**
+     * Largest single ranged read issued when coalescing objects.
+     */
+    static final int MAX_COALESCED_RANGE = 8 * 1024 * 1024;
+
+    /**
+     * An object stored in a pack.
+     */
+    static final class Entry {
+        private final String name;
+        private final long offset;
+        private final long length;
+        private final int crc;
+
+        Entry(String name, long offset, long length, int crc) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        int getCrc() {
+            return crc;
+        }
+    }
+
+    /**
+     * Writes a pack, staging blocks as they fill and committing the block list on close. If adding an object fails
+     * part way, the offsets of the objects after it would be wrong, so the writer refuses further objects and close
+     * leaves the blob as it was.
+     */
+    static final class Writer implements Closeable {
+        private final BlockBlobClient blockBlob;
+        private final byte[] block;
+        private final MessageDigest contentDigest = BlobTransfer.newMd5();
+        private final MessageDigest blockDigest = BlobTransfer.newMd5();
+        private final List<String> blockList = new ArrayList<String>();
+        private final Map<String, Integer> blockRepeats = new HashMap<String, Integer>();
+        private final List<Entry> entries = new ArrayList<Entry>();
+        private final Set<String> names = new HashSet<String>();
+        private final CRC32 crc = new CRC32();
+        private final OutputStream packStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                append(b, off, len);
+            }
+        };
+        private int blockPosition;
+        private long position;
+        private boolean closed;
+        private boolean failed;
+
+        /**
+         * Creates a writer.
+         *
+         * @param blockBlob The block blob the pack is written to. It is overwritten on close.
+         * @param blockSize The size of the staged blocks.
+         */
+        Writer(BlockBlobClient blockBlob, int blockSize) {
+            this.blockBlob = blockBlob;
+            this.block = new byte[blockSize];
+        }
+
+        /**
+         * Adds an object held in memory.
+         *
+         * @param name    The name of the object, unique within the pack.
+         * @param content The content of the object.
+         * @throws IOException
+         */
+        void add(String name, byte[] content) throws IOException {
+            add(name, new ByteArrayInputStream(content));
+        }
+
+        /**
+         * Adds an object, reading its content until the end of the stream.
+         *
+         * @param name    The name of the object, unique within the pack.
+         * @param content The stream of the content of the object.
+         * @throws IOException
+         */
+        void add(String name, InputStream content) throws IOException {
+            if (closed) {
+                throw new IllegalStateException("The pack has already been written.");
+            }
+            if (failed) {
+                throw new IllegalStateException("An earlier object failed to be added, the pack cannot be written.");
+            }
+            if (!names.add(name)) {
+                throw new IllegalArgumentException(String.format("The pack already contains \"%s\".", name));
+            }
+            long start = position;
+            crc.reset();
+            byte[] buffer = new byte[8 * 1024];
+            int bytesRead;
+            try {
+                while ((bytesRead = content.read(buffer)) >= 0) {
+                    crc.update(buffer, 0, bytesRead);
+                    append(buffer, 0, bytesRead);
+                }
+            } catch (IOException | RuntimeException ex) {
+                // Part of the object may be in the pack already
+                failed = true;
+                throw ex;
+            }
+            entries.add(new Entry(name, start, position - start, (int) crc.getValue()));
+        }
+
+        /**
+         * Writes the index and the trailer and commits the pack.
+         *
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (failed) {
+                throw new IOException("The pack was not written, an object failed to be added.");
+            }
+
+            long indexOffset = position;
+            DataOutputStream indexStream = new DataOutputStream(packStream);
+            indexStream.writeInt(entries.size());
+            for (Entry entry : entries) {
+                indexStream.writeUTF(entry.getName());
+                indexStream.writeLong(entry.getLength());
+                indexStream.writeInt(entry.getCrc());
+            }
+            int indexLength = (int) (position - indexOffset);
+            indexStream.writeLong(indexOffset);
+            indexStream.writeInt(indexLength);
+            indexStream.writeInt(MAGIC);
+
+            if (blockPosition > 0) {
+                stageBlock();
+            }
+            BlobTransfer.commit(blockBlob, blockList, contentDigest.digest(), null, null, null);
+        }
+
+        private void append(byte[] data, int off, int len) {
+            contentDigest.update(data, off, len);
+            position += len;
+            while (len > 0) {
+                int count = Math.min(len, block.length - blockPosition);
+                System.arraycopy(data, off, block, blockPosition, count);
+                blockPosition += count;
+                off += count;
+                len -= count;
+                if (blockPosition == block.length) {
+                    stageBlock();
+                }
+            }
+        }
+
+        private void stageBlock() {
+            blockDigest.reset();
+            blockDigest.update(block, 0, blockPosition);
+            byte[] blockMd5 = blockDigest.digest();
+            // The same ids as BlobTransfer stages, the service requires the block ids of a blob to have one length
+            String blockIdEncoded = BlobTransfer.contentBlockId(blockMd5, blockRepeats);
+            BlobTransfer.stageBlock(blockBlob, blockIdEncoded, block, blockPosition, blockMd5);
+            blockList.add(blockIdEncoded);
+            blockPosition = 0;
+        }
+    }
+
+    /**
+     * Reads objects from a pack. The index is fetched once when the reader is created and every read is pinned to
+     * the version of the pack the index was read from.
+     */
+    static final class Reader {
+        private final BlobClientBase blob;
+        private final BlobRequestConditions requestConditions;
+        private final Map<String, Entry> index;
+
+        /**
+         * Opens a pack and loads its index.
+         *
+         * @param blob The blob holding the pack.
+         * @throws IOException If the blob is not a valid pack.
+         */
+        Reader(BlobClientBase blob) throws IOException {
+            this.blob = blob;
+            BlobProperties properties = blob.getProperties();
+            this.requestConditions = new BlobRequestConditions().setIfMatch(properties.getETag());
+            this.index = loadIndex(properties.getBlobSize());
+        }
+
+        /**
+         * Returns the names of the objects in the pack, in pack order.
+         *
+         * @return The object names
+         */
+        Set<String> names() {
+            return Collections.unmodifiableSet(index.keySet());
+        }
+
+        /**
+         * Returns the index entry of an object.
+         *
+         * @param name The name of the object.
+         * @return The entry, or null if the pack does not contain the object
+         */
+        Entry getEntry(String name) {
+            return index.get(name);
+        }
+
+        /**
+         * Reads one object with a single ranged read.
+         *
+         * @param name The name of the object.
+         * @return The content of the object
+         * @throws IOException If the object is missing or its content does not match its checksum.
+         */
+        byte[] read(String name) throws IOException {
+            return readAll(Collections.singletonList(name)).get(name);
+        }
+
+        /**
+         * Reads many objects, coalescing objects stored near each other into shared ranged reads.
+         *
+         * @param names The names of the objects.
+         * @return The content of every object by name
+         * @throws IOException If an object is missing or its content does not match its checksum.
+         */
+        Map<String, byte[]> readAll(Collection<String> names) throws IOException {
+            List<Entry> entries = new ArrayList<Entry>();
+            for (String name : names) {
+                Entry entry = index.get(name);
+                if (entry == null) {
+                    throw new IOException(String.format("The pack \"%s\" does not contain \"%s\".", blob.getBlobUrl(), name));
+                }
+                entries.add(entry);
+            }
+            Collections.sort(entries, (a, b) -> Long.compare(a.getOffset(), b.getOffset()));
+
+            Map<String, byte[]> contents = new HashMap<String, byte[]>();
+            int first = 0;
+            while (first < entries.size()) {
+                // Extend the run while the next object is close enough and the read stays within bounds
+                long start = entries.get(first).getOffset();
+                long end = start + entries.get(first).getLength();
+                int last = first + 1;
+                while (last < entries.size()) {
+                    Entry next = entries.get(last);
+                    long nextEnd = Math.max(end, next.getOffset() + next.getLength());
+                    if (next.getOffset() - end > MAX_COALESCE_GAP || nextEnd - start > MAX_COALESCED_RANGE) {
+                        break;
+                    }
+                    end = nextEnd;
+                    last++;
+                }
+
+                byte[] range = readRange(start, end - start);
+                for (int i = first; i < last; i++) {
+                    Entry entry = entries.get(i);
+                    int from = (int) (entry.getOffset() - start);
+                    byte[] content = new byte[(int) entry.getLength()];
+                    System.arraycopy(range, from, content, 0, content.length);
+                    CRC32 crc = new CRC32();
+                    crc.update(content);
+                    if ((int) crc.getValue() != entry.getCrc()) {
+                        throw new IOException(String.format("Checksum mismatch for \"%s\" in pack \"%s\".",
+                                entry.getName(), blob.getBlobUrl()));
+                    }
+                    contents.put(entry.getName(), content);
+                }
+                first = last;
+            }
+            return contents;
+        }
+
+        private Map<String, Entry> loadIndex(long size) throws IOException {
+            if (size < TRAILER_SIZE) {
+                throw new IOException(String.format("The blob \"%s\" is not a pack.", blob.getBlobUrl()));
+            }
+            long tailOffset = Math.max(0, size - TAIL_READ_SIZE);
+            byte[] tail = readRange(tailOffset, size - tailOffset);
+
+            ByteBuffer trailer = ByteBuffer.wrap(tail, tail.length - TRAILER_SIZE, TRAILER_SIZE);
+            long indexOffset = trailer.getLong();
+            int indexLength = trailer.getInt();
+            if (trailer.getInt() != MAGIC || indexOffset < 0 || indexOffset + indexLength != size - TRAILER_SIZE) {
+                throw new IOException(String.format("The blob \"%s\" is not a pack.", blob.getBlobUrl()));
+            }
+
+            byte[] indexBytes;
+            int indexStart;
+            if (indexOffset >= tailOffset) {
+                indexBytes = tail;
+                indexStart = (int) (indexOffset - tailOffset);
+            } else {
+                // The index is larger than the tail read, fetch the whole of it
+                indexBytes = readRange(indexOffset, indexLength);
+                indexStart = 0;
+            }
+
+            DataInputStream indexStream = new DataInputStream(new ByteArrayInputStream(indexBytes, indexStart, indexLength));
+            int count = indexStream.readInt();
+            Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+            long offset = 0;
+            for (int i = 0; i < count; i++) {
+                String name = indexStream.readUTF();
+                long length = indexStream.readLong();
+                int crc = indexStream.readInt();
+                entries.put(name, new Entry(name, offset, length, crc));
+                offset += length;
+            }
+            return entries;
+        }
+
+        private byte[] readRange(long offset, long count) throws IOException {
+            final byte[] range = new byte[(int) count];
+            OutputStream rangeStream = new OutputStream() {
+                private int position;
+
+                @Override
+                public void write(int b) {
+                    range[position++] = (byte) b;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    System.arraycopy(b, off, range, position, len);
+                    position += len;
+                }
+            };
+            if (count > 0) {
+                TransferScheduler.shared().run(count, () -> blob.downloadWithResponse(rangeStream,
+                        new BlobRange(offset, count), null, requestConditions, false, null, Context.NONE));
+            }
+            return range;
+        }
+    }
+}
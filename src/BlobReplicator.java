@@ -0,0 +1,357 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.models.BlobDownloadResponse;
+import com.azure.storage.blob.models.BlobHttpHeaders;
+import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.ListBlobsOptions;
+import com.azure.storage.blob.specialized.BlobClientBase;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Copies blobs between endpoints that cannot reach each other, streaming through this process without touching disk.
+ * Every block is read from the source as a range and staged on the destination as soon as it arrives, on a pool whose
+ * threads each own one block buffer, so the memory used is bounded by the pool size times the block size however many
+ * blobs are copied at once. The service computes the MD5 of every source range and the same MD5 is sent with the
+ * staged block, so a block corrupted on either leg is rejected. The blocks of a blob are also hashed in order, and
+ * the blob is committed only if that MD5 matches the source Content-MD5. Reads are pinned to the source ETag.
+ * Destinations are block blobs whatever the source blob type.
+ */
+class BlobReplicator implements Closeable {
+
+    /**
+     * Counts of what a replication did.
+     */
+    static final class Result {
+        private final AtomicLong blobs = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        /**
+         * Returns the number of blobs copied.
+         */
+        long getBlobs() {
+            return blobs.get();
+        }
+
+        /**
+         * Returns the number of bytes copied.
+         */
+        long getBytes() {
+            return bytes.get();
+        }
+    }
+
+    /**
+     * The MD5 of a blob's blocks, updated in block order by workers that finish out of order, which also hands out the
+     * content block ids since those count the earlier blocks with the same content. The pool runs blocks in the order
+     * they were submitted, so the block a worker waits for is always running on another worker.
+     * {@link BlobTransfer#downloadToFileParallel} hashes its ranges with it too.
+     */
+    static final class OrderedDigest {
+        private final MessageDigest digest = BlobTransfer.newMd5();
+        private final Map<String, Integer> repeats = new HashMap<String, Integer>();
+        private int next;
+        private boolean failed;
+
+        /**
+         * Adds a block once the blocks before it were added.
+         */
+        void update(int blockNum, byte[] buffer, int length) throws IOException {
+            update(blockNum, buffer, length, null);
+        }
+
+        /**
+         * Adds a block once the blocks before it were added.
+         *
+         * @param blockMd5 The MD5 of the block, or null when no block id is needed.
+         * @return The block id of the block, or null
+         */
+        synchronized String update(int blockNum, byte[] buffer, int length, byte[] blockMd5) throws IOException {
+            while (next != blockNum && !failed) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the previous block.");
+                }
+            }
+            if (failed) {
+                throw new IOException("An earlier block failed.");
+            }
+            digest.update(buffer, 0, length);
+            next++;
+            notifyAll();
+            return blockMd5 != null ? BlobTransfer.contentBlockId(blockMd5, repeats) : null;
+        }
+
+        synchronized void fail() {
+            failed = true;
+            notifyAll();
+        }
+
+        synchronized byte[] digest() {
+            return digest.digest();
+        }
+    }
+
+    private final int blockSize;
+    private final int blobConcurrency;
+    private final ExecutorService blockWorkers;
+    // Each block worker reuses one buffer, which bounds the memory used by all copies together
+    private final ThreadLocal<byte[]> buffers;
+
+    /**
+     * Creates a replicator.
+     *
+     * @param blockSize       The size of the ranges read and blocks staged, at most 4MB so the service hashes them.
+     * @param blockWorkers    The number of blocks copied at the same time, which is also the number of buffers.
+     * @param blobConcurrency The number of blobs copied at the same time by {@link #replicate(BlobContainerClient,
+     *                        String, BlobContainerClient)}.
+     */
+    BlobReplicator(final int blockSize, int blockWorkers, int blobConcurrency) {
+        if (blockSize <= 0 || blockSize > BlobTransfer.MAX_RANGE_MD5_SIZE) {
+            throw new IllegalArgumentException(String.format("The block size must be between 1 and %d bytes.",
+                    BlobTransfer.MAX_RANGE_MD5_SIZE));
+        }
+        this.blockSize = blockSize;
+        this.blobConcurrency = blobConcurrency;
+        this.blockWorkers = Executors.newFixedThreadPool(Math.max(1, blockWorkers), runnable -> {
+            Thread thread = new Thread(runnable, "blob-replicator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.buffers = ThreadLocal.withInitial(() -> new byte[blockSize]);
+    }
+
+    /**
+     * Copies every blob under a prefix to a destination container, keeping their names.
+     *
+     * @param source      The container to copy from.
+     * @param prefix      The prefix of the blobs to copy, empty for the whole container.
+     * @param destination The container to copy to.
+     * @return The numbers of blobs and bytes copied
+     * @throws InterruptedException
+     */
+    Result replicate(BlobContainerClient source, String prefix, final BlobContainerClient destination)
+            throws InterruptedException {
+        return replicate(source.listBlobs(new ListBlobsOptions().setPrefix(prefix), null), source::getBlobClient,
+                destination);
+    }
+
+    /**
+     * Copies every blob under a prefix of a container spread over several accounts to a destination container,
+     * keeping their names. The listings of all accounts are merged in name order and every blob is read from the
+     * account holding it.
+     *
+     * @param source        The accounts the source container is spread over.
+     * @param containerName The name of the container to copy from.
+     * @param prefix        The prefix of the blobs to copy, empty for the whole container.
+     * @param destination   The container to copy to.
+     * @return The numbers of blobs and bytes copied
+     * @throws InterruptedException
+     */
+    Result replicate(ShardedBlobServiceClient source, String containerName, String prefix,
+                     BlobContainerClient destination) throws InterruptedException {
+        return replicate(source.listBlobs(containerName, new ListBlobsOptions().setPrefix(prefix)),
+                name -> source.getBlobClient(containerName, name), destination);
+    }
+
+    private Result replicate(Iterable<BlobItem> listing, Function<String, BlobClientBase> sourceBlobs,
+                             final BlobContainerClient destination) throws InterruptedException {
+        final Result result = new Result();
+        BoundedCalls calls = new BoundedCalls(blobConcurrency);
+        try {
+            for (BlobItem item : listing) {
+                final BlobClientBase sourceBlob = sourceBlobs.apply(item.getName());
+                final BlockBlobClient destinationBlob = destination.getBlobClient(item.getName()).getBlockBlobClient();
+                calls.submit(() -> {
+                    try {
+                        result.bytes.addAndGet(replicate(sourceBlob, destinationBlob));
+                        result.blobs.incrementAndGet();
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            }
+        } catch (Throwable ex) {
+            calls.finish(ex);
+            throw ex;
+        }
+        calls.finish();
+        return result;
+    }
+
+    /**
+     * Copies one blob with its HTTP headers and metadata.
+     *
+     * @param source      The blob, or snapshot, to copy.
+     * @param destination The block blob to write.
+     * @return The number of bytes copied
+     * @throws IOException
+     */
+    long replicate(final BlobClientBase source, final BlockBlobClient destination) throws IOException {
+        return replicate(source, destination, null);
+    }
+
+    /**
+     * Copies one blob with its HTTP headers and metadata, writing the destination only if it meets the conditions.
+     * The conditions are checked when the content is committed, after the blocks were staged.
+     *
+     * @param source                The blob, or snapshot, to copy.
+     * @param destination           The block blob to write.
+     * @param destinationConditions The conditions the destination must meet, or null.
+     * @return The number of bytes copied
+     * @throws IOException
+     */
+    long replicate(final BlobClientBase source, final BlockBlobClient destination,
+                   BlobRequestConditions destinationConditions) throws IOException {
+        BlobProperties properties = source.getProperties();
+        final BlobRequestConditions requestConditions = new BlobRequestConditions().setIfMatch(properties.getETag());
+        final long size = properties.getBlobSize();
+        BlobHttpHeaders headers = new BlobHttpHeaders()
+                .setContentType(properties.getContentType())
+                .setContentEncoding(properties.getContentEncoding())
+                .setContentLanguage(properties.getContentLanguage())
+                .setContentDisposition(properties.getContentDisposition())
+                .setCacheControl(properties.getCacheControl());
+
+        if (size <= blockSize) {
+            // A single range, copied with one Put Blob request
+            byte[] content = new byte[(int) size];
+            byte[] contentMd5 = size > 0 ? readRange(source, 0, content, (int) size, requestConditions)
+                    : BlobTransfer.newMd5().digest(content);
+            // Check the source Content-MD5 before anything is written to the destination
+            BlobTransfer.verifyMd5(properties.getContentMd5(), contentMd5,
+                    String.format("blob \"%s\"", source.getBlobUrl()));
+            BlobTransfer.uploadBytes(destination, content, content.length, headers, properties.getMetadata(), null,
+                    destinationConditions);
+            return size;
+        }
+
+        long blockCount = (size + blockSize - 1) / blockSize;
+        if (blockCount > BlockBlobClient.MAX_BLOCKS) {
+            throw new IOException(String.format("The blob \"%s\" needs more than %d blocks of %d bytes.",
+                    source.getBlobUrl(), BlockBlobClient.MAX_BLOCKS, blockSize));
+        }
+        // Content ids like the ones BlobTransfer stages, which keeps the ids of a blob at one length and lets a
+        // BlobDeltaDownload of the copy reuse unchanged blocks
+        final String[] blockIds = new String[(int) blockCount];
+        List<CompletableFuture<Void>> blocks = new ArrayList<CompletableFuture<Void>>();
+        final OrderedDigest contentDigest = new OrderedDigest();
+        for (int blockNum = 0; blockNum < blockCount; blockNum++) {
+            final int currentBlock = blockNum;
+            final long offset = (long) blockNum * blockSize;
+            final int length = (int) Math.min(blockSize, size - offset);
+            blocks.add(CompletableFuture.runAsync(TransferScheduler.propagate(() -> {
+                byte[] buffer = buffers.get();
+                byte[] blockMd5;
+                try {
+                    blockMd5 = readRange(source, offset, buffer, length, requestConditions);
+                    blockIds[currentBlock] = contentDigest.update(currentBlock, buffer, length, blockMd5);
+                } catch (IOException ex) {
+                    contentDigest.fail();
+                    throw new UncheckedIOException(ex);
+                } catch (RuntimeException ex) {
+                    contentDigest.fail();
+                    throw ex;
+                }
+                BlobTransfer.stageBlock(destination, blockIds[currentBlock], buffer, length, blockMd5);
+            }), blockWorkers));
+        }
+        try {
+            CompletableFuture.allOf(blocks.toArray(new CompletableFuture<?>[0])).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while copying blocks.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) ex.getCause()).getCause();
+            }
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+
+        // The blocks are committed in the order they were hashed, so this is the MD5 of the committed content
+        byte[] contentMd5 = contentDigest.digest();
+        BlobTransfer.verifyMd5(properties.getContentMd5(), contentMd5, String.format("blob \"%s\"", source.getBlobUrl()));
+        BlobTransfer.commit(destination, Arrays.asList(blockIds), contentMd5, headers, properties.getMetadata(), null,
+                destinationConditions);
+        return size;
+    }
+
+    /**
+     * Stops the block workers.
+     */
+    @Override
+    public void close() {
+        blockWorkers.shutdownNow();
+    }
+
+    /**
+     * Reads a range of the source into the buffer and checks it against the MD5 the service computed.
+     *
+     * @return The MD5 of the range
+     */
+    private static byte[] readRange(BlobClientBase source, long offset, final byte[] buffer, int length,
+                                  BlobRequestConditions requestConditions) throws IOException {
+        OutputStream bufferStream = new OutputStream() {
+            private int position;
+
+            @Override
+            public void write(int b) {
+                buffer[position++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                System.arraycopy(b, off, buffer, position, len);
+                position += len;
+            }
+        };
+        BlobDownloadResponse response = TransferScheduler.shared().run(length, () -> source.downloadWithResponse(
+                bufferStream, new BlobRange(offset, (long) length), null, requestConditions, true, null, Context.NONE));
+        MessageDigest rangeDigest = BlobTransfer.newMd5();
+        rangeDigest.update(buffer, 0, length);
+        byte[] rangeMd5 = rangeDigest.digest();
+        BlobTransfer.verifyMd5(response.getDeserializedHeaders().getContentMd5(), rangeMd5,
+                String.format("range %d-%d of blob \"%s\"", offset, offset + length - 1, source.getBlobUrl()));
+        return rangeMd5;
+    }
+}
@@ -0,0 +1,330 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.core.util.Context;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.specialized.BlobClientBase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A read-only seekable view of a blob backed by ranged reads.
+ * Content is fetched in fixed size blocks aligned to the block size and kept in a small LRU block cache, so scattered
+ * small reads that fall in the same block cost one request. Blocks a read needs that are next to each other are
+ * fetched with a single range, and once reads turn sequential the following blocks are fetched ahead in the background.
+ * Every read is pinned to the version of the blob that was opened.
+ */
+class BlobSeekableByteChannel implements SeekableByteChannel {
+
+    /**
+     * Default size of the cached blocks.
+     */
+    static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * Number of consecutive sequential reads after which read-ahead starts.
+     */
+    private static final int SEQUENTIAL_THRESHOLD = 2;
+
+    private static final ExecutorService PREFETCH_EXECUTOR = newPrefetchExecutor();
+
+    private final BlobClientBase blob;
+    private final BlobRequestConditions requestConditions;
+    private final long size;
+    private final int blockSize;
+    private final int readAheadBlocks;
+    private final LinkedHashMap<Long, CompletableFuture<byte[]>> blocks;
+    private long position;
+    private long lastReadEnd = -1;
+    private int sequentialReads;
+    private boolean open = true;
+
+    /**
+     * Opens a blob with the default block size, a 64 block cache and 8 blocks of read-ahead.
+     *
+     * @param blob The blob, or a snapshot of it.
+     */
+    BlobSeekableByteChannel(BlobClientBase blob) {
+        this(blob, DEFAULT_BLOCK_SIZE, 64, 8);
+    }
+
+    /**
+     * Opens a blob.
+     *
+     * @param blob            The blob, or a snapshot of it.
+     * @param blockSize       The size of the fetched and cached blocks.
+     * @param cacheBlocks     The number of blocks kept in memory.
+     * @param readAheadBlocks The number of blocks fetched ahead of sequential reads, 0 to disable read-ahead.
+     */
+    BlobSeekableByteChannel(BlobClientBase blob, int blockSize, final int cacheBlocks, int readAheadBlocks) {
+        if (blockSize <= 0 || cacheBlocks <= readAheadBlocks) {
+            throw new IllegalArgumentException("The cache must hold more blocks than are read ahead.");
+        }
+        BlobProperties properties = blob.getProperties();
+        this.blob = blob;
+        this.requestConditions = new BlobRequestConditions().setIfMatch(properties.getETag());
+        this.size = properties.getBlobSize();
+        this.blockSize = blockSize;
+        this.readAheadBlocks = readAheadBlocks;
+        this.blocks = new LinkedHashMap<Long, CompletableFuture<byte[]>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CompletableFuture<byte[]>> eldest) {
+                return size() > cacheBlocks;
+            }
+        };
+    }
+
+    /**
+     * Returns an input stream over the channel. Closing the stream closes the channel.
+     *
+     * @return The input stream
+     */
+    InputStream asInputStream() {
+        return Channels.newInputStream(this);
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        int length = (int) Math.min(dst.remaining(), size - position);
+        if (length == 0) {
+            return 0;
+        }
+
+        // Detect sequential access and fetch ahead of it
+        sequentialReads = position == lastReadEnd ? sequentialReads + 1 : 0;
+        long firstBlock = position / blockSize;
+        long lastBlock = (position + length - 1) / blockSize;
+        List<CompletableFuture<byte[]>> needed = fetch(firstBlock, lastBlock, false);
+        if (sequentialReads >= SEQUENTIAL_THRESHOLD && readAheadBlocks > 0) {
+            long lastBlockOfBlob = (size - 1) / blockSize;
+            if (lastBlock < lastBlockOfBlob) {
+                fetch(lastBlock + 1, Math.min(lastBlockOfBlob, lastBlock + readAheadBlocks), true);
+            }
+        }
+
+        int copied = 0;
+        for (CompletableFuture<byte[]> future : needed) {
+            byte[] block = await(future);
+            int offsetInBlock = (int) ((position + copied) % blockSize);
+            int count = Math.min(length - copied, block.length - offsetInBlock);
+            dst.put(block, offsetInBlock, count);
+            copied += count;
+        }
+        position += copied;
+        lastReadEnd = position;
+        return copied;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("The position must not be negative.");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        blocks.clear();
+    }
+
+    /**
+     * Returns the futures of a run of blocks, starting one ranged read for every stretch of blocks not yet cached.
+     */
+    private List<CompletableFuture<byte[]>> fetch(long firstBlock, long lastBlock, boolean async) {
+        List<CompletableFuture<byte[]>> futures = new ArrayList<CompletableFuture<byte[]>>();
+        List<CompletableFuture<byte[]>> missing = new ArrayList<CompletableFuture<byte[]>>();
+        long missingStart = -1;
+        for (long index = firstBlock; index <= lastBlock; index++) {
+            CompletableFuture<byte[]> future = blocks.get(index);
+            if (future == null) {
+                future = new CompletableFuture<byte[]>();
+                blocks.put(index, future);
+                if (missing.isEmpty()) {
+                    missingStart = index;
+                }
+                missing.add(future);
+            } else if (!missing.isEmpty()) {
+                startRead(missingStart, missing, async);
+                missing = new ArrayList<CompletableFuture<byte[]>>();
+            }
+            futures.add(future);
+        }
+        if (!missing.isEmpty()) {
+            startRead(missingStart, missing, async);
+        }
+        return futures;
+    }
+
+    private void startRead(final long firstBlock, final List<CompletableFuture<byte[]>> futures, boolean async) {
+        if (async) {
+            PREFETCH_EXECUTOR.execute(TransferScheduler.propagate(() -> readBlocks(firstBlock, futures)));
+        } else {
+            readBlocks(firstBlock, futures);
+        }
+    }
+
+    /**
+     * Reads a run of blocks with a single ranged read and completes their futures.
+     */
+    private void readBlocks(long firstBlock, List<CompletableFuture<byte[]>> futures) {
+        long offset = firstBlock * blockSize;
+        long count = Math.min((long) futures.size() * blockSize, size - offset);
+        try {
+            final List<byte[]> contents = new ArrayList<byte[]>();
+            for (int i = 0; i < futures.size(); i++) {
+                contents.add(new byte[(int) Math.min(blockSize, count - (long) i * blockSize)]);
+            }
+            // Split the range into the block arrays as it streams in
+            OutputStream blockStream = new OutputStream() {
+                private int block;
+                private int position;
+
+                @Override
+                public void write(int b) {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    while (len > 0) {
+                        byte[] current = contents.get(block);
+                        int copy = Math.min(len, current.length - position);
+                        System.arraycopy(b, off, current, position, copy);
+                        position += copy;
+                        off += copy;
+                        len -= copy;
+                        if (position == current.length) {
+                            block++;
+                            position = 0;
+                        }
+                    }
+                }
+            };
+            // A reader is waiting on these blocks, or soon will be
+            TransferScheduler.Scope scope = TransferScheduler.withPriority(TransferScheduler.Priority.INTERACTIVE,
+                    blob.getContainerName());
+            try {
+                TransferScheduler.shared().execute(count, () -> blob.downloadWithResponse(blockStream,
+                        new BlobRange(offset, count), null, requestConditions, false, null, Context.NONE));
+            } finally {
+                scope.close();
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                futures.get(i).complete(contents.get(i));
+            }
+        } catch (RuntimeException ex) {
+            // Fail the waiting readers first, they may hold the lock needed below
+            for (CompletableFuture<byte[]> future : futures) {
+                future.completeExceptionally(ex);
+            }
+            synchronized (this) {
+                // Drop the failed blocks so a later read retries them
+                for (int i = 0; i < futures.size(); i++) {
+                    blocks.remove(firstBlock + i, futures.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the read-ahead pool. More threads than the scheduler has slots would only wait for one, so the pool
+     * is bounded by the slots and further read-aheads queue. Idle threads exit.
+     */
+    private static ExecutorService newPrefetchExecutor() {
+        int threads = TransferScheduler.shared().getSlots();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), runnable -> {
+                    Thread thread = new Thread(runnable, "blob-read-ahead");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static byte[] await(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading the blob.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
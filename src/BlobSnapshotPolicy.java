@@ -0,0 +1,313 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.BlobListDetails;
+import com.azure.storage.blob.models.ListBlobsOptions;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Creates snapshots of every blob under a prefix and prunes snapshots according to a retention policy.
+ * The top level virtual directories of the prefix are listed in parallel, a bounded number at a time, and the
+ * snapshot and delete calls run concurrently with a bound on the calls in flight.
+ */
+class BlobSnapshotPolicy {
+
+    /**
+     * Which snapshots of a blob to keep. A snapshot is kept if any rule selects it.
+     */
+    static final class RetentionPolicy {
+        private int keepLast;
+        private int keepDaily;
+        private int keepWeekly;
+
+        /**
+         * Keeps the given number of most recent snapshots.
+         */
+        RetentionPolicy setKeepLast(int keepLast) {
+            this.keepLast = keepLast;
+            return this;
+        }
+
+        /**
+         * Keeps the most recent snapshot of each of the given number of most recent days (UTC) that have one.
+         */
+        RetentionPolicy setKeepDaily(int keepDaily) {
+            this.keepDaily = keepDaily;
+            return this;
+        }
+
+        /**
+         * Keeps the most recent snapshot of each of the given number of most recent ISO weeks that have one.
+         */
+        RetentionPolicy setKeepWeekly(int keepWeekly) {
+            this.keepWeekly = keepWeekly;
+            return this;
+        }
+
+        /**
+         * Selects the snapshots to keep.
+         *
+         * @param snapshotIds The snapshot ids of one blob, which are their creation times.
+         * @return The snapshot ids to keep
+         */
+        Set<String> retain(List<String> snapshotIds) {
+            List<String> newestFirst = new ArrayList<String>(snapshotIds);
+            // Snapshot ids are fixed width ISO 8601 timestamps, so they sort chronologically
+            Collections.sort(newestFirst, Collections.reverseOrder());
+
+            Set<String> kept = new HashSet<String>(newestFirst.subList(0, Math.min(keepLast, newestFirst.size())));
+            Set<String> days = new HashSet<String>();
+            Set<String> weeks = new HashSet<String>();
+            for (String snapshotId : newestFirst) {
+                OffsetDateTime time = OffsetDateTime.parse(snapshotId).withOffsetSameInstant(ZoneOffset.UTC);
+                String day = time.toLocalDate().toString();
+                if (days.size() < keepDaily && days.add(day)) {
+                    kept.add(snapshotId);
+                }
+                String week = time.get(IsoFields.WEEK_BASED_YEAR) + "-W" + time.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR);
+                if (weeks.size() < keepWeekly && weeks.add(week)) {
+                    kept.add(snapshotId);
+                }
+            }
+            return kept;
+        }
+    }
+
+    /**
+     * Counts of what an operation did.
+     */
+    static final class Result {
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong deleted = new AtomicLong();
+
+        /**
+         * Returns the number of snapshots created or kept.
+         */
+        long getProcessed() {
+            return processed.get();
+        }
+
+        /**
+         * Returns the number of snapshots deleted.
+         */
+        long getDeleted() {
+            return deleted.get();
+        }
+    }
+
+    /**
+     * A part of the prefix listed flat on its own: either a top level virtual directory, or the top level blobs of
+     * the prefix, whose listing skips the entries of the virtual directories.
+     */
+    private static final class Shard {
+        private final String prefix;
+        private final boolean topLevelOnly;
+
+        private Shard(String prefix, boolean topLevelOnly) {
+            this.prefix = prefix;
+            this.topLevelOnly = topLevelOnly;
+        }
+
+        private boolean includes(String name) {
+            return !topLevelOnly || name.indexOf('/', prefix.length()) < 0;
+        }
+    }
+
+    /**
+     * Snapshots every blob under a prefix. Listing and snapshot failures are rethrown once all calls finished.
+     *
+     * @param container   The container holding the blobs.
+     * @param prefix      The prefix of the blobs to snapshot, empty for the whole container.
+     * @param concurrency The number of concurrent listings and of concurrent snapshot calls.
+     * @return The number of snapshots created
+     * @throws InterruptedException
+     */
+    static Result snapshotAll(final BlobContainerClient container, String prefix, int concurrency) throws InterruptedException {
+        final Result result = new Result();
+        runBounded(container, prefix, concurrency, (shard, calls) -> {
+            for (BlobItem item : container.listBlobs(new ListBlobsOptions().setPrefix(shard.prefix), null)) {
+                if (calls.isFailed()) {
+                    return;
+                }
+                snapshot(container, item.getName(), calls, result);
+            }
+        }, (item, calls) -> snapshot(container, item.getName(), calls, result));
+        return result;
+    }
+
+    /**
+     * Deletes the snapshots of every blob under a prefix that the policy does not retain. Listing and delete failures
+     * are rethrown once all calls finished.
+     * The flat listing returns a blob's snapshots next to each other, so only one blob's snapshots are held at a time
+     * in every shard. Hierarchical listings cannot return snapshots, so the top level blobs are pruned from one flat
+     * listing of the prefix that skips the entries of the virtual directories.
+     *
+     * @param container   The container holding the blobs.
+     * @param prefix      The prefix of the blobs to prune, empty for the whole container.
+     * @param policy      The retention policy.
+     * @param concurrency The number of concurrent listings and of concurrent delete calls.
+     * @return The numbers of snapshots kept and deleted
+     * @throws InterruptedException
+     */
+    static Result prune(final BlobContainerClient container, String prefix, final RetentionPolicy policy, int concurrency) throws InterruptedException {
+        final Result result = new Result();
+        runBounded(container, prefix, concurrency, (shard, calls) -> {
+            String currentName = null;
+            List<String> snapshotIds = new ArrayList<String>();
+            ListBlobsOptions options = new ListBlobsOptions()
+                    .setPrefix(shard.prefix)
+                    .setDetails(new BlobListDetails().setRetrieveSnapshots(true));
+            for (BlobItem item : container.listBlobs(options, null)) {
+                if (calls.isFailed()) {
+                    return;
+                }
+                if (!shard.includes(item.getName())) {
+                    continue;
+                }
+                if (!item.getName().equals(currentName)) {
+                    pruneBlob(container, currentName, snapshotIds, policy, calls, result);
+                    currentName = item.getName();
+                    snapshotIds = new ArrayList<String>();
+                }
+                if (item.getSnapshot() != null) {
+                    snapshotIds.add(item.getSnapshot());
+                }
+            }
+            pruneBlob(container, currentName, snapshotIds, policy, calls, result);
+        }, null);
+        return result;
+    }
+
+    private static void pruneBlob(final BlobContainerClient container, final String name, List<String> snapshotIds,
+                                  RetentionPolicy policy, BoundedCalls calls, Result result) throws InterruptedException {
+        if (name == null || snapshotIds.isEmpty()) {
+            return;
+        }
+        Set<String> kept = policy.retain(snapshotIds);
+        result.processed.addAndGet(kept.size());
+        for (final String snapshotId : snapshotIds) {
+            if (!kept.contains(snapshotId)) {
+                calls.submit(() -> {
+                    container.getBlobClient(name, snapshotId).delete();
+                    result.deleted.incrementAndGet();
+                });
+            }
+        }
+    }
+
+    private static void snapshot(final BlobContainerClient container, final String name, BoundedCalls calls,
+                                 final Result result) throws InterruptedException {
+        calls.submit(() -> {
+            container.getBlobClient(name).createSnapshot();
+            result.processed.incrementAndGet();
+        });
+    }
+
+    private interface ShardTask {
+        void run(Shard shard, BoundedCalls calls) throws InterruptedException;
+    }
+
+    private interface TopLevelBlobTask {
+        void run(BlobItem item, BoundedCalls calls) throws InterruptedException;
+    }
+
+    /**
+     * Walks the top level of a prefix and runs the calls the tasks submit with a bound on the calls in flight.
+     * The top level virtual directories are listed in parallel, at most one per thread at a time. The top level blobs
+     * are handed to their task as the top level listing returns them, or are listed as one more shard when there is
+     * no such task. The walk stops once a listing or a call failed, and the first failure is rethrown once all calls
+     * finished.
+     *
+     * @param topLevelBlobTask The task for a top level blob, or null to list the top level blobs flat.
+     */
+    private static void runBounded(BlobContainerClient container, String prefix, int concurrency,
+                                   final ShardTask shardTask, TopLevelBlobTask topLevelBlobTask) throws InterruptedException {
+        final BoundedCalls calls = new BoundedCalls(concurrency);
+        try {
+            walkTopLevel(container, prefix, concurrency, shardTask, topLevelBlobTask, calls);
+        } catch (Throwable ex) {
+            calls.finish(ex);
+            throw ex;
+        }
+        calls.finish();
+    }
+
+    private static void walkTopLevel(BlobContainerClient container, String prefix, int concurrency,
+                                     final ShardTask shardTask, TopLevelBlobTask topLevelBlobTask,
+                                     final BoundedCalls calls) throws InterruptedException {
+        final int listers = Math.max(1, concurrency);
+        final Semaphore listing = new Semaphore(listers);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        ExecutorService listerPool = Executors.newFixedThreadPool(listers);
+        try {
+            boolean topLevelListed = false;
+            for (BlobItem item : container.listBlobsByHierarchy("/", new ListBlobsOptions().setPrefix(prefix), null)) {
+                if (failure.get() != null || calls.isFailed()) {
+                    break;
+                }
+                final Shard shard;
+                if (Boolean.TRUE.equals(item.isPrefix())) {
+                    shard = new Shard(item.getName(), false);
+                } else if (topLevelBlobTask != null) {
+                    topLevelBlobTask.run(item, calls);
+                    continue;
+                } else if (!topLevelListed) {
+                    topLevelListed = true;
+                    shard = new Shard(prefix, true);
+                } else {
+                    continue;
+                }
+                // Wait for a free lister instead of queueing every virtual directory
+                listing.acquire();
+                listerPool.execute(TransferScheduler.propagate(() -> {
+                    try {
+                        shardTask.run(shard, calls);
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    } finally {
+                        listing.release();
+                    }
+                }));
+            }
+            listing.acquire(listers);
+        } finally {
+            listerPool.shutdownNow();
+        }
+
+        Throwable ex = failure.get();
+        if (ex instanceof InterruptedException) {
+            throw (InterruptedException) ex;
+        } else if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        } else if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+    }
+}
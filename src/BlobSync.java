@@ -0,0 +1,518 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.BlobListDetails;
+import com.azure.storage.blob.models.ListBlobsOptions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Synchronizes a local directory tree with a container prefix in either direction.
+ * The local tree is walked in blob name order, with directory listings fetched ahead in parallel, and merged with the
+ * remote listing, which the service already returns in name order. Only the two cursors and the transfers in flight
+ * are held in memory, so the cost does not grow with the number of files. Symbolic links in the local tree are skipped.
+ */
+class BlobSync {
+
+    /**
+     * Metadata key holding the modification time, in milliseconds, of the local file a blob was uploaded from.
+     */
+    static final String MTIME_METADATA_KEY = "mtime";
+
+    /**
+     * Number of directory listings fetched ahead of the walk in every directory.
+     */
+    private static final int LISTING_PREFETCH = 16;
+
+    /**
+     * Options of a synchronization.
+     */
+    static final class SyncOptions {
+        private boolean compareChecksums;
+        private boolean deleteExtras;
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+        private int blockSize = TransferProfile.current().getUploadBlockSize();
+        private int uploadBuffers = TransferProfile.current().getUploadBuffers();
+        private int downloadRangeSize = TransferProfile.current().getDownloadRangeSize();
+        private int downloadConcurrency = TransferProfile.current().getDownloadConcurrency();
+
+        boolean isCompareChecksums() {
+            return compareChecksums;
+        }
+
+        /**
+         * When set, entries of the same size are compared by MD5 instead of modification time.
+         */
+        SyncOptions setCompareChecksums(boolean compareChecksums) {
+            this.compareChecksums = compareChecksums;
+            return this;
+        }
+
+        boolean isDeleteExtras() {
+            return deleteExtras;
+        }
+
+        /**
+         * When set, entries that only exist on the target side are deleted.
+         */
+        SyncOptions setDeleteExtras(boolean deleteExtras) {
+            this.deleteExtras = deleteExtras;
+            return this;
+        }
+
+        int getParallelism() {
+            return parallelism;
+        }
+
+        SyncOptions setParallelism(int parallelism) {
+            this.parallelism = Math.max(1, parallelism);
+            return this;
+        }
+
+        int getBlockSize() {
+            return blockSize;
+        }
+
+        SyncOptions setBlockSize(int blockSize) {
+            this.blockSize = blockSize;
+            return this;
+        }
+
+        int getUploadBuffers() {
+            return uploadBuffers;
+        }
+
+        /**
+         * Sets the number of block buffers of every upload, one more than the blocks it stages at the same time.
+         */
+        SyncOptions setUploadBuffers(int uploadBuffers) {
+            this.uploadBuffers = Math.max(2, uploadBuffers);
+            return this;
+        }
+
+        int getDownloadRangeSize() {
+            return downloadRangeSize;
+        }
+
+        /**
+         * Sets the size of the ranges a download reads, at most 4MB so the service hashes them.
+         */
+        SyncOptions setDownloadRangeSize(int downloadRangeSize) {
+            this.downloadRangeSize = Math.max(1, Math.min(downloadRangeSize, BlobTransfer.MAX_RANGE_MD5_SIZE));
+            return this;
+        }
+
+        int getDownloadConcurrency() {
+            return downloadConcurrency;
+        }
+
+        /**
+         * Sets the number of ranges of every download read at the same time.
+         */
+        SyncOptions setDownloadConcurrency(int downloadConcurrency) {
+            this.downloadConcurrency = Math.max(1, downloadConcurrency);
+            return this;
+        }
+    }
+
+    /**
+     * Counts of what a synchronization did.
+     */
+    static final class SyncResult {
+        private final AtomicLong transferred = new AtomicLong();
+        private final AtomicLong transferredBytes = new AtomicLong();
+        private final AtomicLong unchanged = new AtomicLong();
+        private final AtomicLong deleted = new AtomicLong();
+
+        long getTransferred() {
+            return transferred.get();
+        }
+
+        long getTransferredBytes() {
+            return transferredBytes.get();
+        }
+
+        long getUnchanged() {
+            return unchanged.get();
+        }
+
+        long getDeleted() {
+            return deleted.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("transferred: %d (%d bytes), unchanged: %d, deleted: %d",
+                    getTransferred(), getTransferredBytes(), getUnchanged(), getDeleted());
+        }
+    }
+
+    /**
+     * Uploads new and changed files of a local tree to a container prefix.
+     *
+     * @param root      The local directory to upload.
+     * @param container The container to upload to.
+     * @param prefix    The virtual directory blob names are created under, with or without a trailing "/", empty
+     *                  for the container root.
+     * @param options   The synchronization options.
+     * @return What the synchronization did
+     * @throws IOException
+     */
+    static SyncResult upload(Path root, BlobContainerClient container, String prefix, SyncOptions options) throws IOException {
+        return sync(root, container, prefix, options, true);
+    }
+
+    /**
+     * Downloads new and changed blobs under a container prefix to a local tree.
+     *
+     * @param container The container to download from.
+     * @param prefix    The virtual directory of the blobs to download, with or without a trailing "/", empty for
+     *                  the whole container.
+     * @param root      The local directory to download to.
+     * @param options   The synchronization options.
+     * @return What the synchronization did
+     * @throws IOException
+     */
+    static SyncResult download(BlobContainerClient container, String prefix, Path root, SyncOptions options) throws IOException {
+        return sync(root, container, prefix, options, false);
+    }
+
+    private static SyncResult sync(Path root, BlobContainerClient container, String prefix, SyncOptions options,
+                                   boolean upload) throws IOException {
+        // The prefix stands for a virtual directory, so blob names continue after a separator
+        String directory = prefix.isEmpty() || prefix.endsWith("/") ? prefix : prefix + "/";
+        // A synchronization is background work, it yields the slots to the other transfers
+        TransferScheduler.Scope scope = TransferScheduler.withPriority(TransferScheduler.Priority.BACKGROUND,
+                container.getBlobContainerName());
+        try {
+            return syncTagged(root, container, directory, options, upload);
+        } finally {
+            scope.close();
+        }
+    }
+
+    private static SyncResult syncTagged(Path root, BlobContainerClient container, String prefix, SyncOptions options,
+                                         boolean upload) throws IOException {
+
+        final SyncResult result = new SyncResult();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        // Bound the transfers queued ahead of the merge so memory stays flat
+        final Semaphore inFlight = new Semaphore(options.getParallelism() * 2);
+        ExecutorService walker = Executors.newFixedThreadPool(Math.min(LISTING_PREFETCH, options.getParallelism()));
+        ExecutorService transfers = Executors.newFixedThreadPool(options.getParallelism());
+        try {
+            Files.createDirectories(root);
+            Iterator<LocalEntry> local = new LocalTreeIterator(root, walker);
+            Iterator<BlobItem> remote = container.listBlobs(new ListBlobsOptions()
+                    .setPrefix(prefix)
+                    .setDetails(new BlobListDetails().setRetrieveMetadata(true)), null).iterator();
+
+            LocalEntry localEntry = nextLocal(local);
+            BlobItem remoteEntry = nextRemote(remote);
+            while ((localEntry != null || remoteEntry != null) && failure.get() == null) {
+                int comparison = localEntry == null ? 1
+                        : remoteEntry == null ? -1
+                        : localEntry.name.compareTo(remoteEntry.getName().substring(prefix.length()));
+
+                final LocalEntry currentLocal = comparison <= 0 ? localEntry : null;
+                final BlobItem currentRemote = comparison >= 0 ? remoteEntry : null;
+                inFlight.acquire();
+                transfers.execute(TransferScheduler.propagate(() -> {
+                    try {
+                        syncEntry(root, container, prefix, options, upload, currentLocal, currentRemote, result);
+                    } catch (Exception ex) {
+                        failure.compareAndSet(null, ex);
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+
+                if (comparison <= 0) {
+                    localEntry = nextLocal(local);
+                }
+                if (comparison >= 0) {
+                    remoteEntry = nextRemote(remote);
+                }
+            }
+
+            transfers.shutdown();
+            transfers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while synchronizing.", ex);
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            transfers.shutdownNow();
+            walker.shutdownNow();
+        }
+
+        Exception ex = failure.get();
+        if (ex instanceof IOException) {
+            throw (IOException) ex;
+        } else if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        }
+        return result;
+    }
+
+    /**
+     * Brings one name in sync. Either side may be missing.
+     */
+    private static void syncEntry(Path root, BlobContainerClient container, String prefix, SyncOptions options,
+                                  boolean upload, LocalEntry local, BlobItem remote, SyncResult result) throws IOException {
+
+        String name = local != null ? local.name : remote.getName().substring(prefix.length());
+        BlobClient blob = container.getBlobClient(prefix + name);
+        Path path = local != null ? local.path : root.resolve(name);
+        if (local == null && !upload) {
+            // The name comes from the service, keep what it writes or deletes inside the local tree
+            Path base = root.toAbsolutePath().normalize();
+            path = path.toAbsolutePath().normalize();
+            if (path.equals(base) || !path.startsWith(base)) {
+                EventLog.console().warn("Skipped blob \"%s\", its name leads outside %s.", remote.getName(), root);
+                return;
+            }
+        }
+
+        if ((upload ? local : remote) == null) {
+            // Only on the target side
+            if (options.isDeleteExtras()) {
+                if (upload) {
+                    blob.delete();
+                } else {
+                    Files.deleteIfExists(path);
+                }
+                result.deleted.incrementAndGet();
+            }
+            return;
+        }
+
+        if (local != null && remote != null && !isChanged(local, remote, options, upload)) {
+            result.unchanged.incrementAndGet();
+            return;
+        }
+
+        if (upload) {
+            Map<String, String> metadata = new HashMap<String, String>();
+            metadata.put(MTIME_METADATA_KEY, String.valueOf(local.lastModified));
+            try (InputStream inputStream = Files.newInputStream(path)) {
+                BlobTransfer.uploadStream(blob.getBlockBlobClient(), inputStream, options.getBlockSize(),
+                        options.getUploadBuffers(), null, metadata, null);
+            }
+            result.transferredBytes.addAndGet(local.size);
+        } else {
+            Files.createDirectories(path.getParent());
+            if (remote.getProperties().getContentLength() <= options.getDownloadRangeSize()) {
+                BlobTransfer.downloadToFileVerified(blob, path.toString());
+            } else {
+                BlobTransfer.downloadToFileParallel(blob, path.toString(), options.getDownloadRangeSize(),
+                        options.getDownloadConcurrency());
+            }
+            // Record the blob's time locally so the next comparison sees the file as unchanged
+            Files.setLastModifiedTime(path, FileTime.from(remote.getProperties().getLastModified().toInstant()));
+            result.transferredBytes.addAndGet(remote.getProperties().getContentLength());
+        }
+        result.transferred.incrementAndGet();
+    }
+
+    private static boolean isChanged(LocalEntry local, BlobItem remote, SyncOptions options, boolean upload) throws IOException {
+        if (local.size != remote.getProperties().getContentLength()) {
+            return true;
+        }
+        if (options.isCompareChecksums()) {
+            byte[] remoteMd5 = remote.getProperties().getContentMd5();
+            return remoteMd5 == null || !Arrays.equals(remoteMd5, md5(local.path));
+        }
+        if (upload) {
+            Map<String, String> metadata = remote.getMetadata();
+            return metadata == null || !String.valueOf(local.lastModified).equals(metadata.get(MTIME_METADATA_KEY));
+        }
+        // The service keeps modification times to the second
+        long remoteSeconds = remote.getProperties().getLastModified().toEpochSecond();
+        return remoteSeconds != TimeUnit.MILLISECONDS.toSeconds(local.lastModified);
+    }
+
+    private static byte[] md5(Path path) throws IOException {
+        MessageDigest digest = BlobTransfer.newMd5();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) >= 0) {
+                digest.update(buffer, 0, bytesRead);
+            }
+        }
+        return digest.digest();
+    }
+
+    private static LocalEntry nextLocal(Iterator<LocalEntry> local) {
+        return local.hasNext() ? local.next() : null;
+    }
+
+    private static BlobItem nextRemote(Iterator<BlobItem> remote) {
+        while (remote.hasNext()) {
+            BlobItem item = remote.next();
+            // Skip directory markers, they have no local counterpart
+            if (!item.getName().endsWith("/")) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A file or directory of the local tree. Directory names end with a slash so that they sort where their
+     * content sorts in the blob listing.
+     */
+    private static final class LocalEntry {
+        private final String name;
+        private final Path path;
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+
+        private LocalEntry(String name, Path path, boolean directory, long size, long lastModified) {
+            this.name = name;
+            this.path = path;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Walks a local tree depth first in blob name order, yielding files only. Listings of the next few
+     * subdirectories of every directory are fetched in parallel ahead of the walk.
+     */
+    private static final class LocalTreeIterator implements Iterator<LocalEntry> {
+        private final ExecutorService walker;
+        private final Deque<Frame> stack = new ArrayDeque<Frame>();
+        private LocalEntry next;
+
+        private LocalTreeIterator(Path root, ExecutorService walker) throws IOException {
+            this.walker = walker;
+            stack.push(new Frame(list(root, "")));
+            next = advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public LocalEntry next() {
+            LocalEntry current = next;
+            next = advance();
+            return current;
+        }
+
+        private LocalEntry advance() {
+            try {
+                while (!stack.isEmpty()) {
+                    Frame frame = stack.peek();
+                    if (frame.position == frame.entries.size()) {
+                        stack.pop();
+                        continue;
+                    }
+                    frame.prefetch();
+                    int position = frame.position++;
+                    LocalEntry entry = frame.entries.get(position);
+                    if (!entry.directory) {
+                        return entry;
+                    }
+                    stack.push(new Frame(frame.listings.remove(position).get()));
+                }
+                return null;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new IOException("Interrupted while walking the local tree.", ex));
+            } catch (ExecutionException ex) {
+                throw new UncheckedIOException(ex.getCause() instanceof IOException
+                        ? (IOException) ex.getCause() : new IOException(ex.getCause()));
+            }
+        }
+
+        private static List<LocalEntry> list(Path directory, String namePrefix) throws IOException {
+            List<LocalEntry> entries = new ArrayList<LocalEntry>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                for (Path child : children) {
+                    // Symbolic links are skipped, a link to an ancestor directory would make the walk endless
+                    BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    String name = namePrefix + child.getFileName().toString();
+                    if (attributes.isDirectory()) {
+                        entries.add(new LocalEntry(name + "/", child, true, 0, 0));
+                    } else if (attributes.isRegularFile()) {
+                        entries.add(new LocalEntry(name, child, false, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                    }
+                }
+            }
+            Collections.sort(entries, (a, b) -> a.name.compareTo(b.name));
+            return entries;
+        }
+
+        private final class Frame {
+            private final List<LocalEntry> entries;
+            private final Map<Integer, Future<List<LocalEntry>>> listings = new HashMap<Integer, Future<List<LocalEntry>>>();
+            private int position;
+            private int prefetched;
+
+            private Frame(List<LocalEntry> entries) {
+                this.entries = entries;
+            }
+
+            private void prefetch() {
+                prefetched = Math.max(prefetched, position);
+                int limit = Math.min(entries.size(), position + LISTING_PREFETCH);
+                for (; prefetched < limit; prefetched++) {
+                    final LocalEntry entry = entries.get(prefetched);
+                    if (entry.directory) {
+                        listings.put(prefetched, walker.submit(() -> list(entry.path, entry.name)));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.core.http.rest.PagedResponse;
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.models.BlobHttpHeaders;
+import com.azure.storage.blob.models.TaggedBlobItem;
+import com.azure.storage.blob.options.FindBlobsOptions;
+import com.azure.storage.blob.specialized.BlobClientBase;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Uses blob index tags as a secondary index over selected metadata keys of the blobs in a container.
+ * The indexed metadata values are written as tags together with the content, and lookups run as service side tag
+ * queries, so finding the matching blobs costs a query returning only those blobs instead of a listing of the
+ * whole container.
+ * The service updates its tag index asynchronously, so a blob may take a moment to show up in queries after it is
+ * written.
+ */
+class BlobTagIndex {
+
+    /**
+     * The most tags the service stores on a blob.
+     */
+    static final int MAX_TAGS = 10;
+
+    private static final int MAX_KEY_LENGTH = 128;
+    private static final int MAX_VALUE_LENGTH = 256;
+
+    /**
+     * Handles one page of query results.
+     */
+    interface PageHandler {
+        /**
+         * Handles a page.
+         *
+         * @param blobs The blobs of the page.
+         * @return true to fetch the next page, false to stop
+         * @throws IOException
+         */
+        boolean onPage(List<TaggedBlobItem> blobs) throws IOException;
+    }
+
+    private final BlobServiceClient blobServiceClient;
+    private final BlobContainerClient container;
+    private final Set<String> indexedKeys;
+
+    /**
+     * Creates an index over a container.
+     *
+     * @param blobServiceClient Azure Storage Blob Service, which runs the tag queries.
+     * @param container         The container whose blobs are indexed.
+     * @param indexedKeys       The metadata keys mirrored as tags, at most 10.
+     */
+    BlobTagIndex(BlobServiceClient blobServiceClient, BlobContainerClient container, Collection<String> indexedKeys) {
+        if (indexedKeys.size() > MAX_TAGS) {
+            throw new IllegalArgumentException(String.format("At most %d keys can be indexed.", MAX_TAGS));
+        }
+        for (String key : indexedKeys) {
+            validate(key, 1, MAX_KEY_LENGTH, "key");
+        }
+        this.blobServiceClient = blobServiceClient;
+        this.container = container;
+        this.indexedKeys = Collections.unmodifiableSet(new LinkedHashSet<String>(indexedKeys));
+    }
+
+    /**
+     * Selects the indexed entries of a blob's metadata as tags. Metadata keys are matched ignoring case, as the
+     * service does for metadata.
+     *
+     * @param metadata The blob metadata, or null.
+     * @return The tags to store on the blob
+     */
+    Map<String, String> toTags(Map<String, String> metadata) {
+        Map<String, String> tags = new HashMap<String, String>();
+        if (metadata == null) {
+            return tags;
+        }
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            for (String key : indexedKeys) {
+                if (key.equalsIgnoreCase(entry.getKey())) {
+                    validate(entry.getValue(), 0, MAX_VALUE_LENGTH, "value");
+                    tags.put(key, entry.getValue());
+                }
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * Uploads a local file as a block blob with its indexed metadata written as tags in the same request.
+     *
+     * @param blobName  The name of the blob.
+     * @param filePath  The path to the file to be uploaded.
+     * @param blockSize The size of each staged block.
+     * @param headers   The HTTP headers to commit with the blob, or null.
+     * @param metadata  The metadata to commit with the blob, or null.
+     * @return The MD5 of the uploaded content
+     * @throws IOException
+     */
+    byte[] uploadFile(String blobName, String filePath, int blockSize, BlobHttpHeaders headers,
+                      Map<String, String> metadata) throws IOException {
+        return BlobTransfer.uploadFile(container.getBlobClient(blobName).getBlockBlobClient(), filePath, blockSize,
+                headers, metadata, toTags(metadata));
+    }
+
+    /**
+     * Uploads content held in memory as a block blob with its indexed metadata written as tags in the same request.
+     *
+     * @param blobName The name of the blob.
+     * @param data     The content.
+     * @param metadata The metadata to set on the blob, or null.
+     * @return The MD5 of the uploaded content
+     */
+    byte[] uploadBytes(String blobName, byte[] data, Map<String, String> metadata) {
+        return BlobTransfer.uploadBytes(container.getBlobClient(blobName).getBlockBlobClient(), data, data.length,
+                null, metadata, toTags(metadata));
+    }
+
+    /**
+     * Replaces the metadata of a blob and updates its indexed tags to match.
+     * Metadata and tags are set by two requests. If the second one fails, {@link #sync(BlobClientBase)} repairs the
+     * tags from the metadata.
+     *
+     * @param blob     The blob to update.
+     * @param metadata The new metadata.
+     */
+    void setMetadata(BlobClientBase blob, Map<String, String> metadata) {
+        blob.setMetadata(metadata);
+        writeTags(blob, metadata);
+    }
+
+    /**
+     * Rewrites the indexed tags of a blob from its current metadata.
+     *
+     * @param blob The blob to repair.
+     */
+    void sync(BlobClientBase blob) {
+        writeTags(blob, blob.getProperties().getMetadata());
+    }
+
+    /**
+     * Builds a query matching the blobs of this container whose indexed keys have the given values.
+     *
+     * @param equalTo The required values by key.
+     * @return The query expression
+     */
+    String equalityQuery(Map<String, String> equalTo) {
+        StringBuilder query = new StringBuilder(String.format("@container = '%s'", container.getBlobContainerName()));
+        for (Map.Entry<String, String> entry : equalTo.entrySet()) {
+            if (!indexedKeys.contains(entry.getKey())) {
+                throw new IllegalArgumentException(String.format("The key \"%s\" is not indexed.", entry.getKey()));
+            }
+            validate(entry.getValue(), 0, MAX_VALUE_LENGTH, "value");
+            query.append(String.format(" AND \"%s\" = '%s'", entry.getKey(), entry.getValue()));
+        }
+        return query.toString();
+    }
+
+    /**
+     * Finds the blobs matching a query. Results are fetched page by page as the iteration proceeds.
+     *
+     * @param query A tag query, for example built by {@link #equalityQuery(Map)}.
+     * @return The matching blobs
+     */
+    Iterable<TaggedBlobItem> find(String query) {
+        return blobServiceClient.findBlobsByTags(new FindBlobsOptions(query), null, Context.NONE);
+    }
+
+    /**
+     * Runs a query page by page, so a caller can stop early or resume later where it stopped.
+     *
+     * @param query             A tag query, for example built by {@link #equalityQuery(Map)}.
+     * @param pageSize          The number of blobs per page, up to 5000.
+     * @param continuationToken The token returned by an earlier call to resume from, or null to start over.
+     * @param handler           Receives the pages.
+     * @return The token to resume from, or null when every page was handled
+     * @throws IOException
+     */
+    String forEachPage(String query, int pageSize, String continuationToken, PageHandler handler) throws IOException {
+        Iterable<PagedResponse<TaggedBlobItem>> pages = blobServiceClient
+                .findBlobsByTags(new FindBlobsOptions(query).setMaxResultsPerPage(pageSize), null, Context.NONE)
+                .iterableByPage(continuationToken);
+        for (PagedResponse<TaggedBlobItem> page : pages) {
+            if (!handler.onPage(page.getValue())) {
+                return page.getContinuationToken();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the indexed tags of a blob, keeping tags set by others.
+     */
+    private void writeTags(BlobClientBase blob, Map<String, String> metadata) {
+        Map<String, String> tags = new HashMap<String, String>(blob.getTags());
+        tags.keySet().removeAll(indexedKeys);
+        tags.putAll(toTags(metadata));
+        if (tags.size() > MAX_TAGS) {
+            throw new IllegalArgumentException(String.format("The blob %s would have more than %d tags.",
+                    blob.getBlobName(), MAX_TAGS));
+        }
+        blob.setTags(tags);
+    }
+
+    /**
+     * Checks a tag key or value against the lengths and characters the service accepts: letters, digits, space and
+     * + - . / : = _
+     */
+    private static void validate(String text, int minLength, int maxLength, String description) {
+        if (text == null || text.length() < minLength || text.length() > maxLength) {
+            throw new IllegalArgumentException(String.format("The tag %s \"%s\" must have between %d and %d characters.",
+                    description, text, minLength, maxLength));
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!Character.isLetterOrDigit(c) && " +-./:=_".indexOf(c) < 0 || c > 0x7f) {
+                throw new IllegalArgumentException(String.format("The tag %s \"%s\" contains the character '%c', which "
+                        + "cannot be indexed.", description, text, c));
+            }
+        }
+    }
+}
@@ -0,0 +1,641 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.core.util.Context;
+import com.azure.storage.blob.models.BlobDownloadResponse;
+import com.azure.storage.blob.models.BlobHttpHeaders;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.options.BlockBlobCommitBlockListOptions;
+import com.azure.storage.blob.options.BlockBlobSimpleUploadOptions;
+import com.azure.storage.blob.specialized.BlobClientBase;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Block upload and ranged download methods that carry content hashes end to end.
+ * Every block is sent with a transactional MD5 and the whole-file MD5 is computed in the same pass
+ * and stored as the blob's Content-MD5 when the block list is committed.
+ */
+class BlobTransfer {
+
+    /**
+     * Default block size used when the caller does not pick one.
+     */
+    static final int DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The service only returns a range MD5 for ranges up to 4MB.
+     */
+    static final int MAX_RANGE_MD5_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Uploads a local file as a block blob. Each block is read once, hashed, and staged with its MD5 so that the
+     * service rejects any block corrupted in flight. The MD5 of the whole file is committed as Content-MD5.
+     *
+     * @param blockBlob The block blob to upload to.
+     * @param filePath  The path to the file to be uploaded.
+     * @param blockSize The size of each staged block.
+     * @param headers   The HTTP headers to commit with the blob, or null. The Content-MD5 is set on this object.
+     * @param metadata  The metadata to commit with the blob, or null.
+     * @return The MD5 of the uploaded content
+     * @throws IOException
+     */
+    static byte[] uploadFile(BlockBlobClient blockBlob, String filePath, int blockSize,
+                             BlobHttpHeaders headers, Map<String, String> metadata) throws IOException {
+
+        return uploadFile(blockBlob, filePath, blockSize, headers, metadata, null);
+    }
+
+    /**
+     * Uploads a local file as a block blob with the block size and parallelism of a transfer profile, staging the
+     * blocks concurrently as {@link #uploadStream(BlockBlobClient, InputStream, int, int, BlobHttpHeaders, Map, Map)}
+     * does, which is how the profile was measured.
+     *
+     * @param blockBlob The block blob to upload to.
+     * @param filePath  The path to the file to be uploaded.
+     * @param profile   The profile giving the block size and the number of block buffers.
+     * @param headers   The HTTP headers to commit with the blob, or null. The Content-MD5 is set on this object.
+     * @param metadata  The metadata to commit with the blob, or null.
+     * @return The MD5 of the uploaded content
+     * @throws IOException
+     */
+    static byte[] uploadFile(BlockBlobClient blockBlob, String filePath, TransferProfile profile,
+                             BlobHttpHeaders headers, Map<String, String> metadata) throws IOException {
+
+        try (InputStream fileInputStream = new FileInputStream(filePath)) {
+            return uploadStream(blockBlob, fileInputStream, profile.getUploadBlockSize(), profile.getUploadBuffers(),
+                    headers, metadata, null);
+        }
+    }
+
+    /**
+     * Uploads a local file as a block blob with blob index tags, which are written in the same request that
+     * commits the content.
+     *
+     * @param blockBlob The block blob to upload to.
+     * @param filePath  The path to the file to be uploaded.
+     * @param blockSize The size of each staged block.
+     * @param headers   The HTTP headers to commit with the blob, or null. The Content-MD5 is set on this object.
+     * @param metadata  The metadata to commit with the blob, or null.
+     * @param tags      The blob index tags to commit with the blob, or null.
+     * @return The MD5 of the uploaded content
+     * @throws IOException
+     */
+    static byte[] uploadFile(BlockBlobClient blockBlob, String filePath, int blockSize, BlobHttpHeaders headers,
+                             Map<String, String> metadata, Map<String, String> tags) throws IOException {
+
+        try (InputStream fileInputStream = new FileInputStream(filePath)) {
+            return upload(blockBlob, fileInputStream, blockSize, headers, metadata, tags);
+        }
+    }
+
+    /**
+     * Uploads the content of a stream as a block blob, staging one block at a time with its transactional MD5.
+     * Content that fits in a single block is uploaded with one Put Blob request instead.
+     *
+     * @param blockBlob   The block blob to upload to.
+     * @param inputStream The stream to read until its end.
+     * @param blockSize   The size of each staged block.
+     * @param headers     The HTTP headers to commit with the blob, or null. The Content-MD5 is set on this object.
+     * @param metadata    The metadata to commit with the blob, or null.
+     * @param tags        The blob index tags to commit with the blob, or null.
+     * @return The MD5 of the uploaded content
+     * @throws IOException
+     */
+    static byte[] upload(BlockBlobClient blockBlob, InputStream inputStream, int blockSize, BlobHttpHeaders headers,
+                         Map<String, String> metadata, Map<String, String> tags) throws IOException {
+
+        byte[] buffer = new byte[blockSize];
+        int bytesRead = readBlock(inputStream, buffer);
+        if (bytesRead < blockSize) {
+            // The whole content fits in one block, so a single Put Blob request is enough
+            return uploadBytes(blockBlob, buffer, bytesRead, headers, metadata, tags);
+        }
+
+        MessageDigest contentDigest = newMd5();
+        MessageDigest blockDigest = newMd5();
+        List<String> blockList = new ArrayList<String>();
+        Map<String, Integer> repeats = new HashMap<String, Integer>();
+        do {
+            contentDigest.update(buffer, 0, bytesRead);
+            blockDigest.update(buffer, 0, bytesRead);
+            byte[] blockMd5 = blockDigest.digest();
+            String blockIdEncoded = contentBlockId(blockMd5, repeats);
+            stageBlock(blockBlob, blockIdEncoded, buffer, bytesRead, blockMd5);
+            blockList.add(blockIdEncoded);
+        } while ((bytesRead = readBlock(inputStream, buffer)) > 0);
+
+        byte[] contentMd5 = contentDigest.digest();
+        commit(blockBlob, blockList, contentMd5, headers, metadata, tags);
+        return contentMd5;
+    }
+
+    /**
+     * Uploads a stream of unknown length as a block blob without spooling it to disk. The next block is read while
+     * the blocks read before it are staged concurrently, and the block list is committed when the stream ends.
+     * At most {@code inFlight} block buffers exist at a time, which bounds the memory used by the upload.
+     * Content that fits in a single block is uploaded with one Put Blob request instead.
+     *
+     * @param blockBlob   The block blob to upload to.
+     * @param inputStream The stream to read until its end.
+     * @param blockSize   The size of each staged block.
+     * @param inFlight    The number of blocks read ahead or being staged at the same time.
+     * @param headers     The HTTP headers to commit with the blob, or null. The Content-MD5 is set on this object.
+     * @param metadata    The metadata to commit with the blob, or null.
+     * @param tags        The blob index tags to commit with the blob, or null.
+     * @return The MD5 of the uploaded content
+     * @throws IOException
+     */
+    static byte[] uploadStream(BlockBlobClient blockBlob, InputStream inputStream, int blockSize, int inFlight,
+                               BlobHttpHeaders headers, Map<String, String> metadata, Map<String, String> tags)
+            throws IOException {
+
+        byte[] first = new byte[blockSize];
+        int bytesRead = readBlock(inputStream, first);
+        if (bytesRead < blockSize) {
+            return uploadBytes(blockBlob, first, bytesRead, headers, metadata, tags);
+        }
+
+        // Buffers cycle between the reader and the staging threads, the pool starts with the one already filled
+        final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<byte[]>(Math.max(2, inFlight));
+        int allocated = 1;
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        ExecutorService stagers = Executors.newFixedThreadPool(Math.max(1, inFlight - 1));
+        MessageDigest contentDigest = newMd5();
+        MessageDigest blockDigest = newMd5();
+        List<String> blockList = new ArrayList<String>();
+        Map<String, Integer> repeats = new HashMap<String, Integer>();
+        try {
+            byte[] buffer = first;
+            do {
+                if (blockList.size() == BlockBlobClient.MAX_BLOCKS) {
+                    throw new IOException(String.format("The stream is longer than %d blocks of %d bytes.",
+                            BlockBlobClient.MAX_BLOCKS, blockSize));
+                }
+                contentDigest.update(buffer, 0, bytesRead);
+                blockDigest.update(buffer, 0, bytesRead);
+                final byte[] blockMd5 = blockDigest.digest();
+                final String blockIdEncoded = contentBlockId(blockMd5, repeats);
+                final byte[] block = buffer;
+                final int length = bytesRead;
+                blockList.add(blockIdEncoded);
+                stagers.execute(TransferScheduler.propagate(() -> {
+                    try {
+                        if (failure.get() == null) {
+                            stageBlock(blockBlob, blockIdEncoded, block, length, blockMd5);
+                        }
+                    } catch (RuntimeException ex) {
+                        failure.compareAndSet(null, ex);
+                    } finally {
+                        freeBuffers.add(block);
+                    }
+                }));
+
+                // Take a buffer back from a finished block, or allocate one while below the limit
+                buffer = freeBuffers.poll();
+                if (buffer == null) {
+                    if (allocated < Math.max(2, inFlight)) {
+                        buffer = new byte[blockSize];
+                        allocated++;
+                    } else {
+                        buffer = freeBuffers.take();
+                    }
+                }
+                if (failure.get() != null) {
+                    break;
+                }
+            } while ((bytesRead = readBlock(inputStream, buffer)) > 0);
+
+            stagers.shutdown();
+            stagers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while staging blocks.", ex);
+        } finally {
+            stagers.shutdownNow();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+
+        byte[] contentMd5 = contentDigest.digest();
+        commit(blockBlob, blockList, contentMd5, headers, metadata, tags);
+        return contentMd5;
+    }
+
+    /**
+     * Uploads the content of a channel of unknown length as a block blob, see
+     * {@link #uploadStream(BlockBlobClient, InputStream, int, int, BlobHttpHeaders, Map, Map)}.
+     *
+     * @param blockBlob The block blob to upload to.
+     * @param channel   The channel to read until its end.
+     * @param blockSize The size of each staged block.
+     * @param inFlight  The number of blocks read ahead or being staged at the same time.
+     * @param headers   The HTTP headers to commit with the blob, or null. The Content-MD5 is set on this object.
+     * @param metadata  The metadata to commit with the blob, or null.
+     * @param tags      The blob index tags to commit with the blob, or null.
+     * @return The MD5 of the uploaded content
+     * @throws IOException
+     */
+    static byte[] uploadChannel(BlockBlobClient blockBlob, ReadableByteChannel channel, int blockSize, int inFlight,
+                                BlobHttpHeaders headers, Map<String, String> metadata, Map<String, String> tags)
+            throws IOException {
+        return uploadStream(blockBlob, Channels.newInputStream(channel), blockSize, inFlight, headers, metadata, tags);
+    }
+
+    /**
+     * Stages one block with its MD5 as a transactional checksum.
+     *
+     * @param blockBlob      The block blob to stage the block on.
+     * @param blockIdEncoded The encoded block id.
+     * @param data           The buffer holding the block.
+     * @param length         The number of bytes of the buffer to stage.
+     * @param blockDigest    A reusable MD5 digest, reset by this call.
+     */
+    static void stageBlock(BlockBlobClient blockBlob, String blockIdEncoded, byte[] data, int length,
+                           MessageDigest blockDigest) {
+
+        blockDigest.reset();
+        blockDigest.update(data, 0, length);
+        stageBlock(blockBlob, blockIdEncoded, data, length, blockDigest.digest());
+    }
+
+    /**
+     * Stages one block with an MD5 already computed as a transactional checksum.
+     *
+     * @param blockBlob      The block blob to stage the block on.
+     * @param blockIdEncoded The encoded block id.
+     * @param data           The buffer holding the block.
+     * @param length         The number of bytes of the buffer to stage.
+     * @param blockMd5       The MD5 of the block.
+     */
+    static void stageBlock(BlockBlobClient blockBlob, String blockIdEncoded, byte[] data, int length,
+                           byte[] blockMd5) {
+
+        TransferScheduler.shared().execute(length, () -> blockBlob.stageBlockWithResponse(blockIdEncoded,
+                new ByteArrayInputStream(data, 0, length), length, blockMd5, null, null, Context.NONE));
+        EventLog.console().debug("Staged block %s, %d bytes", blockIdEncoded, length);
+    }
+
+    /**
+     * Uploads content held in memory as a block blob with a single Put Blob request. The MD5 is sent as a
+     * transactional checksum and stored as the blob's Content-MD5.
+     *
+     * @param blockBlob The block blob to upload to.
+     * @param data      The buffer holding the content.
+     * @param length    The number of bytes of the buffer to upload.
+     * @param headers   The HTTP headers to set on the blob, or null. The Content-MD5 is set on this object.
+     * @param metadata  The metadata to set on the blob, or null.
+     * @param tags      The blob index tags to set on the blob, or null.
+     * @return The MD5 of the uploaded content
+     */
+    static byte[] uploadBytes(BlockBlobClient blockBlob, byte[] data, int length, BlobHttpHeaders headers,
+                              Map<String, String> metadata, Map<String, String> tags) {
+        return uploadBytes(blockBlob, data, length, headers, metadata, tags, null);
+    }
+
+    /**
+     * Uploads content held in memory as a block blob with a single Put Blob request, if the blob meets the conditions.
+     *
+     * @param blockBlob         The block blob to upload to.
+     * @param data              The buffer holding the content.
+     * @param length            The number of bytes of the buffer to upload.
+     * @param headers           The HTTP headers to set on the blob, or null. The Content-MD5 is set on this object.
+     * @param metadata          The metadata to set on the blob, or null.
+     * @param tags              The blob index tags to set on the blob, or null.
+     * @param requestConditions The conditions the blob must meet, or null.
+     * @return The MD5 of the uploaded content
+     */
+    static byte[] uploadBytes(BlockBlobClient blockBlob, byte[] data, int length, BlobHttpHeaders headers,
+                              Map<String, String> metadata, Map<String, String> tags,
+                              BlobRequestConditions requestConditions) {
+
+        MessageDigest contentDigest = newMd5();
+        contentDigest.update(data, 0, length);
+        byte[] contentMd5 = contentDigest.digest();
+        BlobHttpHeaders uploadHeaders = headers != null ? headers : new BlobHttpHeaders();
+        uploadHeaders.setContentMd5(contentMd5);
+        TransferScheduler.shared().execute(length, () -> blockBlob.uploadWithResponse(
+                new BlockBlobSimpleUploadOptions(new ByteArrayInputStream(data, 0, length), length)
+                        .setHeaders(uploadHeaders)
+                        .setMetadata(metadata)
+                        .setTags(tags)
+                        .setContentMd5(contentMd5)
+                        .setRequestConditions(requestConditions), null, Context.NONE));
+        return contentMd5;
+    }
+
+    /**
+     * Commits a block list, storing the given MD5 as the blob's Content-MD5.
+     *
+     * @param blockBlob  The block blob to commit.
+     * @param blockList  The encoded block ids in blob order.
+     * @param contentMd5 The MD5 of the whole content.
+     * @param headers    The HTTP headers to commit with the blob, or null. The Content-MD5 is set on this object.
+     * @param metadata   The metadata to commit with the blob, or null.
+     * @param tags       The blob index tags to commit with the blob, or null.
+     */
+    static void commit(BlockBlobClient blockBlob, List<String> blockList, byte[] contentMd5,
+                       BlobHttpHeaders headers, Map<String, String> metadata, Map<String, String> tags) {
+        commit(blockBlob, blockList, contentMd5, headers, metadata, tags, null);
+    }
+
+    /**
+     * Commits a block list if the blob meets the conditions, storing the given MD5 as the blob's Content-MD5.
+     *
+     * @param blockBlob         The block blob to commit.
+     * @param blockList         The encoded block ids in blob order.
+     * @param contentMd5        The MD5 of the whole content.
+     * @param headers           The HTTP headers to commit with the blob, or null. The Content-MD5 is set on this object.
+     * @param metadata          The metadata to commit with the blob, or null.
+     * @param tags              The blob index tags to commit with the blob, or null.
+     * @param requestConditions The conditions the blob must meet, or null.
+     */
+    static void commit(BlockBlobClient blockBlob, List<String> blockList, byte[] contentMd5,
+                       BlobHttpHeaders headers, Map<String, String> metadata, Map<String, String> tags,
+                       BlobRequestConditions requestConditions) {
+
+        BlobHttpHeaders commitHeaders = headers != null ? headers : new BlobHttpHeaders();
+        commitHeaders.setContentMd5(contentMd5);
+        TransferScheduler.shared().execute(0, () -> blockBlob.commitBlockListWithResponse(
+                new BlockBlobCommitBlockListOptions(blockList)
+                        .setHeaders(commitHeaders)
+                        .setMetadata(metadata)
+                        .setTags(tags)
+                        .setRequestConditions(requestConditions), null, Context.NONE));
+    }
+
+    /**
+     * Downloads a blob to a local file in ranges, verifying the MD5 of every range as it streams to disk
+     * and the MD5 of the whole blob against its Content-MD5 when one is stored.
+     * The file is deleted if any verification fails.
+     *
+     * @param blob     The blob to download.
+     * @param filePath The path of the file to write.
+     * @return The properties of the downloaded blob
+     * @throws IOException If the file cannot be written or the content does not match its hashes.
+     */
+    static BlobProperties downloadToFileVerified(BlobClientBase blob, String filePath) throws IOException {
+
+        BlobProperties properties = blob.getProperties();
+        // Pin the download to the version we read the properties of
+        BlobRequestConditions requestConditions = new BlobRequestConditions().setIfMatch(properties.getETag());
+        MessageDigest contentDigest = newMd5();
+        MessageDigest rangeDigest = newMd5();
+        File file = new File(filePath);
+        boolean verified = false;
+        try {
+            try (OutputStream fileOutputStream = new FileOutputStream(file);
+                 OutputStream digestOutputStream = new DigestOutputStream(
+                         new DigestOutputStream(fileOutputStream, contentDigest), rangeDigest)) {
+                long offset = 0;
+                while (offset < properties.getBlobSize()) {
+                    long count = Math.min(MAX_RANGE_MD5_SIZE, properties.getBlobSize() - offset);
+                    rangeDigest.reset();
+                    BlobRange range = new BlobRange(offset, count);
+                    BlobDownloadResponse response = TransferScheduler.shared().run(count, () -> blob.downloadWithResponse(
+                            digestOutputStream, range, null, requestConditions, true, null, Context.NONE));
+                    verifyMd5(response.getDeserializedHeaders().getContentMd5(), rangeDigest.digest(),
+                            String.format("range %d-%d of blob \"%s\"", offset, offset + count - 1, blob.getBlobUrl()));
+                    offset += count;
+                }
+            }
+            verifyMd5(properties.getContentMd5(), contentDigest.digest(), String.format("blob \"%s\"", blob.getBlobUrl()));
+            verified = true;
+        } finally {
+            if (!verified) {
+                file.delete();
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Downloads a blob to a local file with its ranges read in parallel, verifying the MD5 of every range as it is
+     * written. When the blob stores a Content-MD5, every range is held in memory until the ranges before it were
+     * hashed, so the whole content is checked without reading the file back.
+     * The file is deleted if any verification fails.
+     *
+     * @param blob        The blob to download.
+     * @param filePath    The path of the file to write.
+     * @param rangeSize   The size of the ranges, at most 4MB so the service hashes them.
+     * @param concurrency The number of ranges read at the same time.
+     * @return The properties of the downloaded blob
+     * @throws IOException If the file cannot be written or the content does not match its hashes.
+     */
+    static BlobProperties downloadToFileParallel(BlobClientBase blob, String filePath, int rangeSize, int concurrency)
+            throws IOException {
+
+        BlobProperties properties = blob.getProperties();
+        // Pin the download to the version we read the properties of
+        BlobRequestConditions requestConditions = new BlobRequestConditions().setIfMatch(properties.getETag());
+        long size = properties.getBlobSize();
+        int range = Math.max(1, Math.min(rangeSize, MAX_RANGE_MD5_SIZE));
+        long rangeCount = (size + range - 1) / range;
+        ExecutorService readers = Executors.newFixedThreadPool((int) Math.max(1, Math.min(concurrency, rangeCount)));
+        // The ranges arrive out of order, so they are hashed in order as they become contiguous
+        final BlobReplicator.OrderedDigest contentDigest = properties.getContentMd5() != null
+                ? new BlobReplicator.OrderedDigest() : null;
+        File file = new File(filePath);
+        boolean verified = false;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<CompletableFuture<Void>> ranges = new ArrayList<CompletableFuture<Void>>();
+            for (long offset = 0; offset < size; offset += range) {
+                final int rangeNum = (int) (offset / range);
+                final long rangeOffset = offset;
+                final long count = Math.min(range, size - offset);
+                ranges.add(CompletableFuture.runAsync(TransferScheduler.propagate(() -> {
+                    MessageDigest rangeDigest = newMd5();
+                    try {
+                        if (contentDigest == null) {
+                            downloadRange(blob, new BlobBulkDownload.ChannelOutputStream(channel, rangeOffset, rangeDigest),
+                                    rangeOffset, count, rangeDigest, requestConditions);
+                        } else {
+                            ByteArrayOutputStream content = new ByteArrayOutputStream((int) count);
+                            downloadRange(blob, new DigestOutputStream(content, rangeDigest), rangeOffset, count,
+                                    rangeDigest, requestConditions);
+                            byte[] data = content.toByteArray();
+                            contentDigest.update(rangeNum, data, data.length);
+                            ByteBuffer buffer = ByteBuffer.wrap(data);
+                            long position = rangeOffset;
+                            while (buffer.hasRemaining()) {
+                                position += channel.write(buffer, position);
+                            }
+                        }
+                    } catch (IOException ex) {
+                        if (contentDigest != null) {
+                            contentDigest.fail();
+                        }
+                        throw new UncheckedIOException(ex);
+                    } catch (RuntimeException ex) {
+                        if (contentDigest != null) {
+                            contentDigest.fail();
+                        }
+                        throw ex;
+                    }
+                }), readers));
+            }
+            try {
+                CompletableFuture.allOf(ranges.toArray(new CompletableFuture<?>[0])).get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while downloading ranges.", ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) ex.getCause()).getCause();
+                }
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            }
+
+            if (contentDigest != null) {
+                verifyMd5(properties.getContentMd5(), contentDigest.digest(),
+                        String.format("blob \"%s\"", blob.getBlobUrl()));
+            }
+            verified = true;
+        } finally {
+            readers.shutdownNow();
+            if (!verified) {
+                file.delete();
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Downloads a range into a stream that updates the range digest and checks it against the MD5 the service computed.
+     */
+    private static void downloadRange(BlobClientBase blob, OutputStream stream, long offset, long count,
+                                      MessageDigest rangeDigest, BlobRequestConditions requestConditions) throws IOException {
+        BlobDownloadResponse response = TransferScheduler.shared().run(count, () -> blob.downloadWithResponse(
+                stream, new BlobRange(offset, count), null, requestConditions, true, null, Context.NONE));
+        verifyMd5(response.getDeserializedHeaders().getContentMd5(), rangeDigest.digest(),
+                String.format("range %d-%d of blob \"%s\"", offset, offset + count - 1, blob.getBlobUrl()));
+    }
+
+    /**
+     * Returns the base64 encoded block id for a block's content: its MD5 followed by the number of earlier blocks of
+     * the same upload with the same content, since an id may only appear once in a block list. A block keeps its id
+     * across uploads while its content is unchanged, which lets {@link BlobDeltaDownload} reuse it. Ids have a fixed
+     * length as the service requires.
+     *
+     * @param blockMd5 The MD5 of the block.
+     * @param repeat   The number of earlier blocks with the same content.
+     * @return The encoded block id
+     */
+    static String encodeBlockId(byte[] blockMd5, int repeat) {
+        return Base64.getEncoder().encodeToString(ByteBuffer.allocate(blockMd5.length + 4).put(blockMd5).putInt(repeat)
+                .array());
+    }
+
+    /**
+     * Returns the content id of the next block of an upload and counts it.
+     *
+     * @param blockMd5 The MD5 of the block.
+     * @param repeats  The number of blocks of the upload so far by content, updated with this block.
+     * @return The encoded block id
+     */
+    static String contentBlockId(byte[] blockMd5, Map<String, Integer> repeats) {
+        String key = Base64.getEncoder().encodeToString(blockMd5);
+        Integer repeat = repeats.get(key);
+        repeats.put(key, repeat == null ? 1 : repeat + 1);
+        return encodeBlockId(blockMd5, repeat == null ? 0 : repeat);
+    }
+
+    /**
+     * Creates a new MD5 message digest.
+     *
+     * @return The message digest
+     */
+    static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support MD5
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Fills the buffer from the stream, stopping early only at the end of the stream.
+     *
+     * @param inputStream The stream to read from.
+     * @param buffer      The buffer to fill.
+     * @return The number of bytes read, 0 at the end of the stream
+     * @throws IOException
+     */
+    static int readBlock(InputStream inputStream, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int bytesRead = inputStream.read(buffer, total, buffer.length - total);
+            if (bytesRead < 0) {
+                break;
+            }
+            total += bytesRead;
+        }
+        return total;
+    }
+
+    /**
+     * Compares a computed MD5 with the expected one. Nothing is checked when no MD5 is expected.
+     *
+     * @param expected    The MD5 reported by the service, or null.
+     * @param actual      The MD5 computed locally.
+     * @param description What was hashed, for the error message.
+     * @throws IOException
+     */
+    static void verifyMd5(byte[] expected, byte[] actual, String description) throws IOException {
+        if (expected != null && !Arrays.equals(expected, actual)) {
+            throw new IOException(String.format("Content MD5 mismatch for %s: expected %s, computed %s.", description,
+                    Base64.getEncoder().encodeToString(expected), Base64.getEncoder().encodeToString(actual)));
+        }
+    }
+}
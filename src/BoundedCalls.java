@@ -0,0 +1,111 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs calls on a pool with a bound on the calls queued or in flight, so a producer listing millions of items blocks
+ * instead of queueing them all. The first failure stops further submissions and is rethrown by {@link #finish()}, or
+ * suppressed by the exception of a failed producer with {@link #finish(Throwable)}.
+ */
+class BoundedCalls {
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+    /**
+     * Creates the pool.
+     *
+     * @param concurrency The number of calls run at the same time.
+     */
+    BoundedCalls(int concurrency) {
+        this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency));
+        this.permits = new Semaphore(Math.max(1, concurrency) * 4);
+    }
+
+    /**
+     * Submits a call, waiting while too many calls are queued. Does nothing once a call failed.
+     *
+     * @param call The call to run.
+     * @throws InterruptedException
+     */
+    void submit(final Runnable call) throws InterruptedException {
+        if (failure.get() != null) {
+            return;
+        }
+        permits.acquire();
+        final Runnable tagged = TransferScheduler.propagate(call);
+        executor.execute(() -> {
+            try {
+                tagged.run();
+            } catch (RuntimeException ex) {
+                failure.compareAndSet(null, ex);
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * Returns whether a call failed, after which submissions are ignored.
+     *
+     * @return true if a call failed
+     */
+    boolean isFailed() {
+        return failure.get() != null;
+    }
+
+    /**
+     * Waits for every submitted call and rethrows the first failure.
+     *
+     * @throws InterruptedException
+     */
+    void finish() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Waits for every submitted call while another exception is already propagating. The first failure of the calls
+     * is added to that exception as suppressed instead of replacing it, so it is meant for a finally block.
+     *
+     * @param pending The exception propagating out of the producer, or null when it completed.
+     * @throws InterruptedException
+     */
+    void finish(Throwable pending) throws InterruptedException {
+        if (pending == null) {
+            finish();
+            return;
+        }
+        try {
+            finish();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            pending.addSuppressed(ex);
+        } catch (RuntimeException ex) {
+            if (ex != pending) {
+                pending.addSuppressed(ex);
+            }
+        }
+    }
+}
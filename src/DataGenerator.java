@@ -14,10 +14,9 @@
  */
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Random data generator methods.
@@ -44,32 +43,28 @@ class DataGenerator {
      */
     static File createTempLocalFile(String tempFileNamePrefix, String tempFileNameSuffix, int bytesToWrite) throws IOException {
 
-        File tempFile = null;
-        FileOutputStream tempFileOutputStream = null;
-        try {
-            // Create the temporary file
-            tempFile = File.createTempFile(tempFileNamePrefix, tempFileNameSuffix);
+        return createTempLocalFile(tempFileNamePrefix, tempFileNameSuffix, bytesToWrite,
+                new SeededDataGenerator(ThreadLocalRandom.current().nextLong()));
+    }
+
+    /**
+     * Creates and returns a temporary local file filled with reproducible content for use by the sample.
+     * The file is written in parallel and its content can later be regenerated from the generator's seed.
+     *
+     * @param tempFileNamePrefix The prefix string to be used in generating the file's name.
+     * @param tempFileNameSuffix The suffix string to be used in generating the file's name.
+     * @param bytesToWrite The number of bytes to write to file.
+     * @param generator The generator the content is produced by.
+     * @return The newly created File object
+     */
+    static File createTempLocalFile(String tempFileNamePrefix, String tempFileNameSuffix, long bytesToWrite,
+                                    SeededDataGenerator generator) throws IOException {
 
-            // Write random bytes to the file if requested
-            Random random = new Random();
-            byte[] randomBytes = new byte[4096];
-            tempFileOutputStream = new FileOutputStream(tempFile);
-            while (bytesToWrite > 0) {
-                random.nextBytes(randomBytes);
-                tempFileOutputStream.write(randomBytes, 0, (bytesToWrite > 4096) ? 4096 : bytesToWrite);
-                bytesToWrite -= 4096;
-            }
-        } finally {
-            // Close the file output stream writer
-            if (tempFileOutputStream != null) {
-                tempFileOutputStream.close();
-            }
+        // Create the temporary file and set it to delete on exit
+        File tempFile = File.createTempFile(tempFileNamePrefix, tempFileNameSuffix);
+        tempFile.deleteOnExit();
 
-            // Set the temporary file to delete on exit
-            if (tempFile != null) {
-                tempFile.deleteOnExit();
-            }
-        }
+        generator.writeFile(tempFile.toPath(), bytesToWrite, Runtime.getRuntime().availableProcessors());
         return tempFile;
     }
 }
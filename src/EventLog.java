@@ -0,0 +1,404 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.IllegalFormatException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An event log that keeps formatting and console output off the threads doing the work.
+ * Events are recorded unformatted into a ring buffer allocated up front and a background thread formats and writes
+ * them in batches. Recording never blocks: when the writer falls behind and the buffer is full, events are dropped
+ * and counted. Errors are the exception: an error that finds the buffer full waits in an overflow queue and is written
+ * before the events recorded after it, so errors are never dropped and keep their order. Events below the level
+ * are discarded before anything is recorded, and errors can be rate limited per key so a failing transfer loop
+ * reports a sample of its errors with the count of the others.
+ */
+class EventLog implements Closeable {
+
+    /**
+     * The severity of an event.
+     */
+    enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    /**
+     * A slot of the ring buffer. Slots are reused, so recording an event allocates nothing beyond boxed arguments.
+     */
+    private static final class Event {
+        private Level level;
+        private long timeMillis;
+        private String format;
+        private Object arg0;
+        private Object arg1;
+        private Object[] args;
+        private Throwable error;
+        private long suppressed;
+        // For an overflowed error, the sequence number of the first event recorded after it
+        private long before;
+    }
+
+    /**
+     * Tracks how many errors of one key were reported in the current one second window.
+     */
+    private static final class RateWindow {
+        private long windowStart;
+        private int reported;
+        private long suppressed;
+    }
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static volatile EventLog console;
+
+    private final PrintStream out;
+    private final Event[] events;
+    private final int mask;
+    // The sequence number each slot was last published with, the writer only reads slots whose event is published
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ConcurrentLinkedQueue<Event> overflow = new ConcurrentLinkedQueue<Event>();
+    // Overflowed errors not yet printed
+    private final AtomicLong overflowPending = new AtomicLong();
+    private final ConcurrentHashMap<String, RateWindow> rateWindows = new ConcurrentHashMap<String, RateWindow>();
+    private final int errorsPerSecond;
+    private final Thread writer;
+    private volatile Level level;
+    private volatile long written;
+    // The sequence number up to which formatted events reached the stream
+    private volatile long printed;
+    private volatile boolean closed;
+
+    /**
+     * Creates a log and starts its writer thread.
+     *
+     * @param out             The stream the events are written to.
+     * @param capacity        The number of events the buffer holds, rounded up to a power of two.
+     * @param level           The lowest level recorded.
+     * @param errorsPerSecond The number of errors reported per key and second by the rate limited error methods.
+     */
+    EventLog(PrintStream out, int capacity, Level level, int errorsPerSecond) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.out = out;
+        this.events = new Event[size];
+        for (int i = 0; i < size; i++) {
+            events[i] = new Event();
+        }
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        this.level = level;
+        this.errorsPerSecond = errorsPerSecond;
+        this.writer = new Thread(this::drain, "event-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Returns the log shared by the samples, writing to the console at INFO level.
+     *
+     * @return The console log
+     */
+    static EventLog console() {
+        if (console == null) {
+            synchronized (EventLog.class) {
+                if (console == null) {
+                    final EventLog log = new EventLog(System.out, 8192, Level.INFO, 5);
+                    Runtime.getRuntime().addShutdownHook(new Thread(log::flush));
+                    console = log;
+                }
+            }
+        }
+        return console;
+    }
+
+    /**
+     * Changes the lowest level recorded.
+     *
+     * @param level The new level.
+     */
+    void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * Returns whether events of a level are recorded. Callers building expensive arguments check this first.
+     *
+     * @param level The level.
+     * @return true if recorded
+     */
+    boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    /**
+     * Returns the number of events dropped because the buffer was full.
+     *
+     * @return The number of dropped events
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Records a debug event. Nothing is recorded or formatted unless DEBUG is enabled.
+     */
+    void debug(String format, Object arg0) {
+        if (isEnabled(Level.DEBUG)) {
+            record(Level.DEBUG, format, arg0, null, null, null, 0);
+        }
+    }
+
+    /**
+     * Records a debug event. Nothing is recorded or formatted unless DEBUG is enabled.
+     */
+    void debug(String format, Object arg0, Object arg1) {
+        if (isEnabled(Level.DEBUG)) {
+            record(Level.DEBUG, format, arg0, arg1, null, null, 0);
+        }
+    }
+
+    /**
+     * Records an informational event.
+     */
+    void info(String format) {
+        if (isEnabled(Level.INFO)) {
+            record(Level.INFO, format, null, null, null, null, 0);
+        }
+    }
+
+    /**
+     * Records an informational event.
+     */
+    void info(String format, Object arg0) {
+        if (isEnabled(Level.INFO)) {
+            record(Level.INFO, format, arg0, null, null, null, 0);
+        }
+    }
+
+    /**
+     * Records an informational event.
+     */
+    void info(String format, Object arg0, Object arg1) {
+        if (isEnabled(Level.INFO)) {
+            record(Level.INFO, format, arg0, arg1, null, null, 0);
+        }
+    }
+
+    /**
+     * Records an informational event.
+     */
+    void info(String format, Object... args) {
+        if (isEnabled(Level.INFO)) {
+            record(Level.INFO, format, null, null, args, null, 0);
+        }
+    }
+
+    /**
+     * Records a warning.
+     */
+    void warn(String format, Object arg0, Object arg1) {
+        if (isEnabled(Level.WARN)) {
+            record(Level.WARN, format, arg0, arg1, null, null, 0);
+        }
+    }
+
+    /**
+     * Records an error with its stack trace, which is formatted by the writer thread. Errors are never dropped.
+     *
+     * @param format The message format.
+     * @param error  The error, or null.
+     * @param args   The message arguments.
+     */
+    void error(String format, Throwable error, Object... args) {
+        record(Level.ERROR, format, null, null, args, error, 0);
+    }
+
+    /**
+     * Records an error unless more than the allowed number of errors with the same key were recorded in the current
+     * second. The next error recorded for the key reports how many were suppressed.
+     *
+     * @param key    The key errors are counted by, such as the operation that failed.
+     * @param format The message format.
+     * @param error  The error, or null.
+     * @param args   The message arguments.
+     */
+    void errorRateLimited(String key, String format, Throwable error, Object... args) {
+        RateWindow window = rateWindows.computeIfAbsent(key, k -> new RateWindow());
+        long suppressed;
+        synchronized (window) {
+            long now = System.currentTimeMillis();
+            if (now - window.windowStart >= 1000) {
+                window.windowStart = now;
+                window.reported = 0;
+            }
+            if (window.reported >= errorsPerSecond) {
+                window.suppressed++;
+                return;
+            }
+            window.reported++;
+            suppressed = window.suppressed;
+            window.suppressed = 0;
+        }
+        record(Level.ERROR, format, null, null, args, error, suppressed);
+    }
+
+    /**
+     * Waits until every event recorded so far is written.
+     */
+    void flush() {
+        long target = claimed.get();
+        while ((printed < target || overflowPending.get() > 0) && writer.isAlive()) {
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the recorded events and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        flush();
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void record(Level level, String format, Object arg0, Object arg1, Object[] args,
+                        Throwable error, long suppressed) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - written >= events.length) {
+                if (level == Level.ERROR) {
+                    // Errors are not dropped, the writer picks this one up before the events recorded after it
+                    Event event = new Event();
+                    fill(event, level, format, arg0, arg1, args, error, suppressed);
+                    event.before = sequence;
+                    overflowPending.incrementAndGet();
+                    overflow.add(event);
+                    return;
+                }
+                // The writer is a full buffer behind, drop rather than block
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        fill(events[(int) (sequence & mask)], level, format, arg0, arg1, args, error, suppressed);
+        published.lazySet((int) (sequence & mask), sequence);
+    }
+
+    private static void fill(Event event, Level level, String format, Object arg0, Object arg1, Object[] args,
+                             Throwable error, long suppressed) {
+        event.level = level;
+        event.timeMillis = System.currentTimeMillis();
+        event.format = format;
+        event.arg0 = arg0;
+        event.arg1 = arg1;
+        event.args = args;
+        event.error = error;
+        event.suppressed = suppressed;
+    }
+
+    private void drain() {
+        StringBuilder batch = new StringBuilder();
+        long next = 0;
+        long reportedDrops = 0;
+        long overflowInBatch = 0;
+        while (true) {
+            Event overflowed = overflow.peek();
+            if (overflowed != null && overflowed.before <= next) {
+                overflow.poll();
+                format(overflowed, batch);
+                overflowInBatch++;
+                continue;
+            }
+            int index = (int) (next & mask);
+            if (published.get(index) == next) {
+                format(events[index], batch);
+                clear(events[index]);
+                next++;
+                written = next;
+                if (batch.length() < 64 * 1024) {
+                    continue;
+                }
+            }
+            if (batch.length() > 0) {
+                out.print(batch);
+                out.flush();
+                batch.setLength(0);
+                printed = next;
+                overflowPending.addAndGet(-overflowInBatch);
+                overflowInBatch = 0;
+                continue;
+            }
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                batch.append(String.format("WARN  Dropped %d log events%n", drops - reportedDrops));
+                reportedDrops = drops;
+                continue;
+            }
+            if (closed && next == claimed.get() && overflow.isEmpty()) {
+                return;
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    private static void format(Event event, StringBuilder batch) {
+        batch.append(String.format("%tT.%<tL %-5s ", event.timeMillis, event.level));
+        Object[] args = event.args != null ? event.args : new Object[] {event.arg0, event.arg1};
+        try {
+            batch.append(String.format(event.format, args));
+        } catch (IllegalFormatException ex) {
+            batch.append(event.format);
+        }
+        if (event.suppressed > 0) {
+            batch.append(String.format(" (%d similar errors suppressed)", event.suppressed));
+        }
+        batch.append(System.lineSeparator());
+        if (event.error != null) {
+            StringWriter stringWriter = new StringWriter();
+            event.error.printStackTrace(new PrintWriter(stringWriter));
+            batch.append(stringWriter);
+        }
+    }
+
+    private static void clear(Event event) {
+        // Release references so the buffer does not keep arguments alive
+        event.format = null;
+        event.arg0 = null;
+        event.arg1 = null;
+        event.args = null;
+        event.error = null;
+    }
+}
@@ -43,19 +43,200 @@
  *              See https://azure.microsoft.com/en-us/documentation/articles/storage-create-storage-account/ for more information.
  *          3.  Set breakpoints and run the project.
  */
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClient;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
 public class Main {
 
     /**
      * Executes the sample.
      *
      * @param args
-     *            No input args are expected from users.
+     *            Pass "calibrate" to measure the best transfer settings for the configured endpoint and save them
+     *            instead of running the samples. Pass "download &lt;container&gt; &lt;prefix&gt; &lt;directory&gt;" to
+     *            download every blob under the prefix to the directory instead, "" selects the whole container. Pass
+     *            "sync &lt;directory&gt; &lt;container&gt; &lt;prefix&gt; up|down" to upload the new and changed files
+     *            of the directory to the prefix, or download the new and changed blobs of the prefix to the directory.
+     *            Pass "scan &lt;container&gt; &lt;prefix&gt; &lt;report&gt; [manifest]" to verify the blobs under the
+     *            prefix against the md5sum manifest or their Content-MD5, appending problems to the report; it exits
+     *            with status 1 when a problem was found. Pass "snapshot &lt;container&gt; &lt;prefix&gt;
+     *            &lt;keep-last&gt; &lt;keep-daily&gt; &lt;keep-weekly&gt;" to snapshot every blob under the prefix and
+     *            delete the snapshots the retention policy does not keep, as an hourly job would.
+     *            The process exits with status 1 when any sample failed.
      */
     public static void main(String[] args) throws Exception {
-        BlobBasics basicSamples = new BlobBasics();
-        basicSamples.runSamples();
+        BlobServiceClient blobServiceClient = BlobClientProvider.getBlobServiceClient();
 
+        if (args.length > 0 && "calibrate".equals(args[0])) {
+            calibrate(blobServiceClient);
+            return;
+        }
+        if (args.length > 0 && "download".equals(args[0])) {
+            if (args.length != 4) {
+                System.err.println("Usage: download <container> <prefix> <directory>");
+                System.exit(2);
+            }
+            TransferProfile.loadCurrent(blobServiceClient.getAccountUrl());
+            TransferScheduler.setShared(BlobClientProvider.getTransferScheduler());
+            download(args[1], args[2], Paths.get(args[3]));
+            return;
+        }
+        if (args.length > 0 && "scan".equals(args[0])) {
+            if (args.length != 4 && args.length != 5) {
+                System.err.println("Usage: scan <container> <prefix> <report> [manifest]");
+                System.exit(2);
+            }
+            TransferScheduler.setShared(BlobClientProvider.getTransferScheduler());
+            long problems = scan(blobServiceClient.getBlobContainerClient(args[1]), args[2], Paths.get(args[3]),
+                    args.length == 5 ? Paths.get(args[4]) : null);
+            if (problems > 0) {
+                System.exit(1);
+            }
+            return;
+        }
+        if (args.length > 0 && "snapshot".equals(args[0])) {
+            if (args.length != 6) {
+                System.err.println("Usage: snapshot <container> <prefix> <keep-last> <keep-daily> <keep-weekly>");
+                System.exit(2);
+            }
+            TransferScheduler.setShared(BlobClientProvider.getTransferScheduler());
+            snapshot(blobServiceClient.getBlobContainerClient(args[1]), args[2], new BlobSnapshotPolicy.RetentionPolicy()
+                    .setKeepLast(Integer.parseInt(args[3]))
+                    .setKeepDaily(Integer.parseInt(args[4]))
+                    .setKeepWeekly(Integer.parseInt(args[5])));
+            return;
+        }
+        if (args.length > 0 && "sync".equals(args[0])) {
+            if (args.length != 5 || !("up".equals(args[4]) || "down".equals(args[4]))) {
+                System.err.println("Usage: sync <directory> <container> <prefix> up|down");
+                System.exit(2);
+            }
+            TransferProfile.loadCurrent(blobServiceClient.getAccountUrl());
+            TransferScheduler.setShared(BlobClientProvider.getTransferScheduler());
+            sync(blobServiceClient, Paths.get(args[1]), args[2], args[3], "up".equals(args[4]));
+            return;
+        }
+        // Use the transfer settings measured for this endpoint, if it was calibrated
+        TransferProfile.loadCurrent(blobServiceClient.getAccountUrl());
+        // Share the slots between interactive, standard and background transfers as configured
+        TransferScheduler.setShared(BlobClientProvider.getTransferScheduler());
+
+        // The basic samples manage their own containers, the advanced samples each get an isolated one
+        ScenarioRunner runner = new ScenarioRunner(blobServiceClient, "blobadvancedcontainer");
+        runner.addSerial("basics", "Blob basics", container -> BlobBasics.runSamples());
         BlobAdvanced blobAdvanced = new BlobAdvanced();
-        blobAdvanced.runSamples();
+        blobAdvanced.addScenarios(runner, blobServiceClient);
+
+        List<ScenarioRunner.ScenarioResult> results = runner.run(Runtime.getRuntime().availableProcessors());
+        ScenarioRunner.printReport(results);
+        // Let scripts and CI runs tell a failed scenario from a clean run
+        if (results.stream().anyMatch(result -> result.getFailure() != null)) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Downloads every blob under a prefix of a container to a local directory, reading from all the configured
+     * accounts.
+     *
+     * @param containerName The container to download from.
+     * @param prefix        The prefix of the blobs to download, "" for the whole container.
+     * @param directory     The directory to download to.
+     */
+    private static void download(String containerName, String prefix, Path directory) throws IOException {
+        BlobBulkDownload.DownloadResult result = BlobBulkDownload.download(
+                BlobClientProvider.getShardedBlobServiceClient(), containerName, prefix, directory,
+                new BlobBulkDownload.DownloadOptions());
+        EventLog.console().flush();
+        System.out.println(result);
+    }
+
+    /**
+     * Verifies every blob under a prefix of a container, resuming an interrupted scan from the checkpoint saved next
+     * to the report.
+     *
+     * @param container    The container to scan.
+     * @param prefix       The prefix of the blobs to scan, "" for the whole container.
+     * @param reportPath   The file problems are appended to.
+     * @param manifestPath The md5sum manifest of the blobs, or null to compare with their Content-MD5 only.
+     * @return The number of problems reported
+     */
+    private static long scan(BlobContainerClient container, String prefix, Path reportPath, Path manifestPath)
+            throws IOException, InterruptedException {
+        Map<String, byte[]> manifest = manifestPath != null ? BlobIntegrityScanner.loadManifest(manifestPath) : null;
+        BlobIntegrityScanner scanner = new BlobIntegrityScanner(container, Runtime.getRuntime().availableProcessors() * 2, 0);
+        BlobIntegrityScanner.Result result = scanner.scan(prefix, manifest, reportPath,
+                Paths.get(reportPath.toString() + ".checkpoint"));
+        EventLog.console().flush();
+        System.out.println(String.format("verified: %d (%d bytes), skipped: %d, problems: %d", result.getVerified(),
+                result.getBytes(), result.getSkipped(), result.getProblems()));
+        return result.getProblems();
+    }
+
+    /**
+     * Snapshots every blob under a prefix of a container, then deletes the snapshots the policy does not retain.
+     *
+     * @param container The container holding the blobs.
+     * @param prefix    The prefix of the blobs, "" for the whole container.
+     * @param policy    The retention policy.
+     */
+    private static void snapshot(BlobContainerClient container, String prefix, BlobSnapshotPolicy.RetentionPolicy policy)
+            throws InterruptedException {
+        int concurrency = Runtime.getRuntime().availableProcessors() * 4;
+        BlobSnapshotPolicy.Result created = BlobSnapshotPolicy.snapshotAll(container, prefix, concurrency);
+        BlobSnapshotPolicy.Result pruned = BlobSnapshotPolicy.prune(container, prefix, policy, concurrency);
+        EventLog.console().flush();
+        System.out.println(String.format("created: %d, kept: %d, deleted: %d", created.getProcessed(),
+                pruned.getProcessed(), pruned.getDeleted()));
+    }
+
+    /**
+     * Synchronizes a local directory with a prefix of a container in one direction.
+     *
+     * @param blobServiceClient Azure Storage Blob Service
+     * @param directory         The local directory.
+     * @param containerName     The container, which is created if needed when uploading.
+     * @param prefix            The virtual directory in the container, "" for the whole container.
+     * @param upload            true to upload the directory, false to download the prefix.
+     */
+    private static void sync(BlobServiceClient blobServiceClient, Path directory, String containerName, String prefix,
+                             boolean upload) throws IOException {
+        BlobContainerClient container = blobServiceClient.getBlobContainerClient(containerName);
+        BlobSync.SyncResult result;
+        if (upload) {
+            if (!container.exists()) {
+                container.create();
+            }
+            result = BlobSync.upload(directory, container, prefix, new BlobSync.SyncOptions());
+        } else {
+            result = BlobSync.download(container, prefix, directory, new BlobSync.SyncOptions());
+        }
+        EventLog.console().flush();
+        System.out.println(result);
+    }
+
+    /**
+     * Measures the transfer settings for the endpoint in a temporary container and saves them as its profile.
+     *
+     * @param blobServiceClient Azure Storage Blob Service
+     */
+    private static void calibrate(BlobServiceClient blobServiceClient) throws Exception {
+        BlobContainerClient container = blobServiceClient.createBlobContainer(DataGenerator.createRandomName("transfertuner"));
+        try {
+            // Leave most of the heap to the rest of the application
+            TransferTuner tuner = new TransferTuner(container, Runtime.getRuntime().maxMemory() / 4, Duration.ofSeconds(5));
+            TransferProfile profile = tuner.calibrate();
+            profile.save(TransferProfile.DEFAULT_PATH, blobServiceClient.getAccountUrl());
+            System.out.println(String.format("\nSaved the profile %s to %s.", profile, TransferProfile.DEFAULT_PATH));
+        } finally {
+            container.delete();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,425 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.core.util.Context;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.PageRange;
+import com.azure.storage.blob.specialized.PageBlobClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uses a page blob as a random access block device, with a local cache of its 512 byte pages.
+ * Writes only change cached pages and mark them dirty; dirty pages are written back on {@link #flush()}, on a timer and
+ * when half the cache is dirty, with adjacent dirty pages merged into Put Page requests of up to 4MB. Reads are served
+ * from the cache and the pages they miss are fetched with ranged reads rounded out to a fetch window. A write that
+ * covers a page only in part reads the page first. Clean pages are evicted least recently used first; dirty pages stay
+ * cached until they are written back.
+ * The device is safe for concurrent use, and writes made while a write-back is in flight are kept for the next one.
+ */
+class PageBlobDevice implements Flushable, Closeable {
+
+    /**
+     * The size of a page, the unit the device caches and writes back.
+     */
+    static final int PAGE_SIZE = PageBlobClient.PAGE_BYTES;
+
+    /**
+     * A cached page. The version tells whether the page was written again after a write-back copied it.
+     */
+    private static final class Page {
+        private final byte[] data = new byte[PAGE_SIZE];
+        private long version;
+    }
+
+    private final PageBlobClient blob;
+    private final long size;
+    private final int cachePages;
+    private final int fetchPages;
+    private final ScheduledExecutorService flushTimer;
+    private final Object flushLock = new Object();
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong downloads = new AtomicLong();
+
+    // The cache, guarded by this
+    private final TreeMap<Long, Page> dirty = new TreeMap<Long, Page>();
+    private final LinkedHashMap<Long, Page> clean;
+    private long writes;
+    private long writeBacks;
+    private boolean open = true;
+
+    /**
+     * Opens a page blob as a device of its current size.
+     *
+     * @param blob          The page blob, which must exist.
+     * @param cachePages    The number of pages cached, dirty or clean.
+     * @param fetchPages    The number of pages a read miss fetches, aligned to that number of pages.
+     * @param flushInterval How often dirty pages are written back in the background, or null to write back only on
+     *                      {@link #flush()} and when the cache fills.
+     */
+    PageBlobDevice(PageBlobClient blob, final int cachePages, int fetchPages, Duration flushInterval) {
+        if (cachePages < 2 || fetchPages < 1 || fetchPages > cachePages) {
+            throw new IllegalArgumentException("The cache must hold at least 2 pages and at least the fetch window.");
+        }
+        this.blob = blob;
+        this.size = blob.getProperties().getBlobSize();
+        this.cachePages = cachePages;
+        this.fetchPages = fetchPages;
+        this.clean = new LinkedHashMap<Long, Page>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Page> eldest) {
+                return size() + dirty.size() > cachePages;
+            }
+        };
+        if (flushInterval != null) {
+            this.flushTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "page-blob-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Write-backs run with the tag of the thread that opened the device
+            flushTimer.scheduleWithFixedDelay(TransferScheduler.propagate(() -> {
+                try {
+                    flush();
+                } catch (IOException | RuntimeException ex) {
+                    // The pages stay dirty and the next write-back retries them
+                    EventLog.console().errorRateLimited("page blob flush", "Failed to write back pages of \"%s\".",
+                            ex, blob.getBlobUrl());
+                }
+            }), flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            this.flushTimer = null;
+        }
+    }
+
+    /**
+     * Returns the size of the device, the size of the page blob when it was opened.
+     *
+     * @return The size in bytes
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of Put Page requests made.
+     *
+     * @return The number of uploads
+     */
+    long getUploads() {
+        return uploads.get();
+    }
+
+    /**
+     * Returns the number of ranged reads made.
+     *
+     * @return The number of downloads
+     */
+    long getDownloads() {
+        return downloads.get();
+    }
+
+    /**
+     * Reads bytes, from the cache where possible.
+     *
+     * @param offset   The offset on the device.
+     * @param buffer   The buffer to read into.
+     * @param position The position in the buffer.
+     * @param length   The number of bytes to read.
+     * @throws IOException
+     */
+    void read(long offset, byte[] buffer, int position, int length) throws IOException {
+        checkRange(offset, length);
+        if (length == 0) {
+            return;
+        }
+        long firstPage = offset / PAGE_SIZE;
+        long lastPage = (offset + length - 1) / PAGE_SIZE;
+        // A page cached when the fetch looked is rarely evicted before it is copied, in which case fetch again
+        while (true) {
+            long writeBacksBefore;
+            synchronized (this) {
+                writeBacksBefore = writeBacks;
+            }
+            Map<Long, Page> fetched = fetch(firstPage, lastPage, fetchPages);
+            synchronized (this) {
+                // The fetch reads whole windows, so it may have read a page that was dirty at the time. A write-back
+                // finishing during the read may have flushed and evicted that page since, so then fetch again, as
+                // write does
+                Map<Long, Page> usable = writeBacks == writeBacksBefore ? fetched : Collections.<Long, Page>emptyMap();
+                if (copyPages(offset, buffer, position, length, usable)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes bytes to the cache. They reach the page blob with the next write-back.
+     *
+     * @param offset   The offset on the device.
+     * @param buffer   The buffer to write from.
+     * @param position The position in the buffer.
+     * @param length   The number of bytes to write.
+     * @throws IOException
+     */
+    void write(long offset, byte[] buffer, int position, int length) throws IOException {
+        checkRange(offset, length);
+        if (length == 0) {
+            return;
+        }
+        long firstPage = offset / PAGE_SIZE;
+        long lastPage = (offset + length - 1) / PAGE_SIZE;
+        // Pages written in part keep the rest of their content, so read them unless cached
+        boolean partialFirst = offset % PAGE_SIZE != 0;
+        boolean partialLast = (offset + length) % PAGE_SIZE != 0;
+        boolean full;
+        while (true) {
+            long writeBacksBefore;
+            synchronized (this) {
+                writeBacksBefore = writeBacks;
+            }
+            Map<Long, Page> fetched = new HashMap<Long, Page>();
+            if (partialFirst) {
+                fetched.putAll(fetch(firstPage, firstPage, 1));
+            }
+            if (partialLast) {
+                fetched.putAll(fetch(lastPage, lastPage, 1));
+            }
+            synchronized (this) {
+                ensureOpen();
+                boolean usesFetched = (partialFirst && cached(firstPage) == null)
+                        || (partialLast && cached(lastPage) == null);
+                // A write-back finishing during the read may have flushed and evicted a newer copy of a page, which
+                // the fetched one would overwrite, so read again as fetch does before caching pages
+                if (usesFetched && (writeBacks != writeBacksBefore
+                        || (partialFirst && cached(firstPage) == null && !fetched.containsKey(firstPage))
+                        || (partialLast && cached(lastPage) == null && !fetched.containsKey(lastPage)))) {
+                    continue;
+                }
+                writes++;
+                for (long index = firstPage; index <= lastPage; index++) {
+                    Page page = cached(index);
+                    if (page == null) {
+                        page = fetched.containsKey(index) ? fetched.get(index) : new Page();
+                    }
+                    long pageStart = index * PAGE_SIZE;
+                    int from = (int) Math.max(offset - pageStart, 0);
+                    int to = (int) Math.min(offset + length - pageStart, PAGE_SIZE);
+                    System.arraycopy(buffer, (int) (position + pageStart + from - offset), page.data, from, to - from);
+                    page.version = writes;
+                    clean.remove(index);
+                    dirty.put(index, page);
+                }
+                full = dirty.size() >= cachePages / 2;
+                break;
+            }
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes every dirty page back to the page blob, merging adjacent pages into requests of up to 4MB.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            List<Long> runStarts = new ArrayList<Long>();
+            List<byte[]> runs = new ArrayList<byte[]>();
+            Map<Long, Long> versions = new HashMap<Long, Long>();
+            synchronized (this) {
+                // Copy the dirty pages so writes can go on while they upload
+                long runStart = -1;
+                ByteArrayOutputStream run = new ByteArrayOutputStream();
+                for (Map.Entry<Long, Page> entry : dirty.entrySet()) {
+                    long index = entry.getKey();
+                    if (runStart >= 0 && (index != runStart + run.size() / PAGE_SIZE
+                            || run.size() + PAGE_SIZE > PageBlobClient.MAX_PUT_PAGES_BYTES)) {
+                        runStarts.add(runStart);
+                        runs.add(run.toByteArray());
+                        run.reset();
+                    }
+                    if (run.size() == 0) {
+                        runStart = index;
+                    }
+                    run.write(entry.getValue().data, 0, PAGE_SIZE);
+                    versions.put(index, entry.getValue().version);
+                }
+                if (run.size() > 0) {
+                    runStarts.add(runStart);
+                    runs.add(run.toByteArray());
+                }
+            }
+
+            for (int i = 0; i < runs.size(); i++) {
+                byte[] data = runs.get(i);
+                long start = runStarts.get(i) * PAGE_SIZE;
+                TransferScheduler.shared().run(data.length, () -> blob.uploadPagesWithResponse(
+                        new PageRange().setStart(start).setEnd(start + data.length - 1), new ByteArrayInputStream(data),
+                        BlobTransfer.newMd5().digest(data), null, null, Context.NONE));
+                uploads.incrementAndGet();
+
+                synchronized (this) {
+                    // Pages written again since they were copied stay dirty
+                    for (long index = runStarts.get(i); index < runStarts.get(i) + data.length / PAGE_SIZE; index++) {
+                        Page page = dirty.get(index);
+                        if (page != null && page.version == versions.get(index)) {
+                            dirty.remove(index);
+                            clean.put(index, page);
+                        }
+                    }
+                    writeBacks++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the write-back timer and writes back the dirty pages.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (flushTimer != null) {
+            // Let a write-back in flight finish rather than interrupt it
+            flushTimer.shutdown();
+        }
+        flush();
+        synchronized (this) {
+            open = false;
+        }
+    }
+
+    /**
+     * Fetches the pages of a range that are not cached, reading each missing stretch rounded out to the window, and
+     * caches them. Pages cached meanwhile are kept.
+     *
+     * @return The fetched pages by index
+     */
+    private Map<Long, Page> fetch(long firstPage, long lastPage, int window) throws IOException {
+        List<long[]> missing = new ArrayList<long[]>();
+        long writeBacksBefore;
+        synchronized (this) {
+            ensureOpen();
+            writeBacksBefore = writeBacks;
+            long index = firstPage;
+            while (index <= lastPage) {
+                if (cached(index) != null) {
+                    index++;
+                    continue;
+                }
+                long start = index / window * window;
+                long end = Math.min((index / window + 1) * window, size / PAGE_SIZE);
+                while (end <= lastPage && cached(end) == null) {
+                    end = Math.min((end / window + 1) * window, size / PAGE_SIZE);
+                }
+                missing.add(new long[] {start, end});
+                index = end;
+            }
+        }
+
+        Map<Long, Page> fetched = new HashMap<Long, Page>();
+        for (long[] range : missing) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream((int) ((range[1] - range[0]) * PAGE_SIZE));
+            BlobRange blobRange = new BlobRange(range[0] * PAGE_SIZE, (range[1] - range[0]) * PAGE_SIZE);
+            TransferScheduler.shared().run(blobRange.getCount(), () -> blob.downloadWithResponse(content, blobRange,
+                    null, null, false, null, Context.NONE));
+            downloads.incrementAndGet();
+            byte[] data = content.toByteArray();
+            for (long index = range[0]; index < range[1]; index++) {
+                Page page = new Page();
+                System.arraycopy(data, (int) ((index - range[0]) * PAGE_SIZE), page.data, 0, PAGE_SIZE);
+                fetched.put(index, page);
+            }
+        }
+
+        synchronized (this) {
+            // A write-back finishing during the read may have made pages clean and evicted them since, in which case
+            // the fetched copies can be older than the page blob and are not cached
+            if (writeBacks == writeBacksBefore) {
+                for (Map.Entry<Long, Page> entry : fetched.entrySet()) {
+                    if (cached(entry.getKey()) == null) {
+                        clean.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+        return fetched;
+    }
+
+    /**
+     * Copies a range from the cached or fetched pages into a buffer.
+     *
+     * @return false if a page is neither cached nor fetched
+     */
+    private boolean copyPages(long offset, byte[] buffer, int position, int length, Map<Long, Page> fetched) {
+        for (long index = offset / PAGE_SIZE; index <= (offset + length - 1) / PAGE_SIZE; index++) {
+            Page page = cached(index);
+            if (page == null) {
+                page = fetched.get(index);
+                if (page == null) {
+                    return false;
+                }
+            }
+            long pageStart = index * PAGE_SIZE;
+            int from = (int) Math.max(offset - pageStart, 0);
+            int to = (int) Math.min(offset + length - pageStart, PAGE_SIZE);
+            System.arraycopy(page.data, from, buffer, (int) (position + pageStart + from - offset), to - from);
+        }
+        return true;
+    }
+
+    /**
+     * Returns a cached page, dirty or clean, or null.
+     */
+    private Page cached(long index) {
+        Page page = dirty.get(index);
+        return page != null ? page : clean.get(index);
+    }
+
+    private void checkRange(long offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IllegalArgumentException(String.format("The range %d-%d is outside the device of %d bytes.",
+                    offset, offset + length - 1, size));
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) {
+            throw new IOException("The device is closed.");
+        }
+    }
+}
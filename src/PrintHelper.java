@@ -16,9 +16,6 @@
 
 import com.azure.storage.blob.models.BlobStorageException;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
-
 /**
  * A class which provides utility methods
  * 
@@ -26,38 +23,36 @@ import java.io.StringWriter;
 public final class PrintHelper {
 
     /**
-     * Prints out the sample start information .
+     * Prints out the sample start information and waits until it is written, ahead of the samples' own output.
      */
     public static void printSampleStartInfo(String sampleName) {
-        System.out.println(String.format(
-                "%s samples starting...",
-                sampleName));
+        EventLog.console().info("%s samples starting...", sampleName);
+        EventLog.console().flush();
     }
 
     /**
-     * Prints out the sample complete information .
+     * Prints out the sample complete information and waits until everything logged before is written.
      */
     public static void printSampleCompleteInfo(String sampleName) {
-        System.out.println(String.format(
-                "%s samples completed.",
-                sampleName));
+        EventLog.console().info("%s samples completed.", sampleName);
+        EventLog.console().flush();
     }
 
     /**
-     * Print the exception stack trace
+     * Print the exception stack trace. The stack trace is formatted by the log's writer thread, which is waited for
+     * before and after so the trace appears between the output printed directly before and after the call.
      *
      * @param ex Exception to be printed
      */
     public static void printException(Exception ex) {
-
-        StringWriter stringWriter = new StringWriter();
-        PrintWriter printWriter = new PrintWriter(stringWriter);
-        ex.printStackTrace(printWriter);
-        if (ex instanceof BlobStorageException) {
-            if (((BlobStorageException) ex).getServiceMessage() != null) {
-                System.out.println(String.format("\nError: %s", ((BlobStorageException) ex).getServiceMessage()));
-            }
+        EventLog log = EventLog.console();
+        log.flush();
+        String serviceMessage = ex instanceof BlobStorageException ? ((BlobStorageException) ex).getServiceMessage() : null;
+        if (serviceMessage != null) {
+            log.error("Error: %s%nException details:", ex, serviceMessage);
+        } else {
+            log.error("Exception details:", ex);
         }
-        System.out.println(String.format("Exception details:\n%s", stringWriter.toString()));
+        log.flush();
     }
 }
@@ -0,0 +1,295 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.models.BlobErrorCode;
+import com.azure.storage.blob.models.BlobStorageException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs sample scenarios concurrently and reports how long each one took.
+ * Isolated scenarios each get their own randomly named container, created before and deleted after the scenario.
+ * Scenarios that share state, such as the service properties, are added to a serial group and run one after another,
+ * concurrently with everything else.
+ */
+class ScenarioRunner {
+
+    /**
+     * A scenario to run.
+     */
+    interface Scenario {
+        /**
+         * Runs the scenario.
+         *
+         * @param container The container provisioned for the scenario, or null for scenarios of a serial group.
+         * @throws Exception
+         */
+        void run(BlobContainerClient container) throws Exception;
+    }
+
+    /**
+     * The outcome of a scenario.
+     */
+    static final class ScenarioResult {
+        private final String name;
+        private long provisionMillis;
+        private long runMillis;
+        private long teardownMillis;
+        private Exception failure;
+
+        private ScenarioResult(String name) {
+            this.name = name;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getProvisionMillis() {
+            return provisionMillis;
+        }
+
+        long getRunMillis() {
+            return runMillis;
+        }
+
+        long getTeardownMillis() {
+            return teardownMillis;
+        }
+
+        Exception getFailure() {
+            return failure;
+        }
+    }
+
+    private static final class Entry {
+        private final String name;
+        private final Scenario scenario;
+        private final boolean isolated;
+
+        private Entry(String name, Scenario scenario, boolean isolated) {
+            this.name = name;
+            this.scenario = scenario;
+            this.isolated = isolated;
+        }
+    }
+
+    private final BlobServiceClient blobServiceClient;
+    private final String containerPrefix;
+    private final List<List<Entry>> tasks = new ArrayList<List<Entry>>();
+    private final Map<String, List<Entry>> serialGroups = new LinkedHashMap<String, List<Entry>>();
+
+    /**
+     * Creates a runner.
+     *
+     * @param blobServiceClient Azure Storage Blob Service
+     * @param containerPrefix   The prefix of the containers provisioned for isolated scenarios. It must be lower case.
+     */
+    ScenarioRunner(BlobServiceClient blobServiceClient, String containerPrefix) {
+        this.blobServiceClient = blobServiceClient;
+        this.containerPrefix = containerPrefix;
+    }
+
+    /**
+     * Adds a scenario that runs concurrently with the others in its own container.
+     *
+     * @param name     The name reported for the scenario.
+     * @param scenario The scenario.
+     * @return This runner
+     */
+    ScenarioRunner add(String name, Scenario scenario) {
+        List<Entry> task = new ArrayList<Entry>();
+        task.add(new Entry(name, scenario, true));
+        tasks.add(task);
+        return this;
+    }
+
+    /**
+     * Adds a scenario that runs after the scenarios added earlier to the same group. No container is provisioned.
+     *
+     * @param group    The serial group.
+     * @param name     The name reported for the scenario.
+     * @param scenario The scenario.
+     * @return This runner
+     */
+    ScenarioRunner addSerial(String group, String name, Scenario scenario) {
+        List<Entry> task = serialGroups.get(group);
+        if (task == null) {
+            task = new ArrayList<Entry>();
+            serialGroups.put(group, task);
+            tasks.add(task);
+        }
+        task.add(new Entry(name, scenario, false));
+        return this;
+    }
+
+    /**
+     * Runs every scenario. A failing scenario does not stop the others.
+     *
+     * @param parallelism The number of scenarios or serial groups run at the same time.
+     * @return The results in the order the scenarios were added
+     * @throws InterruptedException
+     */
+    List<ScenarioResult> run(int parallelism) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        List<Future<List<ScenarioResult>>> futures = new ArrayList<Future<List<ScenarioResult>>>();
+        try {
+            for (final List<Entry> task : tasks) {
+                futures.add(executor.submit(() -> {
+                    List<ScenarioResult> results = new ArrayList<ScenarioResult>();
+                    for (Entry entry : task) {
+                        results.add(runScenario(entry));
+                    }
+                    return results;
+                }));
+            }
+            List<ScenarioResult> results = new ArrayList<ScenarioResult>();
+            for (Future<List<ScenarioResult>> future : futures) {
+                results.addAll(future.get());
+            }
+            return results;
+        } catch (ExecutionException ex) {
+            // runScenario records every failure, so this is not expected
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Prints the timing and outcome of every scenario.
+     *
+     * @param results The results to print.
+     */
+    static void printReport(List<ScenarioResult> results) {
+        // Write what the scenarios logged before the report
+        EventLog.console().flush();
+        System.out.println();
+        System.out.println(String.format("%-40s %8s %10s %10s %10s", "Scenario", "Status", "Setup ms", "Run ms", "Cleanup ms"));
+        for (ScenarioResult result : results) {
+            System.out.println(String.format("%-40s %8s %10d %10d %10d", result.getName(),
+                    result.getFailure() == null ? "passed" : "failed",
+                    result.getProvisionMillis(), result.getRunMillis(), result.getTeardownMillis()));
+        }
+        for (ScenarioResult result : results) {
+            if (result.getFailure() != null) {
+                EventLog.console().info("Scenario \"%s\" failed.", result.getName());
+                PrintHelper.printException(result.getFailure());
+            }
+        }
+        EventLog.console().flush();
+    }
+
+    /**
+     * Polls a condition until it holds or the deadline passes.
+     *
+     * @param condition The condition to poll.
+     * @param deadline  How long to keep polling.
+     * @param interval  The wait between two polls.
+     * @return true if the condition held before the deadline
+     * @throws InterruptedException
+     */
+    static boolean waitUntil(BooleanSupplier condition, Duration deadline, Duration interval) throws InterruptedException {
+        long end = System.nanoTime() + deadline.toNanos();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - end >= 0) {
+                return false;
+            }
+            Thread.sleep(interval.toMillis());
+        }
+        return true;
+    }
+
+    private ScenarioResult runScenario(Entry entry) {
+        ScenarioResult result = new ScenarioResult(entry.name);
+        BlobContainerClient container = null;
+        long start = System.nanoTime();
+        if (entry.isolated) {
+            try {
+                container = provision(DataGenerator.createRandomName(containerPrefix));
+            } catch (RuntimeException ex) {
+                result.failure = ex;
+                result.provisionMillis = elapsedMillis(start);
+                return result;
+            }
+        }
+        result.provisionMillis = elapsedMillis(start);
+
+        start = System.nanoTime();
+        try {
+            entry.scenario.run(container);
+        } catch (Exception ex) {
+            result.failure = ex;
+        }
+        result.runMillis = elapsedMillis(start);
+
+        start = System.nanoTime();
+        if (container != null) {
+            try {
+                teardown(container);
+            } catch (RuntimeException ex) {
+                if (result.failure == null) {
+                    result.failure = ex;
+                }
+            }
+        }
+        result.teardownMillis = elapsedMillis(start);
+        return result;
+    }
+
+    /**
+     * Creates a container, succeeding if it already exists.
+     */
+    private BlobContainerClient provision(String containerName) {
+        BlobContainerClient container = blobServiceClient.getBlobContainerClient(containerName);
+        try {
+            container.create();
+        } catch (BlobStorageException ex) {
+            if (!BlobErrorCode.CONTAINER_ALREADY_EXISTS.equals(ex.getErrorCode())) {
+                throw ex;
+            }
+        }
+        return container;
+    }
+
+    /**
+     * Deletes a container, succeeding if it is already gone or going.
+     */
+    private static void teardown(BlobContainerClient container) {
+        try {
+            container.delete();
+        } catch (BlobStorageException ex) {
+            if (!BlobErrorCode.CONTAINER_NOT_FOUND.equals(ex.getErrorCode())
+                    && !BlobErrorCode.CONTAINER_BEING_DELETED.equals(ex.getErrorCode())) {
+                throw ex;
+            }
+        }
+    }
+
+    private static long elapsedMillis(long start) {
+        return (System.nanoTime() - start) / 1000000;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates reproducible test data from a seed.
+ * The content is laid out in fixed size chunks, each produced by its own SplittableRandom derived from the seed and
+ * the chunk index, so any byte range can be regenerated without producing the bytes before it.
+ * That lets files be written in parallel and downloads be checked against the seed instead of a stored copy.
+ */
+class SeededDataGenerator {
+
+    /**
+     * Size of the unit of generation. Every chunk is either fully random (subject to compressibility) or all zeros.
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Size of the segments inside a chunk whose tail is zeroed to reach the requested compressibility.
+     */
+    private static final int SEGMENT_SIZE = 4 * 1024;
+
+    /**
+     * Number of chunks written by one parallel task.
+     */
+    private static final int CHUNKS_PER_TASK = 128;
+
+    private static final ThreadLocal<byte[]> CHUNK_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+
+    private final long seed;
+    private final double compressibility;
+    private final double sparseFraction;
+    private final int randomBytesPerSegment;
+
+    /**
+     * Creates a generator of incompressible data without sparse regions.
+     *
+     * @param seed The seed the content is derived from.
+     */
+    SeededDataGenerator(long seed) {
+        this(seed, 0, 0);
+    }
+
+    /**
+     * Creates a generator.
+     *
+     * @param seed            The seed the content is derived from.
+     * @param compressibility The fraction of every segment, between 0 and 1, that is zero filled and so compresses away.
+     * @param sparseFraction  The fraction of chunks, between 0 and 1, that are entirely zero. They are left as holes
+     *                        when writing files.
+     */
+    SeededDataGenerator(long seed, double compressibility, double sparseFraction) {
+        if (compressibility < 0 || compressibility > 1) {
+            throw new IllegalArgumentException("compressibility must be between 0 and 1.");
+        }
+        if (sparseFraction < 0 || sparseFraction > 1) {
+            throw new IllegalArgumentException("sparseFraction must be between 0 and 1.");
+        }
+        this.seed = seed;
+        this.compressibility = compressibility;
+        this.sparseFraction = sparseFraction;
+        this.randomBytesPerSegment = (int) Math.round(SEGMENT_SIZE * (1 - compressibility));
+    }
+
+    long getSeed() {
+        return seed;
+    }
+
+    double getCompressibility() {
+        return compressibility;
+    }
+
+    double getSparseFraction() {
+        return sparseFraction;
+    }
+
+    /**
+     * Regenerates the content of any byte range.
+     *
+     * @param offset The offset of the first byte in the generated content.
+     * @param buffer The buffer to fill.
+     * @param off    The offset in the buffer.
+     * @param len    The number of bytes to generate.
+     */
+    void fill(long offset, byte[] buffer, int off, int len) {
+        byte[] chunk = CHUNK_BUFFER.get();
+        while (len > 0) {
+            long chunkIndex = offset / CHUNK_SIZE;
+            int chunkOffset = (int) (offset % CHUNK_SIZE);
+            int count = Math.min(len, CHUNK_SIZE - chunkOffset);
+            generateChunk(chunkIndex, chunk);
+            System.arraycopy(chunk, chunkOffset, buffer, off, count);
+            offset += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Writes a file of the given size in parallel using positional writes. Sparse chunks are not written, so the
+     * file system can leave them as holes.
+     *
+     * @param path        The path of the file to write. An existing file is replaced.
+     * @param size        The size of the file in bytes.
+     * @param parallelism The number of threads to write with.
+     * @throws IOException
+     */
+    void writeFile(Path path, long size, int parallelism) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(path.toFile(), "rw")) {
+            randomAccessFile.setLength(0);
+            randomAccessFile.setLength(size);
+            final FileChannel channel = randomAccessFile.getChannel();
+            long chunkCount = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+            try {
+                List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+                for (long first = 0; first < chunkCount; first += CHUNKS_PER_TASK) {
+                    final long firstChunk = first;
+                    final long lastChunk = Math.min(chunkCount, first + CHUNKS_PER_TASK);
+                    tasks.add(executor.submit(() -> {
+                        writeChunks(channel, size, firstChunk, lastChunk);
+                        return null;
+                    }));
+                }
+                for (Future<Void> task : tasks) {
+                    task.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing generated data.", ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Compares a stream with the generated content starting at an offset.
+     *
+     * @param inputStream The stream to check. It is read until its end.
+     * @param offset      The offset in the generated content the stream starts at.
+     * @return The offset of the first byte that does not match, or -1 if the whole stream matches
+     * @throws IOException
+     */
+    long findMismatch(InputStream inputStream, long offset) throws IOException {
+        byte[] actual = new byte[CHUNK_SIZE];
+        byte[] expected = new byte[CHUNK_SIZE];
+        int bytesRead;
+        while ((bytesRead = BlobTransfer.readBlock(inputStream, actual)) > 0) {
+            fill(offset, expected, 0, bytesRead);
+            for (int i = 0; i < bytesRead; i++) {
+                if (actual[i] != expected[i]) {
+                    return offset + i;
+                }
+            }
+            offset += bytesRead;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether a chunk is an all-zero sparse chunk.
+     *
+     * @param chunkIndex The index of the chunk.
+     * @return true if the chunk is sparse
+     */
+    boolean isSparse(long chunkIndex) {
+        if (sparseFraction == 0) {
+            return false;
+        }
+        // Map a hash of the chunk index to [0, 1) with the 53 bits a double can hold
+        double draw = (mix(seed ^ 0x5DEECE66DL, chunkIndex) >>> 11) * 0x1.0p-53;
+        return draw < sparseFraction;
+    }
+
+    private void writeChunks(FileChannel channel, long size, long firstChunk, long lastChunk) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        for (long chunkIndex = firstChunk; chunkIndex < lastChunk; chunkIndex++) {
+            if (isSparse(chunkIndex)) {
+                continue;
+            }
+            long position = chunkIndex * CHUNK_SIZE;
+            generateChunk(chunkIndex, chunk);
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, (int) Math.min(CHUNK_SIZE, size - position));
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    private void generateChunk(long chunkIndex, byte[] chunk) {
+        if (isSparse(chunkIndex)) {
+            Arrays.fill(chunk, (byte) 0);
+            return;
+        }
+        SplittableRandom random = new SplittableRandom(mix(seed, chunkIndex));
+        for (int segment = 0; segment < CHUNK_SIZE; segment += SEGMENT_SIZE) {
+            int i = segment;
+            int randomEnd = segment + randomBytesPerSegment;
+            while (i + 8 <= randomEnd) {
+                long value = random.nextLong();
+                for (int b = 0; b < 8; b++) {
+                    chunk[i++] = (byte) value;
+                    value >>>= 8;
+                }
+            }
+            if (i < randomEnd) {
+                long value = random.nextLong();
+                while (i < randomEnd) {
+                    chunk[i++] = (byte) value;
+                    value >>>= 8;
+                }
+            }
+            Arrays.fill(chunk, randomEnd, segment + SEGMENT_SIZE, (byte) 0);
+        }
+    }
+
+    /**
+     * Derives an independent 64 bit value from a seed and an index using the SplitMix64 finalizer.
+     */
+    static long mix(long seed, long index) {
+        long z = seed + (index + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
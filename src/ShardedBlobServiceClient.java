@@ -0,0 +1,427 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.models.BlobContainerItem;
+import com.azure.storage.blob.models.BlobErrorCode;
+import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.models.ListBlobContainersOptions;
+import com.azure.storage.blob.models.ListBlobsOptions;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Spreads containers and blobs over several storage accounts so that request rate and bandwidth add up across them.
+ * Keys are placed on a consistent hash ring where every account owns many points derived from its account URL, so
+ * routing does not depend on the order accounts are configured in and adding an account remaps only the keys that now
+ * fall on its points, about one in the new number of accounts. Nothing moves by itself: until {@link #rebalance} moved
+ * the remapped blobs of a container, they are routed to an account that does not hold them.
+ * Containers can be routed as a whole by container name, or blob by blob by container and blob name, in which case the
+ * container exists on every account. Listings fan out to every account and are merged in name order. A blob listed
+ * from an account it is not routed to, or from several accounts, is reported as a warning.
+ */
+class ShardedBlobServiceClient {
+
+    /**
+     * Default number of points each account owns on the ring. More points even out the share of keys per account.
+     */
+    static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    /**
+     * Work run against one account.
+     */
+    interface ShardTask<T> {
+        /**
+         * Runs the work.
+         *
+         * @param shard The account.
+         * @return The result for the account
+         * @throws Exception
+         */
+        T run(BlobServiceClient shard) throws Exception;
+    }
+
+    /**
+     * Counts of what a rebalance did.
+     */
+    static final class RebalanceResult {
+        private final AtomicLong moved = new AtomicLong();
+        private final AtomicLong discarded = new AtomicLong();
+        private final AtomicLong kept = new AtomicLong();
+
+        /**
+         * Returns the number of blobs copied to the account they are routed to and deleted from the other.
+         */
+        long getMoved() {
+            return moved.get();
+        }
+
+        /**
+         * Returns the number of stale copies deleted because the account the blob is routed to already held it.
+         */
+        long getDiscarded() {
+            return discarded.get();
+        }
+
+        /**
+         * Returns the number of misplaced blobs left in place because they have snapshots.
+         */
+        long getKept() {
+            return kept.get();
+        }
+    }
+
+    private final List<BlobServiceClient> shards;
+    private final TreeMap<Long, BlobServiceClient> ring = new TreeMap<Long, BlobServiceClient>();
+
+    /**
+     * Creates a sharded client.
+     *
+     * @param shards       The accounts, each with a distinct account URL.
+     * @param virtualNodes The number of points each account owns on the ring.
+     */
+    ShardedBlobServiceClient(List<BlobServiceClient> shards, int virtualNodes) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one account is required.");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<BlobServiceClient>(shards));
+        for (BlobServiceClient shard : shards) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(shard.getAccountUrl() + "#" + i), shard);
+            }
+        }
+    }
+
+    /**
+     * Returns the accounts.
+     *
+     * @return The accounts
+     */
+    List<BlobServiceClient> getShards() {
+        return shards;
+    }
+
+    /**
+     * Returns the account a key is routed to.
+     *
+     * @param key The key.
+     * @return The account owning the key
+     */
+    BlobServiceClient getShard(String key) {
+        Map.Entry<Long, BlobServiceClient> owner = ring.ceilingEntry(hash(key));
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Returns a container routed as a whole to one account by its name.
+     *
+     * @param containerName The container name.
+     * @return The container client
+     */
+    BlobContainerClient getContainerClient(String containerName) {
+        return getShard(containerName).getBlobContainerClient(containerName);
+    }
+
+    /**
+     * Returns a blob routed to one account by its container and blob name. The container must have been created with
+     * {@link #createContainerOnAllShards(String)}.
+     *
+     * @param containerName The container name.
+     * @param blobName      The blob name.
+     * @return The blob client
+     */
+    BlobClient getBlobClient(String containerName, String blobName) {
+        return getShard(containerName + "/" + blobName).getBlobContainerClient(containerName).getBlobClient(blobName);
+    }
+
+    /**
+     * Creates a container on every account so its blobs can be spread over all of them. Existing containers are kept.
+     *
+     * @param containerName The container name.
+     * @throws InterruptedException
+     */
+    void createContainerOnAllShards(final String containerName) throws InterruptedException {
+        forEachShard(shard -> {
+            try {
+                shard.createBlobContainer(containerName);
+            } catch (BlobStorageException ex) {
+                if (!BlobErrorCode.CONTAINER_ALREADY_EXISTS.equals(ex.getErrorCode())) {
+                    throw ex;
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Deletes a container from every account. Missing containers are ignored.
+     *
+     * @param containerName The container name.
+     * @throws InterruptedException
+     */
+    void deleteContainerOnAllShards(final String containerName) throws InterruptedException {
+        forEachShard(shard -> {
+            try {
+                shard.getBlobContainerClient(containerName).delete();
+            } catch (BlobStorageException ex) {
+                if (!BlobErrorCode.CONTAINER_NOT_FOUND.equals(ex.getErrorCode())) {
+                    throw ex;
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Moves the blobs of a container spread over every account to the account they are routed to, as needed after an
+     * account was added. Every account is listed in parallel. A misplaced blob is copied to its account and then
+     * deleted, pinned to the ETag it was listed with. When its account already holds the name, even if it was written
+     * while the copy was in progress, that blob was written after the accounts changed, so the misplaced one is
+     * deleted without overwriting it. A misplaced blob with
+     * snapshots is copied but left in place, deleting it would lose the snapshots. Failures are rethrown once all
+     * calls finished.
+     *
+     * @param containerName The container name.
+     * @param replicator    The replicator copying the blobs.
+     * @param concurrency   The number of blobs moved at the same time.
+     * @return The numbers of blobs moved, discarded and kept
+     * @throws InterruptedException
+     */
+    RebalanceResult rebalance(final String containerName, final BlobReplicator replicator, int concurrency)
+            throws InterruptedException {
+        final RebalanceResult result = new RebalanceResult();
+        final BoundedCalls calls = new BoundedCalls(concurrency);
+        try {
+            forEachShard(shard -> {
+                BlobContainerClient container = shard.getBlobContainerClient(containerName);
+                for (BlobItem item : container.listBlobs()) {
+                    if (calls.isFailed()) {
+                        break;
+                    }
+                    BlobServiceClient owner = getShard(containerName + "/" + item.getName());
+                    if (owner == shard) {
+                        continue;
+                    }
+                    final BlobClient misplaced = container.getBlobClient(item.getName());
+                    final String eTag = item.getProperties().getETag();
+                    final BlockBlobClient target = owner.getBlobContainerClient(containerName)
+                            .getBlobClient(item.getName()).getBlockBlobClient();
+                    calls.submit(() -> move(misplaced, eTag, target, replicator, result));
+                }
+                return null;
+            });
+        } catch (Throwable ex) {
+            calls.finish(ex);
+            throw ex;
+        }
+        calls.finish();
+        return result;
+    }
+
+    private static void move(BlobClient misplaced, String eTag, BlockBlobClient target, BlobReplicator replicator,
+                             RebalanceResult result) {
+        boolean copied = false;
+        try {
+            if (!target.exists()) {
+                try {
+                    // A write to the target since the check is newer than the misplaced copy, so only create it
+                    replicator.replicate(misplaced, target, new BlobRequestConditions().setIfNoneMatch("*"));
+                    copied = true;
+                } catch (BlobStorageException ex) {
+                    if (ex.getStatusCode() != 409 && ex.getStatusCode() != 412) {
+                        throw ex;
+                    }
+                }
+            }
+            misplaced.deleteWithResponse(null, new BlobRequestConditions().setIfMatch(eTag), null, Context.NONE);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (BlobStorageException ex) {
+            if (!BlobErrorCode.SNAPSHOTS_PRESENT.equals(ex.getErrorCode())) {
+                throw ex;
+            }
+            EventLog.console().warn("Kept blob \"%s\" on %s, it has snapshots.", misplaced.getBlobName(),
+                    misplaced.getAccountUrl());
+            result.kept.incrementAndGet();
+            return;
+        }
+        (copied ? result.moved : result.discarded).incrementAndGet();
+    }
+
+    /**
+     * Lists the containers of every account in name order. A container present on several accounts is listed once.
+     *
+     * @param prefix The prefix of the container names, or null for all containers.
+     * @return The containers
+     */
+    Iterable<BlobContainerItem> listBlobContainers(final String prefix) {
+        return () -> mergeByName(shard -> shard.listBlobContainers(new ListBlobContainersOptions().setPrefix(prefix), null)
+                .iterator(), BlobContainerItem::getName, null);
+    }
+
+    /**
+     * Lists the blobs of a container spread over every account, in name order. A blob held by several accounts is
+     * listed once, from the account it is routed to when that account holds it, and with a warning to rebalance the
+     * container, as is a blob held only by an account it is not routed to.
+     *
+     * @param containerName The container name.
+     * @param options       The listing options, or null.
+     * @return The blobs
+     */
+    Iterable<BlobItem> listBlobs(final String containerName, final ListBlobsOptions options) {
+        return () -> mergeByName(shard -> shard.getBlobContainerClient(containerName).listBlobs(options, null).iterator(),
+                BlobItem::getName, name -> getShard(containerName + "/" + name));
+    }
+
+    /**
+     * Runs work against every account in parallel and waits for all of it.
+     *
+     * @param task The work.
+     * @return The results in the order of {@link #getShards()}
+     * @throws InterruptedException
+     */
+    <T> List<T> forEachShard(final ShardTask<T> task) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(shards.size());
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>();
+            for (final BlobServiceClient shard : shards) {
+                futures.add(executor.submit(() -> task.run(shard)));
+            }
+            List<T> results = new ArrayList<T>();
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Merges listings that are each sorted by name into one sorted listing, dropping repeated names. Each account's
+     * listing is paged lazily, so only one page per account is held at a time.
+     *
+     * @param owner Returns the account a name is routed to, whose item is kept and which is expected to hold it, or
+     *              null when items are not routed and repeated names are expected.
+     */
+    private <T> Iterator<T> mergeByName(Function<BlobServiceClient, Iterator<T>> listing, final Function<T, String> name,
+                                        final Function<String, BlobServiceClient> owner) {
+        final PriorityQueue<Head<T>> heads = new PriorityQueue<Head<T>>(
+                Comparator.comparing((Head<T> head) -> name.apply(head.item)));
+        for (BlobServiceClient shard : shards) {
+            Iterator<T> items = listing.apply(shard);
+            if (items.hasNext()) {
+                heads.add(new Head<T>(shard, items.next(), items));
+            }
+        }
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Head<T> head = heads.poll();
+                T item = head.item;
+                BlobServiceClient holder = head.shard;
+                String current = name.apply(item);
+                BlobServiceClient routed = owner != null ? owner.apply(current) : null;
+                boolean duplicated = false;
+                advance(head);
+                while (!heads.isEmpty() && name.apply(heads.peek().item).equals(current)) {
+                    Head<T> other = heads.poll();
+                    if (other.shard != holder) {
+                        duplicated = true;
+                        if (other.shard == routed) {
+                            item = other.item;
+                            holder = other.shard;
+                        }
+                    }
+                    advance(other);
+                }
+                if (routed != null && duplicated) {
+                    EventLog.console().warn("Blob \"%s\" is on several accounts, listed from %s. Rebalance the container.",
+                            current, holder.getAccountUrl());
+                } else if (routed != null && holder != routed) {
+                    EventLog.console().warn("Blob \"%s\" is on %s, not on the account it is routed to. Rebalance the container.",
+                            current, holder.getAccountUrl());
+                }
+                return item;
+            }
+
+            private void advance(Head<T> head) {
+                if (head.rest.hasNext()) {
+                    heads.add(new Head<T>(head.shard, head.rest.next(), head.rest));
+                }
+            }
+        };
+    }
+
+    private static final class Head<T> {
+        private final BlobServiceClient shard;
+        private final T item;
+        private final Iterator<T> rest;
+
+        private Head(BlobServiceClient shard, T item, Iterator<T> rest) {
+            this.shard = shard;
+            this.item = item;
+            this.rest = rest;
+        }
+    }
+
+    /**
+     * Hashes a key onto the ring using the first 8 bytes of its MD5, which spreads similar names evenly.
+     */
+    private static long hash(String key) {
+        byte[] digest = BlobTransfer.newMd5().digest(key.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+}
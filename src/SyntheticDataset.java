@@ -0,0 +1,304 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.storage.blob.BlobContainerClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A reproducible dataset of many small objects whose sizes follow a configurable distribution and whose names are
+ * spread over a hierarchy of prefixes. Every object is derived from the dataset seed and its index alone, so objects
+ * can be produced in any order, in parallel, and streamed to an uploader without staging the dataset on disk.
+ */
+class SyntheticDataset {
+
+    /**
+     * A distribution of object sizes.
+     */
+    interface SizeDistribution {
+        /**
+         * Draws an object size.
+         *
+         * @param random The source of randomness for this draw.
+         * @return The size in bytes
+         */
+        long sample(SplittableRandom random);
+    }
+
+    /**
+     * Receives the objects of a dataset. Called concurrently from the producing threads.
+     */
+    interface ObjectHandler {
+        void accept(SyntheticObject object) throws IOException;
+    }
+
+    /**
+     * An object of the dataset. Its content is generated on demand.
+     */
+    static final class SyntheticObject {
+        private final long index;
+        private final String name;
+        private final int size;
+        private final SeededDataGenerator generator;
+
+        private SyntheticObject(long index, String name, int size, SeededDataGenerator generator) {
+            this.index = index;
+            this.name = name;
+            this.size = size;
+            this.generator = generator;
+        }
+
+        long getIndex() {
+            return index;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        int getSize() {
+            return size;
+        }
+
+        /**
+         * Generates the content of the object.
+         *
+         * @return A new array holding the content
+         */
+        byte[] getContent() {
+            byte[] content = new byte[size];
+            generator.fill(0, content, 0, size);
+            return content;
+        }
+
+        /**
+         * Opens a stream over the content of the object.
+         *
+         * @return The stream
+         */
+        InputStream openStream() {
+            return new ByteArrayInputStream(getContent());
+        }
+    }
+
+    private final long seed;
+    private final long objectCount;
+    private final SizeDistribution sizes;
+    private final int maxSize;
+    private final int prefixDepth;
+    private final int fanOut;
+
+    /**
+     * Creates a dataset.
+     *
+     * @param seed        The seed every object is derived from.
+     * @param objectCount The number of objects in the dataset.
+     * @param sizes       The distribution object sizes are drawn from.
+     * @param maxSize     The size sampled sizes are capped at.
+     * @param prefixDepth The number of prefix levels above every object.
+     * @param fanOut      The number of distinct prefixes at every level.
+     */
+    SyntheticDataset(long seed, long objectCount, SizeDistribution sizes, int maxSize, int prefixDepth, int fanOut) {
+        if (objectCount < 0 || maxSize < 0 || prefixDepth < 0 || fanOut < 1) {
+            throw new IllegalArgumentException("Invalid dataset shape.");
+        }
+        this.seed = seed;
+        this.objectCount = objectCount;
+        this.sizes = sizes;
+        this.maxSize = maxSize;
+        this.prefixDepth = prefixDepth;
+        this.fanOut = fanOut;
+    }
+
+    long getObjectCount() {
+        return objectCount;
+    }
+
+    /**
+     * Returns a log-normal size distribution.
+     *
+     * @param median The median size in bytes.
+     * @param sigma  The standard deviation of the logarithm of the size. Larger values give a longer tail.
+     * @return The distribution
+     */
+    static SizeDistribution logNormal(double median, double sigma) {
+        final double mu = Math.log(median);
+        return random -> {
+            // Box-Muller, as SplittableRandom has no Gaussian draw
+            double u1 = 1.0 - random.nextDouble();
+            double u2 = random.nextDouble();
+            double gaussian = Math.sqrt(-2 * Math.log(u1)) * Math.cos(2 * Math.PI * u2);
+            return (long) Math.exp(mu + sigma * gaussian);
+        };
+    }
+
+    /**
+     * Returns a Pareto size distribution.
+     *
+     * @param minimum The smallest size in bytes.
+     * @param alpha   The shape of the tail. Smaller values give a heavier tail.
+     * @return The distribution
+     */
+    static SizeDistribution pareto(long minimum, double alpha) {
+        return random -> (long) (minimum / Math.pow(1.0 - random.nextDouble(), 1.0 / alpha));
+    }
+
+    /**
+     * Returns a distribution that replays a histogram of observed sizes. A bucket is picked in proportion to its
+     * count and a size is drawn uniformly inside it.
+     *
+     * @param upperBounds The inclusive upper bound of every bucket, in ascending order. Buckets start after the previous bound.
+     * @param counts      The number of observations in every bucket.
+     * @return The distribution
+     */
+    static SizeDistribution histogram(long[] upperBounds, long[] counts) {
+        if (upperBounds.length == 0 || upperBounds.length != counts.length) {
+            throw new IllegalArgumentException("upperBounds and counts must be non-empty and of the same length.");
+        }
+        final long[] bounds = upperBounds.clone();
+        final long[] cumulative = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i];
+            cumulative[i] = total;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("The histogram must hold at least one observation.");
+        }
+        final long observations = total;
+        return random -> {
+            // Find the first bucket whose cumulative count exceeds the draw, which skips empty buckets
+            long draw = random.nextLong(observations);
+            int low = 0;
+            int high = cumulative.length - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (cumulative[middle] > draw) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            int bucket = low;
+            long lower = bucket == 0 ? 0 : bounds[bucket - 1] + 1;
+            return lower + random.nextLong(bounds[bucket] - lower + 1);
+        };
+    }
+
+    /**
+     * Returns an object of the dataset.
+     *
+     * @param index The index of the object.
+     * @return The object
+     */
+    SyntheticObject get(long index) {
+        long objectSeed = SeededDataGenerator.mix(seed, index);
+        SplittableRandom random = new SplittableRandom(objectSeed);
+        int size = (int) Math.max(0, Math.min(maxSize, sizes.sample(random)));
+
+        StringBuilder name = new StringBuilder();
+        for (int level = 0; level < prefixDepth; level++) {
+            name.append(String.format("%04d/", random.nextInt(fanOut)));
+        }
+        name.append(String.format("obj-%012d", index));
+        return new SyntheticObject(index, name.toString(), size, new SeededDataGenerator(random.nextLong()));
+    }
+
+    /**
+     * Produces every object of the dataset in parallel and hands it to the handler. Threads claim object indices from
+     * a shared counter, so nothing but the objects in flight is held in memory.
+     *
+     * @param parallelism The number of producing threads.
+     * @param handler     The handler objects are passed to.
+     * @throws IOException If the handler fails for any object.
+     */
+    void forEach(int parallelism, ObjectHandler handler) throws IOException {
+        final AtomicLong nextIndex = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        try {
+            List<Future<Void>> workers = new ArrayList<Future<Void>>();
+            for (int i = 0; i < Math.max(1, parallelism); i++) {
+                workers.add(executor.submit(() -> {
+                    long index;
+                    try {
+                        while ((index = nextIndex.getAndIncrement()) < objectCount) {
+                            handler.accept(get(index));
+                        }
+                    } catch (Throwable ex) {
+                        // Stop the other workers from claiming more objects, they are awaited in order
+                        nextIndex.set(objectCount);
+                        throw ex;
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while producing the dataset.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes the dataset as a directory tree, one file per object.
+     *
+     * @param root        The directory to write under.
+     * @param parallelism The number of writing threads.
+     * @throws IOException
+     */
+    void writeTree(Path root, int parallelism) throws IOException {
+        forEach(parallelism, object -> {
+            Path file = root.resolve(object.getName());
+            Files.createDirectories(file.getParent());
+            Files.write(file, object.getContent());
+        });
+    }
+
+    /**
+     * Streams the dataset straight into a container, one blob per object, without staging it on disk.
+     *
+     * @param container   The container to upload to.
+     * @param parallelism The number of concurrent uploads.
+     * @throws IOException
+     */
+    void upload(BlobContainerClient container, int parallelism) throws IOException {
+        forEach(parallelism, object -> {
+            byte[] content = object.getContent();
+            BlobTransfer.uploadBytes(container.getBlobClient(object.getName()).getBlockBlobClient(),
+                    content, content.length, null, null, null);
+        });
+    }
+}
@@ -0,0 +1,123 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits a rate, such as bytes per second, shared by many threads.
+ * Tokens accumulate at the rate up to the capacity. A caller takes the tokens it needs even when that leaves the bucket
+ * in debt and then sleeps until the debt is repaid, so callers are served in the order they arrive and large requests
+ * do not starve behind small ones.
+ */
+class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long refilled;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param ratePerSecond The tokens added per second, 0 or less for no limit.
+     * @param capacity      The most tokens that accumulate while the bucket is not used, which bounds bursts.
+     */
+    TokenBucket(long ratePerSecond, long capacity) {
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.refilled = System.nanoTime();
+    }
+
+    /**
+     * Returns whether the bucket limits anything.
+     *
+     * @return true if a rate was set
+     */
+    boolean isLimited() {
+        return tokensPerNano > 0;
+    }
+
+    /**
+     * Takes tokens, sleeping until the rate allows them.
+     *
+     * @param count The tokens to take.
+     * @throws InterruptedException
+     */
+    void acquire(long count) throws InterruptedException {
+        if (!isLimited()) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            tokens -= count;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Takes tokens only if the bucket holds them now. A request larger than the capacity is let through once the
+     * bucket is full, leaving it in debt.
+     *
+     * @param count The tokens to take.
+     * @return true if the tokens were taken
+     */
+    synchronized boolean tryAcquire(long count) {
+        if (nanosUntilAvailable(count) > 0) {
+            return false;
+        }
+        if (isLimited()) {
+            tokens -= count;
+        }
+        return true;
+    }
+
+    /**
+     * Takes tokens without waiting, leaving the bucket in debt if it holds fewer, so later callers wait for them.
+     *
+     * @param count The tokens to take.
+     */
+    synchronized void take(long count) {
+        if (isLimited()) {
+            refill();
+            tokens -= count;
+        }
+    }
+
+    /**
+     * Returns how long until {@link #tryAcquire(long)} would succeed for a number of tokens.
+     *
+     * @param count The tokens.
+     * @return The wait in nanoseconds, 0 if the tokens are available now
+     */
+    synchronized long nanosUntilAvailable(long count) {
+        if (!isLimited()) {
+            return 0;
+        }
+        refill();
+        double missing = Math.min(count, capacity) - tokens;
+        return missing <= 0 ? 0 : (long) Math.ceil(missing / tokensPerNano);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refilled) * tokensPerNano);
+        refilled = now;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * The block sizes and concurrency transfers use against an endpoint, as measured by {@link TransferTuner}.
+ * Profiles of several endpoints are kept in one properties file on the host, keyed by account URL, since the best
+ * settings depend on both the host and the endpoint. The profile of the configured endpoint is loaded at startup and
+ * read by the transfer paths through {@link #current()}; without a saved profile the defaults apply.
+ */
+class TransferProfile {
+
+    /**
+     * The file profiles are saved to unless another is given.
+     */
+    static final Path DEFAULT_PATH = Paths.get(System.getProperty("user.home"), ".blob-transfer-profile.properties");
+
+    private static volatile TransferProfile current = new TransferProfile(BlobTransfer.DEFAULT_BLOCK_SIZE, 8,
+            BlobTransfer.MAX_RANGE_MD5_SIZE, Runtime.getRuntime().availableProcessors() * 4);
+
+    private final int uploadBlockSize;
+    private final int uploadBuffers;
+    private final int downloadRangeSize;
+    private final int downloadConcurrency;
+
+    /**
+     * Creates a profile.
+     *
+     * @param uploadBlockSize     The size of the blocks staged by uploads.
+     * @param uploadBuffers       The number of block buffers of a streaming upload, one more than the blocks staged
+     *                            at the same time.
+     * @param downloadRangeSize   The size of the ranges read by downloads.
+     * @param downloadConcurrency The number of ranges read at the same time.
+     */
+    TransferProfile(int uploadBlockSize, int uploadBuffers, int downloadRangeSize, int downloadConcurrency) {
+        this.uploadBlockSize = uploadBlockSize;
+        this.uploadBuffers = uploadBuffers;
+        this.downloadRangeSize = downloadRangeSize;
+        this.downloadConcurrency = downloadConcurrency;
+    }
+
+    /**
+     * Returns the profile the transfer paths use.
+     *
+     * @return The current profile
+     */
+    static TransferProfile current() {
+        return current;
+    }
+
+    /**
+     * Loads the profile of an endpoint from the default file and makes it current. Without a saved profile the current
+     * one is kept.
+     *
+     * @param endpoint The account URL.
+     * @throws IOException
+     */
+    static void loadCurrent(String endpoint) throws IOException {
+        TransferProfile profile = load(DEFAULT_PATH, endpoint);
+        if (profile != null) {
+            current = profile;
+        }
+    }
+
+    /**
+     * Makes a profile current.
+     *
+     * @param profile The profile.
+     */
+    static void setCurrent(TransferProfile profile) {
+        current = profile;
+    }
+
+    /**
+     * Loads the profile of an endpoint.
+     *
+     * @param path     The profile file.
+     * @param endpoint The account URL.
+     * @return The profile, or null if none was saved for the endpoint
+     * @throws IOException
+     */
+    static TransferProfile load(Path path, String endpoint) throws IOException {
+        Properties properties = read(path);
+        String uploadBlockSize = properties.getProperty(endpoint + ".upload.blockSize");
+        if (uploadBlockSize == null) {
+            return null;
+        }
+        return new TransferProfile(Integer.parseInt(uploadBlockSize),
+                Integer.parseInt(properties.getProperty(endpoint + ".upload.buffers")),
+                Integer.parseInt(properties.getProperty(endpoint + ".download.rangeSize")),
+                Integer.parseInt(properties.getProperty(endpoint + ".download.concurrency")));
+    }
+
+    /**
+     * Saves the profile of an endpoint, keeping the profiles of other endpoints in the file.
+     *
+     * @param path     The profile file.
+     * @param endpoint The account URL.
+     * @throws IOException
+     */
+    void save(Path path, String endpoint) throws IOException {
+        Properties properties = read(path);
+        properties.setProperty(endpoint + ".upload.blockSize", String.valueOf(uploadBlockSize));
+        properties.setProperty(endpoint + ".upload.buffers", String.valueOf(uploadBuffers));
+        properties.setProperty(endpoint + ".download.rangeSize", String.valueOf(downloadRangeSize));
+        properties.setProperty(endpoint + ".download.concurrency", String.valueOf(downloadConcurrency));
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream outputStream = Files.newOutputStream(temporary)) {
+            properties.store(outputStream, "Transfer settings measured per endpoint");
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    int getUploadBlockSize() {
+        return uploadBlockSize;
+    }
+
+    int getUploadBuffers() {
+        return uploadBuffers;
+    }
+
+    int getDownloadRangeSize() {
+        return downloadRangeSize;
+    }
+
+    int getDownloadConcurrency() {
+        return downloadConcurrency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("upload: %d KB blocks x %d buffers, download: %d KB ranges x %d",
+                uploadBlockSize / 1024, uploadBuffers, downloadRangeSize / 1024, downloadConcurrency);
+    }
+
+    private static Properties read(Path path) throws IOException {
+        Properties properties = new Properties();
+        if (Files.exists(path)) {
+            try (InputStream inputStream = Files.newInputStream(path)) {
+                properties.load(inputStream);
+            }
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,496 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Admits transfer requests to a fixed number of connection slots by priority class and tenant.
+ * Every request is tagged with a class and a tenant, by default taken from the calling thread with
+ * {@link #withTag(Priority, String)}. When a slot frees up it goes to the class with the least service so far relative
+ * to its weight, counting the bytes each request moves plus a fixed cost per request, so classes share the slots in
+ * proportion to their weights whatever their request sizes, and an idle class banks no credit. Within a class,
+ * tenants take turns. Each class can be capped in slots, bytes per second and requests per second with token buckets,
+ * so a background job can run flat out without taking the slots interactive reads need.
+ */
+class TransferScheduler {
+
+    /**
+     * The priority classes.
+     */
+    enum Priority {
+        INTERACTIVE, STANDARD, BACKGROUND
+    }
+
+    /**
+     * The share and caps of a class.
+     */
+    static final class ClassLimits {
+        private int weight = 1;
+        private int maxConcurrent = Integer.MAX_VALUE;
+        private long bytesPerSecond;
+        private long requestsPerSecond;
+
+        int getWeight() {
+            return weight;
+        }
+
+        /**
+         * Sets the share of the slots the class gets when every class has requests waiting.
+         */
+        ClassLimits setWeight(int weight) {
+            this.weight = Math.max(1, weight);
+            return this;
+        }
+
+        int getMaxConcurrent() {
+            return maxConcurrent;
+        }
+
+        /**
+         * Sets the most slots the class holds at once, which keeps slots free for the other classes.
+         */
+        ClassLimits setMaxConcurrent(int maxConcurrent) {
+            this.maxConcurrent = Math.max(1, maxConcurrent);
+            return this;
+        }
+
+        long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * Sets the bytes per second of the class, 0 for no cap.
+         */
+        ClassLimits setBytesPerSecond(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        long getRequestsPerSecond() {
+            return requestsPerSecond;
+        }
+
+        /**
+         * Sets the requests per second of the class, 0 for no cap.
+         */
+        ClassLimits setRequestsPerSecond(long requestsPerSecond) {
+            this.requestsPerSecond = requestsPerSecond;
+            return this;
+        }
+    }
+
+    /**
+     * A request to run in a slot.
+     */
+    interface Call<T> {
+        /**
+         * Makes the request.
+         *
+         * @return The result of the request
+         * @throws IOException
+         */
+        T call() throws IOException;
+    }
+
+    /**
+     * Restores the previous tag of the thread when closed.
+     */
+    interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * The class and tenant requests are tagged with.
+     */
+    private static final class Tag {
+        private final Priority priority;
+        private final String tenant;
+
+        private Tag(Priority priority, String tenant) {
+            this.priority = priority;
+            this.tenant = tenant;
+        }
+    }
+
+    /**
+     * A request waiting for or holding a slot.
+     */
+    private static final class Ticket {
+        private final Priority priority;
+        private final String tenant;
+        private final long bytes;
+        private boolean granted;
+
+        private Ticket(Priority priority, String tenant, long bytes) {
+            this.priority = priority;
+            this.tenant = tenant;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * The state of a class, guarded by the scheduler.
+     */
+    private static final class ClassState {
+        private final ClassLimits limits;
+        private final TokenBucket bytes;
+        private final TokenBucket requests;
+        // Waiting tickets by tenant, in the order the tenants take turns
+        private final LinkedHashMap<String, ArrayDeque<Ticket>> waiting = new LinkedHashMap<String, ArrayDeque<Ticket>>();
+        private int active;
+        // The service received divided by the weight, the class with the lowest value is served next
+        private double pass;
+
+        private ClassState(ClassLimits limits) {
+            this.limits = limits;
+            // One second of the rate may be used in a burst
+            this.bytes = new TokenBucket(limits.getBytesPerSecond(), Math.max(limits.getBytesPerSecond(), 1));
+            this.requests = new TokenBucket(limits.getRequestsPerSecond(), Math.max(limits.getRequestsPerSecond(), 1));
+        }
+    }
+
+    /**
+     * The cost of a request in bytes on top of the bytes it moves, so small requests still use up their share.
+     */
+    static final long REQUEST_COST = 64 * 1024;
+
+    private static final Tag DEFAULT_TAG = new Tag(Priority.STANDARD, "default");
+    private static final ThreadLocal<Tag> TAG = new ThreadLocal<Tag>();
+    private static volatile TransferScheduler shared;
+
+    private final int slots;
+    private final EnumMap<Priority, ClassState> classes = new EnumMap<Priority, ClassState>(Priority.class);
+    private int active;
+    private double virtualTime;
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param slots  The number of requests in flight across all classes.
+     * @param limits The limits of each class. Classes without limits get a weight of 1 and no caps.
+     */
+    TransferScheduler(int slots, Map<Priority, ClassLimits> limits) {
+        this.slots = Math.max(1, slots);
+        for (Priority priority : Priority.values()) {
+            ClassLimits classLimits = limits.get(priority);
+            classes.put(priority, new ClassState(classLimits != null ? classLimits : new ClassLimits()));
+        }
+    }
+
+    /**
+     * Returns the number of requests in flight across all classes.
+     *
+     * @return The number of slots
+     */
+    int getSlots() {
+        return slots;
+    }
+
+    /**
+     * Creates a scheduler from the Transfer.* keys of the configuration. Transfer.Slots sets the number of requests in
+     * flight, and Transfer.&lt;CLASS&gt;.Weight, .MaxConcurrent, .BytesPerSecond and .RequestsPerSecond set the limits of
+     * the INTERACTIVE, STANDARD and BACKGROUND classes. By default interactive requests weigh 8, standard 4 and
+     * background 1, background requests leave a quarter of the slots free, and no class is rate capped.
+     *
+     * @param properties The configuration.
+     * @return The scheduler
+     */
+    static TransferScheduler fromProperties(Properties properties) {
+        int slots = Integer.parseInt(properties.getProperty("Transfer.Slots",
+                String.valueOf(TransferProfile.current().getDownloadConcurrency())));
+        Map<Priority, ClassLimits> defaults = new EnumMap<Priority, ClassLimits>(Priority.class);
+        defaults.put(Priority.INTERACTIVE, new ClassLimits().setWeight(8));
+        defaults.put(Priority.STANDARD, new ClassLimits().setWeight(4));
+        defaults.put(Priority.BACKGROUND, new ClassLimits().setWeight(1).setMaxConcurrent(Math.max(1, slots * 3 / 4)));
+
+        Map<Priority, ClassLimits> limits = new EnumMap<Priority, ClassLimits>(Priority.class);
+        for (Priority priority : Priority.values()) {
+            ClassLimits classDefaults = defaults.get(priority);
+            String key = "Transfer." + priority + ".";
+            limits.put(priority, new ClassLimits()
+                    .setWeight(Integer.parseInt(properties.getProperty(key + "Weight",
+                            String.valueOf(classDefaults.getWeight()))))
+                    .setMaxConcurrent(Integer.parseInt(properties.getProperty(key + "MaxConcurrent",
+                            String.valueOf(classDefaults.getMaxConcurrent()))))
+                    .setBytesPerSecond(Long.parseLong(properties.getProperty(key + "BytesPerSecond",
+                            String.valueOf(classDefaults.getBytesPerSecond()))))
+                    .setRequestsPerSecond(Long.parseLong(properties.getProperty(key + "RequestsPerSecond",
+                            String.valueOf(classDefaults.getRequestsPerSecond())))));
+        }
+        return new TransferScheduler(slots, limits);
+    }
+
+    /**
+     * Returns the scheduler the transfer paths use, with the default limits of {@link #fromProperties(Properties)}
+     * unless {@link #setShared(TransferScheduler)} replaced it.
+     *
+     * @return The shared scheduler
+     */
+    static TransferScheduler shared() {
+        if (shared == null) {
+            synchronized (TransferScheduler.class) {
+                if (shared == null) {
+                    shared = fromProperties(new Properties());
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Replaces the scheduler the transfer paths use.
+     *
+     * @param scheduler The scheduler.
+     */
+    static void setShared(TransferScheduler scheduler) {
+        shared = scheduler;
+    }
+
+    /**
+     * Tags the requests the current thread makes, and the tasks it hands to pools through {@link #propagate(Runnable)},
+     * until the returned scope is closed.
+     *
+     * @param priority The priority class.
+     * @param tenant   The tenant.
+     * @return The scope restoring the previous tag
+     */
+    static Scope withTag(Priority priority, String tenant) {
+        final Tag previous = TAG.get();
+        TAG.set(new Tag(priority, tenant));
+        return () -> {
+            if (previous != null) {
+                TAG.set(previous);
+            } else {
+                TAG.remove();
+            }
+        };
+    }
+
+    /**
+     * Sets the priority class of the requests the current thread makes until the returned scope is closed, keeping
+     * the tenant the thread is already tagged with. The transfer paths use this to mark their requests as interactive
+     * or background work.
+     *
+     * @param priority      The priority class.
+     * @param defaultTenant The tenant if the thread is not tagged yet.
+     * @return The scope restoring the previous tag
+     */
+    static Scope withPriority(Priority priority, String defaultTenant) {
+        Tag tag = TAG.get();
+        return withTag(priority, tag != null ? tag.tenant : defaultTenant);
+    }
+
+    /**
+     * Wraps a task so it runs with the tag of the thread creating it.
+     *
+     * @param task The task.
+     * @return The wrapped task
+     */
+    static Runnable propagate(final Runnable task) {
+        final Tag tag = TAG.get();
+        if (tag == null) {
+            return task;
+        }
+        return () -> {
+            Scope scope = withTag(tag.priority, tag.tenant);
+            try {
+                task.run();
+            } finally {
+                scope.close();
+            }
+        };
+    }
+
+    /**
+     * Makes a request tagged with the current thread's class and tenant once a slot is free.
+     *
+     * @param bytes The bytes the request moves, or 0 if unknown.
+     * @param call  The request.
+     * @return The result of the request
+     * @throws IOException
+     */
+    <T> T run(long bytes, Call<T> call) throws IOException {
+        Tag tag = TAG.get() != null ? TAG.get() : DEFAULT_TAG;
+        return run(tag.priority, tag.tenant, bytes, call);
+    }
+
+    /**
+     * Makes a request once a slot is free.
+     *
+     * @param priority The priority class.
+     * @param tenant   The tenant.
+     * @param bytes    The bytes the request moves, or 0 if unknown.
+     * @param call     The request.
+     * @return The result of the request
+     * @throws IOException
+     */
+    <T> T run(Priority priority, String tenant, long bytes, Call<T> call) throws IOException {
+        Ticket ticket = admit(new Ticket(priority, tenant, bytes));
+        try {
+            return call.call();
+        } finally {
+            release(ticket);
+        }
+    }
+
+    /**
+     * Makes a request that throws no checked exceptions, tagged with the current thread's class and tenant, once a
+     * slot is free.
+     *
+     * @param bytes   The bytes the request moves, or 0 if unknown.
+     * @param request The request.
+     * @throws UncheckedIOException If the thread is interrupted while waiting for a slot.
+     */
+    void execute(long bytes, Runnable request) {
+        try {
+            run(bytes, () -> {
+                request.run();
+                return null;
+            });
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Counts bytes a request made through {@link #run(long, Call)} moved beyond the ones it was admitted with, such as
+     * a download whose size was only known from its response, against the current thread's class.
+     *
+     * @param bytes The bytes moved.
+     */
+    synchronized void charge(long bytes) {
+        Tag tag = TAG.get() != null ? TAG.get() : DEFAULT_TAG;
+        ClassState state = classes.get(tag.priority);
+        state.bytes.take(bytes);
+        state.pass += (double) bytes / state.limits.getWeight();
+    }
+
+    private synchronized Ticket admit(Ticket ticket) throws InterruptedIOException {
+        ClassState state = classes.get(ticket.priority);
+        if (state.waiting.isEmpty() && state.active == 0) {
+            // A class that was idle starts level with the others instead of spending credit it banked
+            state.pass = Math.max(state.pass, virtualTime);
+        }
+        ArrayDeque<Ticket> queue = state.waiting.get(ticket.tenant);
+        if (queue == null) {
+            queue = new ArrayDeque<Ticket>();
+            state.waiting.put(ticket.tenant, queue);
+        }
+        queue.add(ticket);
+
+        try {
+            while (!ticket.granted) {
+                long waitNanos = dispatch();
+                if (ticket.granted) {
+                    break;
+                }
+                if (waitNanos > 0) {
+                    wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                } else {
+                    wait();
+                }
+            }
+        } catch (InterruptedException ex) {
+            if (ticket.granted) {
+                release(ticket);
+            } else {
+                remove(state, ticket);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a transfer slot.");
+        }
+        return ticket;
+    }
+
+    private synchronized void release(Ticket ticket) {
+        classes.get(ticket.priority).active--;
+        active--;
+        if (dispatch() > 0) {
+            // The freed slot goes to a class held back by its rate caps, whose threads may wait without a timeout.
+            // Wake them so one of them waits for the caps with a timeout instead
+            notifyAll();
+        }
+    }
+
+    /**
+     * Grants free slots to waiting tickets and wakes their threads.
+     *
+     * @return The nanoseconds until a class held back by its rate caps may be served, or 0 if none is
+     */
+    private long dispatch() {
+        long rateWait = 0;
+        boolean granted = false;
+        while (active < slots) {
+            ClassState next = null;
+            Ticket nextTicket = null;
+            rateWait = 0;
+            for (ClassState state : classes.values()) {
+                if (state.waiting.isEmpty() || state.active >= state.limits.getMaxConcurrent()) {
+                    continue;
+                }
+                Ticket head = state.waiting.values().iterator().next().peek();
+                long wait = Math.max(state.bytes.nanosUntilAvailable(head.bytes), state.requests.nanosUntilAvailable(1));
+                if (wait > 0) {
+                    rateWait = rateWait == 0 ? wait : Math.min(rateWait, wait);
+                } else if (next == null || state.pass < next.pass) {
+                    next = state;
+                    nextTicket = head;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+
+            // The tenant served moves to the back so the tenants of the class take turns
+            Iterator<Map.Entry<String, ArrayDeque<Ticket>>> tenants = next.waiting.entrySet().iterator();
+            Map.Entry<String, ArrayDeque<Ticket>> tenant = tenants.next();
+            tenant.getValue().poll();
+            tenants.remove();
+            if (!tenant.getValue().isEmpty()) {
+                next.waiting.put(tenant.getKey(), tenant.getValue());
+            }
+
+            next.bytes.tryAcquire(nextTicket.bytes);
+            next.requests.tryAcquire(1);
+            virtualTime = next.pass;
+            next.pass += (double) (nextTicket.bytes + REQUEST_COST) / next.limits.getWeight();
+            next.active++;
+            active++;
+            nextTicket.granted = true;
+            granted = true;
+        }
+        if (granted) {
+            notifyAll();
+        }
+        return rateWait;
+    }
+
+    private static void remove(ClassState state, Ticket ticket) {
+        ArrayDeque<Ticket> queue = state.waiting.get(ticket.tenant);
+        queue.remove(ticket);
+        if (queue.isEmpty()) {
+            state.waiting.remove(ticket.tenant);
+        }
+    }
+}
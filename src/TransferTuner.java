@@ -0,0 +1,270 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures which block sizes and concurrency give the best throughput between this host and an endpoint.
+ * Every setting is tried for a fixed time: uploads stream generated data through
+ * {@link BlobTransfer#uploadStream(BlockBlobClient, InputStream, int, int, com.azure.storage.blob.models.BlobHttpHeaders,
+ * java.util.Map, java.util.Map)} and downloads read ranges of a test blob in parallel, discarding them. For every block
+ * size the concurrency is doubled while it still raises the throughput by 5%, and settings that would hold more block
+ * buffers than the memory budget are never tried. Of the settings within 5% of the best, the one using the least
+ * memory is picked, which leaves room for other work at almost no cost in speed.
+ */
+class TransferTuner {
+
+    /**
+     * Block sizes tried for uploads.
+     */
+    static final int[] UPLOAD_BLOCK_SIZES = {256 * 1024, 1024 * 1024, 4 * 1024 * 1024, 8 * 1024 * 1024, 16 * 1024 * 1024};
+
+    /**
+     * Range sizes tried for downloads, at most 4MB so every range can still be checked against its MD5.
+     */
+    static final int[] DOWNLOAD_RANGE_SIZES = {256 * 1024, 1024 * 1024, 2 * 1024 * 1024, BlobTransfer.MAX_RANGE_MD5_SIZE};
+
+    private static final int MAX_CONCURRENCY = 64;
+    private static final double SIGNIFICANT_GAIN = 1.05;
+    private static final long TEST_BLOB_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * The throughput measured for one setting.
+     */
+    private static final class Trial {
+        private final int size;
+        private final int concurrency;
+        private final double bytesPerSecond;
+
+        private Trial(int size, int concurrency, double bytesPerSecond) {
+            this.size = size;
+            this.concurrency = concurrency;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        private long memory() {
+            return (long) size * concurrency;
+        }
+    }
+
+    private interface TrialRunner {
+        double run(int size, int concurrency) throws IOException, InterruptedException;
+    }
+
+    private final BlobContainerClient container;
+    private final long memoryBudget;
+    private final Duration trialDuration;
+
+    /**
+     * Creates a tuner.
+     *
+     * @param container     An existing container the trials write their test blobs to. The blobs are deleted after.
+     * @param memoryBudget  The most memory the buffers of one transfer may use, in bytes.
+     * @param trialDuration How long every setting is measured.
+     */
+    TransferTuner(BlobContainerClient container, long memoryBudget, Duration trialDuration) {
+        this.container = container;
+        this.memoryBudget = memoryBudget;
+        this.trialDuration = trialDuration;
+    }
+
+    /**
+     * Measures upload and download settings and returns the best ones.
+     *
+     * @return The profile for the endpoint of the container
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    TransferProfile calibrate() throws IOException, InterruptedException {
+        // The trials must not be held back by the slots and caps of the transfer scheduler
+        TransferScheduler scheduler = TransferScheduler.shared();
+        TransferScheduler.setShared(new TransferScheduler(Integer.MAX_VALUE,
+                new EnumMap<TransferScheduler.Priority, TransferScheduler.ClassLimits>(TransferScheduler.Priority.class)));
+        try {
+            return measure();
+        } finally {
+            TransferScheduler.setShared(scheduler);
+        }
+    }
+
+    private TransferProfile measure() throws IOException, InterruptedException {
+        System.out.println("\nMeasuring uploads.");
+        Trial upload = search(UPLOAD_BLOCK_SIZES, 2, (blockSize, buffers) -> uploadTrial(blockSize, buffers));
+
+        System.out.println("\nMeasuring downloads.");
+        BlockBlobClient testBlob = container.getBlobClient("transfer-tuner-download").getBlockBlobClient();
+        try {
+            BlobTransfer.uploadStream(testBlob, new GeneratedInputStream(TEST_BLOB_SIZE, null),
+                    upload.size, upload.concurrency, null, null, null);
+            Trial download = search(DOWNLOAD_RANGE_SIZES, 1,
+                    (rangeSize, concurrency) -> downloadTrial(testBlob, rangeSize, concurrency));
+            return new TransferProfile(upload.size, upload.concurrency, download.size, download.concurrency);
+        } finally {
+            testBlob.delete();
+        }
+    }
+
+    /**
+     * Tries every size with increasing concurrency and picks the cheapest setting close to the best.
+     */
+    private Trial search(int[] sizes, int minConcurrency, TrialRunner runner) throws IOException, InterruptedException {
+        List<Trial> trials = new ArrayList<Trial>();
+        for (int size : sizes) {
+            double best = 0;
+            for (int concurrency = minConcurrency; concurrency <= MAX_CONCURRENCY
+                    && (long) size * concurrency <= memoryBudget; concurrency *= 2) {
+                Trial trial = new Trial(size, concurrency, runner.run(size, concurrency));
+                trials.add(trial);
+                System.out.println(String.format("\t%6d KB x %2d: %8.1f MB/s", size / 1024, concurrency,
+                        trial.bytesPerSecond / (1024 * 1024)));
+                if (trial.bytesPerSecond < best * SIGNIFICANT_GAIN) {
+                    break;
+                }
+                best = Math.max(best, trial.bytesPerSecond);
+            }
+        }
+        if (trials.isEmpty()) {
+            throw new IllegalArgumentException("The memory budget is too small for any setting.");
+        }
+
+        double best = 0;
+        for (Trial trial : trials) {
+            best = Math.max(best, trial.bytesPerSecond);
+        }
+        Trial picked = null;
+        for (Trial trial : trials) {
+            if (trial.bytesPerSecond * SIGNIFICANT_GAIN >= best && (picked == null || trial.memory() < picked.memory())) {
+                picked = trial;
+            }
+        }
+        return picked;
+    }
+
+    /**
+     * Streams generated data to a block blob until the trial time is over.
+     *
+     * @return The bytes per second uploaded
+     */
+    private double uploadTrial(int blockSize, int buffers) throws IOException {
+        BlockBlobClient blob = container.getBlobClient("transfer-tuner-upload").getBlockBlobClient();
+        GeneratedInputStream content = new GeneratedInputStream(Long.MAX_VALUE, trialDuration);
+        long start = System.nanoTime();
+        try {
+            BlobTransfer.uploadStream(blob, content, blockSize, buffers, null, null, null);
+            return content.offset * 1e9 / (System.nanoTime() - start);
+        } finally {
+            blob.delete();
+        }
+    }
+
+    /**
+     * Reads ranges of the test blob in parallel, round robin, until the trial time is over.
+     *
+     * @return The bytes per second downloaded
+     */
+    private double downloadTrial(final BlockBlobClient blob, final int rangeSize, int concurrency)
+            throws IOException, InterruptedException {
+        final long rangeCount = TEST_BLOB_SIZE / rangeSize;
+        final long end = System.nanoTime() + trialDuration.toNanos();
+        final AtomicLong nextRange = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {
+                bytes.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                bytes.addAndGet(len);
+            }
+        };
+
+        ExecutorService readers = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < concurrency; i++) {
+                futures.add(readers.submit(() -> {
+                    while (System.nanoTime() < end) {
+                        long offset = nextRange.getAndIncrement() % rangeCount * rangeSize;
+                        blob.downloadWithResponse(discard, new BlobRange(offset, (long) rangeSize), null, null, false,
+                                null, Context.NONE);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            readers.shutdownNow();
+        }
+        return bytes.get() * 1e9 / (System.nanoTime() - start);
+    }
+
+    /**
+     * Incompressible generated data that ends after a length or a time limit, whichever comes first.
+     */
+    private static final class GeneratedInputStream extends InputStream {
+        private final SeededDataGenerator generator = new SeededDataGenerator(System.nanoTime());
+        private final long length;
+        private final long start = System.nanoTime();
+        private final Duration limit;
+        private long offset;
+
+        private GeneratedInputStream(long length, Duration limit) {
+            this.length = length;
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (offset >= length || (limit != null && System.nanoTime() - start >= limit.toNanos())) {
+                return -1;
+            }
+            len = (int) Math.min(len, length - offset);
+            generator.fill(offset, b, off, len);
+            offset += len;
+            return len;
+        }
+    }
+}